@@ -125,9 +125,12 @@ import android.view.WindowManager;
 import android.view.WindowManagerImpl;
 import android.view.accessibility.AccessibilityManager;
 import android.view.accessibility.CaptioningManager;
+import android.view.accessibility.DataCollectionManager;
+import android.view.accessibility.IDataCollectionManager;
 import android.view.inputmethod.InputMethodManager;
 import android.view.textservice.TextServicesManager;
 
+import java.util.Arrays;
 import java.util.HashMap;
 
 /**
@@ -138,680 +141,993 @@ final class SystemServiceRegistry {
     private final static String TAG = "SystemServiceRegistry";
 
     // Service registry information.
-    // This information is never changed once static initialization has completed.
-    private static final HashMap<Class<?>, String> SYSTEM_SERVICE_NAMES =
-            new HashMap<Class<?>, String>();
-    private static final HashMap<String, ServiceFetcher<?>> SYSTEM_SERVICE_FETCHERS =
-            new HashMap<String, ServiceFetcher<?>>();
-    private static int sServiceCacheSize;
+    // This information is never changed once static initialization has completed,
+    // except for fetchers, which are created on first use.
+
+    /**
+     * Index returned by {@link #getSystemServiceIndex} for unknown services.
+     */
+    public static final int SERVICE_INDEX_UNKNOWN = -1;
+
+    // Fetchers by service index, created on first use under the lock of the array.
+    private static ServiceFetcher<?>[] sServiceFetchers;
+
+    // Open addressing table from service name to index. The multiplier of the
+    // hash is chosen so that no names collide, which makes a lookup a single probe.
+    // NAME_TABLE_SEED is the first multiplier the search in buildServiceTables()
+    // finds for the names in SERVICES. It is computed offline since the names and
+    // String.hashCode() are fixed, and must be updated when a service is added.
+    private static final int NAME_TABLE_BITS = 9;
+    private static final int NAME_TABLE_SEED = 0x1FEF2EC9;
+    private static final int NAME_TABLE_MAX_SEED_ATTEMPTS = 4096;
+    private static String[] sNameTable;
+    private static int[] sNameTableIndices;
+    private static int sNameTableSeed;
 
     // Not instantiable.
     private SystemServiceRegistry() { }
 
+    // Name and class name of every service, in the order that defines the
+    // service indices. Classes are referenced by name so that building the
+    // lookup tables does not load them.
+    private static final String[] SERVICES = {
+        Context.ACCESSIBILITY_SERVICE, "android.view.accessibility.AccessibilityManager",
+        Context.DATA_COLLECTION_SERVICE, "android.view.accessibility.DataCollectionManager",
+        Context.CAPTIONING_SERVICE, "android.view.accessibility.CaptioningManager",
+        Context.ACCOUNT_SERVICE, "android.accounts.AccountManager",
+        Context.ACTIVITY_SERVICE, "android.app.ActivityManager",
+        Context.ALARM_SERVICE, "android.app.AlarmManager",
+        Context.AUDIO_SERVICE, "android.media.AudioManager",
+        Context.MEDIA_ROUTER_SERVICE, "android.media.MediaRouter",
+        Context.BLUETOOTH_SERVICE, "android.bluetooth.BluetoothManager",
+        Context.HDMI_CONTROL_SERVICE, "android.hardware.hdmi.HdmiControlManager",
+        Context.CLIPBOARD_SERVICE, "android.content.ClipboardManager",
+        Context.CONNECTIVITY_SERVICE, "android.net.ConnectivityManager",
+        Context.COUNTRY_DETECTOR, "android.location.CountryDetector",
+        Context.DEVICE_POLICY_SERVICE, "android.app.admin.DevicePolicyManager",
+        Context.DOWNLOAD_SERVICE, "android.app.DownloadManager",
+        Context.BATTERY_SERVICE, "android.os.BatteryManager",
+        Context.NFC_SERVICE, "android.nfc.NfcManager",
+        Context.DROPBOX_SERVICE, "android.os.DropBoxManager",
+        Context.INPUT_SERVICE, "android.hardware.input.InputManager",
+        Context.DISPLAY_SERVICE, "android.hardware.display.DisplayManager",
+        Context.INPUT_METHOD_SERVICE, "android.view.inputmethod.InputMethodManager",
+        Context.TEXT_SERVICES_MANAGER_SERVICE, "android.view.textservice.TextServicesManager",
+        Context.KEYGUARD_SERVICE, "android.app.KeyguardManager",
+        Context.LAYOUT_INFLATER_SERVICE, "android.view.LayoutInflater",
+        Context.LOCATION_SERVICE, "android.location.LocationManager",
+        Context.NETWORK_POLICY_SERVICE, "android.net.NetworkPolicyManager",
+        Context.NOTIFICATION_SERVICE, "android.app.NotificationManager",
+        Context.NSD_SERVICE, "android.net.nsd.NsdManager",
+        Context.POWER_SERVICE, "android.os.PowerManager",
+        Context.RECOVERY_SERVICE, "android.os.RecoverySystem",
+        Context.SEARCH_SERVICE, "android.app.SearchManager",
+        Context.SENSOR_SERVICE, "android.hardware.SensorManager",
+        Context.STATUS_BAR_SERVICE, "android.app.StatusBarManager",
+        Context.STORAGE_SERVICE, "android.os.storage.StorageManager",
+        Context.TELEPHONY_SERVICE, "android.telephony.TelephonyManager",
+        Context.TELEPHONY_SUBSCRIPTION_SERVICE, "android.telephony.SubscriptionManager",
+        Context.CARRIER_CONFIG_SERVICE, "android.telephony.CarrierConfigManager",
+        Context.TELECOM_SERVICE, "android.telecom.TelecomManager",
+        Context.UI_MODE_SERVICE, "android.app.UiModeManager",
+        Context.USB_SERVICE, "android.hardware.usb.UsbManager",
+        Context.SERIAL_SERVICE, "android.hardware.SerialManager",
+        Context.VIBRATOR_SERVICE, "android.os.Vibrator",
+        Context.WALLPAPER_SERVICE, "android.app.WallpaperManager",
+        Context.WIFI_SERVICE, "android.net.wifi.WifiManager",
+        Context.WIFI_P2P_SERVICE, "android.net.wifi.p2p.WifiP2pManager",
+        Context.WIFI_NAN_SERVICE, "android.net.wifi.nan.WifiNanManager",
+        Context.WIFI_SCANNING_SERVICE, "android.net.wifi.WifiScanner",
+        Context.WIFI_RTT_SERVICE, "android.net.wifi.RttManager",
+        Context.ETHERNET_SERVICE, "android.net.EthernetManager",
+        Context.WINDOW_SERVICE, "android.view.WindowManager",
+        Context.USER_SERVICE, "android.os.UserManager",
+        Context.APP_OPS_SERVICE, "android.app.AppOpsManager",
+        Context.CAMERA_SERVICE, "android.hardware.camera2.CameraManager",
+        Context.LAUNCHER_APPS_SERVICE, "android.content.pm.LauncherApps",
+        Context.RESTRICTIONS_SERVICE, "android.content.RestrictionsManager",
+        Context.PRINT_SERVICE, "android.print.PrintManager",
+        Context.CONSUMER_IR_SERVICE, "android.hardware.ConsumerIrManager",
+        Context.MEDIA_SESSION_SERVICE, "android.media.session.MediaSessionManager",
+        Context.TRUST_SERVICE, "android.app.trust.TrustManager",
+        Context.FINGERPRINT_SERVICE, "android.hardware.fingerprint.FingerprintManager",
+        Context.TV_INPUT_SERVICE, "android.media.tv.TvInputManager",
+        Context.NETWORK_SCORE_SERVICE, "android.net.NetworkScoreManager",
+        Context.USAGE_STATS_SERVICE, "android.app.usage.UsageStatsManager",
+        Context.NETWORK_STATS_SERVICE, "android.app.usage.NetworkStatsManager",
+        Context.JOB_SCHEDULER_SERVICE, "android.app.job.JobScheduler",
+        Context.PERSISTENT_DATA_BLOCK_SERVICE,
+                "android.service.persistentdata.PersistentDataBlockManager",
+        Context.MEDIA_PROJECTION_SERVICE, "android.media.projection.MediaProjectionManager",
+        Context.APPWIDGET_SERVICE, "android.appwidget.AppWidgetManager",
+        Context.MIDI_SERVICE, "android.media.midi.MidiManager",
+        Context.RADIO_SERVICE, "android.hardware.radio.RadioManager",
+        Context.HARDWARE_PROPERTIES_SERVICE, "android.os.HardwarePropertiesManager",
+        Context.SOUND_TRIGGER_SERVICE, "android.media.soundtrigger.SoundTriggerManager",
+        Context.SHORTCUT_SERVICE, "android.content.pm.ShortcutManager",
+        Context.SYSTEM_HEALTH_SERVICE, "android.os.health.SystemHealthManager",
+        Context.CONTEXTHUB_SERVICE, "android.hardware.location.ContextHubManager",
+    };
+
     static {
-        registerService(Context.ACCESSIBILITY_SERVICE, AccessibilityManager.class,
-                new CachedServiceFetcher<AccessibilityManager>() {
-            @Override
-            public AccessibilityManager createService(ContextImpl ctx) {
-                return AccessibilityManager.getInstance(ctx);
-            }});
-
-        registerService(Context.CAPTIONING_SERVICE, CaptioningManager.class,
-                new CachedServiceFetcher<CaptioningManager>() {
-            @Override
-            public CaptioningManager createService(ContextImpl ctx) {
-                return new CaptioningManager(ctx);
-            }});
-
-        registerService(Context.ACCOUNT_SERVICE, AccountManager.class,
-                new CachedServiceFetcher<AccountManager>() {
-            @Override
-            public AccountManager createService(ContextImpl ctx) {
-                IBinder b = ServiceManager.getService(Context.ACCOUNT_SERVICE);
-                IAccountManager service = IAccountManager.Stub.asInterface(b);
-                return new AccountManager(ctx, service);
-            }});
-
-        registerService(Context.ACTIVITY_SERVICE, ActivityManager.class,
-                new CachedServiceFetcher<ActivityManager>() {
-            @Override
-            public ActivityManager createService(ContextImpl ctx) {
-                return new ActivityManager(ctx.getOuterContext(), ctx.mMainThread.getHandler());
-            }});
-
-        registerService(Context.ALARM_SERVICE, AlarmManager.class,
-                new CachedServiceFetcher<AlarmManager>() {
-            @Override
-            public AlarmManager createService(ContextImpl ctx) {
-                IBinder b = ServiceManager.getService(Context.ALARM_SERVICE);
-                IAlarmManager service = IAlarmManager.Stub.asInterface(b);
-                return new AlarmManager(service, ctx);
-            }});
-
-        registerService(Context.AUDIO_SERVICE, AudioManager.class,
-                new CachedServiceFetcher<AudioManager>() {
-            @Override
-            public AudioManager createService(ContextImpl ctx) {
-                return new AudioManager(ctx);
-            }});
-
-        registerService(Context.MEDIA_ROUTER_SERVICE, MediaRouter.class,
-                new CachedServiceFetcher<MediaRouter>() {
-            @Override
-            public MediaRouter createService(ContextImpl ctx) {
-                return new MediaRouter(ctx);
-            }});
-
-        registerService(Context.BLUETOOTH_SERVICE, BluetoothManager.class,
-                new CachedServiceFetcher<BluetoothManager>() {
-            @Override
-            public BluetoothManager createService(ContextImpl ctx) {
-                return new BluetoothManager(ctx);
-            }});
-
-        registerService(Context.HDMI_CONTROL_SERVICE, HdmiControlManager.class,
-                new StaticServiceFetcher<HdmiControlManager>() {
-            @Override
-            public HdmiControlManager createService() {
-                IBinder b = ServiceManager.getService(Context.HDMI_CONTROL_SERVICE);
-                return new HdmiControlManager(IHdmiControlService.Stub.asInterface(b));
-            }});
-
-        registerService(Context.CLIPBOARD_SERVICE, ClipboardManager.class,
-                new CachedServiceFetcher<ClipboardManager>() {
-            @Override
-            public ClipboardManager createService(ContextImpl ctx) {
-                return new ClipboardManager(ctx.getOuterContext(),
-                        ctx.mMainThread.getHandler());
-            }});
-
-        // The clipboard service moved to a new package.  If someone asks for the old
-        // interface by class then we want to redirect over to the new interface instead
-        // (which extends it).
-        SYSTEM_SERVICE_NAMES.put(android.text.ClipboardManager.class, Context.CLIPBOARD_SERVICE);
-
-        registerService(Context.CONNECTIVITY_SERVICE, ConnectivityManager.class,
-                new StaticApplicationContextServiceFetcher<ConnectivityManager>() {
-            @Override
-            public ConnectivityManager createService(Context context) {
-                IBinder b = ServiceManager.getService(Context.CONNECTIVITY_SERVICE);
-                IConnectivityManager service = IConnectivityManager.Stub.asInterface(b);
-                return new ConnectivityManager(context, service);
-            }});
-
-        registerService(Context.COUNTRY_DETECTOR, CountryDetector.class,
-                new StaticServiceFetcher<CountryDetector>() {
-            @Override
-            public CountryDetector createService() {
-                IBinder b = ServiceManager.getService(Context.COUNTRY_DETECTOR);
-                return new CountryDetector(ICountryDetector.Stub.asInterface(b));
-            }});
-
-        registerService(Context.DEVICE_POLICY_SERVICE, DevicePolicyManager.class,
-                new CachedServiceFetcher<DevicePolicyManager>() {
-            @Override
-            public DevicePolicyManager createService(ContextImpl ctx) {
-                return DevicePolicyManager.create(ctx);
-            }});
-
-        registerService(Context.DOWNLOAD_SERVICE, DownloadManager.class,
-                new CachedServiceFetcher<DownloadManager>() {
-            @Override
-            public DownloadManager createService(ContextImpl ctx) {
-                return new DownloadManager(ctx);
-            }});
-
-        registerService(Context.BATTERY_SERVICE, BatteryManager.class,
-                new StaticServiceFetcher<BatteryManager>() {
-            @Override
-            public BatteryManager createService() {
-                return new BatteryManager();
-            }});
-
-        registerService(Context.NFC_SERVICE, NfcManager.class,
-                new CachedServiceFetcher<NfcManager>() {
-            @Override
-            public NfcManager createService(ContextImpl ctx) {
-                return new NfcManager(ctx);
-            }});
-
-        registerService(Context.DROPBOX_SERVICE, DropBoxManager.class,
-                new CachedServiceFetcher<DropBoxManager>() {
-            @Override
-            public DropBoxManager createService(ContextImpl ctx) {
-                IBinder b = ServiceManager.getService(Context.DROPBOX_SERVICE);
-                IDropBoxManagerService service = IDropBoxManagerService.Stub.asInterface(b);
-                if (service == null) {
-                    // Don't return a DropBoxManager that will NPE upon use.
-                    // This also avoids caching a broken DropBoxManager in
-                    // getDropBoxManager during early boot, before the
-                    // DROPBOX_SERVICE is registered.
-                    return null;
-                }
-                return new DropBoxManager(ctx, service);
-            }});
-
-        registerService(Context.INPUT_SERVICE, InputManager.class,
-                new StaticServiceFetcher<InputManager>() {
-            @Override
-            public InputManager createService() {
-                return InputManager.getInstance();
-            }});
-
-        registerService(Context.DISPLAY_SERVICE, DisplayManager.class,
-                new CachedServiceFetcher<DisplayManager>() {
-            @Override
-            public DisplayManager createService(ContextImpl ctx) {
-                return new DisplayManager(ctx.getOuterContext());
-            }});
-
-        registerService(Context.INPUT_METHOD_SERVICE, InputMethodManager.class,
-                new StaticServiceFetcher<InputMethodManager>() {
-            @Override
-            public InputMethodManager createService() {
-                return InputMethodManager.getInstance();
-            }});
-
-        registerService(Context.TEXT_SERVICES_MANAGER_SERVICE, TextServicesManager.class,
-                new StaticServiceFetcher<TextServicesManager>() {
-            @Override
-            public TextServicesManager createService() {
-                return TextServicesManager.getInstance();
-            }});
-
-        registerService(Context.KEYGUARD_SERVICE, KeyguardManager.class,
-                new StaticServiceFetcher<KeyguardManager>() {
-            @Override
-            public KeyguardManager createService() {
-                return new KeyguardManager();
-            }});
-
-        registerService(Context.LAYOUT_INFLATER_SERVICE, LayoutInflater.class,
-                new CachedServiceFetcher<LayoutInflater>() {
-            @Override
-            public LayoutInflater createService(ContextImpl ctx) {
-                return new PhoneLayoutInflater(ctx.getOuterContext());
-            }});
-
-        registerService(Context.LOCATION_SERVICE, LocationManager.class,
-                new CachedServiceFetcher<LocationManager>() {
-            @Override
-            public LocationManager createService(ContextImpl ctx) {
-                IBinder b = ServiceManager.getService(Context.LOCATION_SERVICE);
-                return new LocationManager(ctx, ILocationManager.Stub.asInterface(b));
-            }});
-
-        registerService(Context.NETWORK_POLICY_SERVICE, NetworkPolicyManager.class,
-                new CachedServiceFetcher<NetworkPolicyManager>() {
-            @Override
-            public NetworkPolicyManager createService(ContextImpl ctx) {
-                return new NetworkPolicyManager(ctx, INetworkPolicyManager.Stub.asInterface(
-                        ServiceManager.getService(Context.NETWORK_POLICY_SERVICE)));
-            }});
-
-        registerService(Context.NOTIFICATION_SERVICE, NotificationManager.class,
-                new CachedServiceFetcher<NotificationManager>() {
-            @Override
-            public NotificationManager createService(ContextImpl ctx) {
-                final Context outerContext = ctx.getOuterContext();
-                return new NotificationManager(
-                    new ContextThemeWrapper(outerContext,
-                            Resources.selectSystemTheme(0,
+        buildServiceTables();
+    }
+
+    /**
+     * Creates the fetcher of a service. Each fetcher class is only loaded when
+     * its case first runs, so a process never loads the fetchers, and through
+     * them the managers, of services it does not ask for.
+     */
+    private static ServiceFetcher<?> createFetcher(int index) {
+        switch (SERVICES[index * 2]) {
+            case Context.ACCESSIBILITY_SERVICE:
+                return new CachedServiceFetcher<AccessibilityManager>(index) {
+                    @Override
+                    public AccessibilityManager createService(ContextImpl ctx) {
+                        return AccessibilityManager.getInstance(ctx);
+                    }
+                };
+
+            case Context.DATA_COLLECTION_SERVICE:
+                return new CachedServiceFetcher<DataCollectionManager>(index) {
+                    @Override
+                    public DataCollectionManager createService(ContextImpl ctx) {
+                        IBinder b = ServiceManager.getService(Context.DATA_COLLECTION_SERVICE);
+                        IDataCollectionManager service = IDataCollectionManager.Stub.asInterface(b);
+                        return new DataCollectionManager(service);
+                    }
+                };
+
+            case Context.CAPTIONING_SERVICE:
+                return new CachedServiceFetcher<CaptioningManager>(index) {
+                    @Override
+                    public CaptioningManager createService(ContextImpl ctx) {
+                        return new CaptioningManager(ctx);
+                    }
+                };
+
+            case Context.ACCOUNT_SERVICE:
+                return new CachedServiceFetcher<AccountManager>(index) {
+                    @Override
+                    public AccountManager createService(ContextImpl ctx) {
+                        IBinder b = ServiceManager.getService(Context.ACCOUNT_SERVICE);
+                        IAccountManager service = IAccountManager.Stub.asInterface(b);
+                        return new AccountManager(ctx, service);
+                    }
+                };
+
+            case Context.ACTIVITY_SERVICE:
+                return new CachedServiceFetcher<ActivityManager>(index) {
+                    @Override
+                    public ActivityManager createService(ContextImpl ctx) {
+                        return new ActivityManager(ctx.getOuterContext(),
+                                ctx.mMainThread.getHandler());
+                    }
+                };
+
+            case Context.ALARM_SERVICE:
+                return new CachedServiceFetcher<AlarmManager>(index) {
+                    @Override
+                    public AlarmManager createService(ContextImpl ctx) {
+                        IBinder b = ServiceManager.getService(Context.ALARM_SERVICE);
+                        IAlarmManager service = IAlarmManager.Stub.asInterface(b);
+                        return new AlarmManager(service, ctx);
+                    }
+                };
+
+            case Context.AUDIO_SERVICE:
+                return new CachedServiceFetcher<AudioManager>(index) {
+                    @Override
+                    public AudioManager createService(ContextImpl ctx) {
+                        return new AudioManager(ctx);
+                    }
+                };
+
+            case Context.MEDIA_ROUTER_SERVICE:
+                return new CachedServiceFetcher<MediaRouter>(index) {
+                    @Override
+                    public MediaRouter createService(ContextImpl ctx) {
+                        return new MediaRouter(ctx);
+                    }
+                };
+
+            case Context.BLUETOOTH_SERVICE:
+                return new CachedServiceFetcher<BluetoothManager>(index) {
+                    @Override
+                    public BluetoothManager createService(ContextImpl ctx) {
+                        return new BluetoothManager(ctx);
+                    }
+                };
+
+            case Context.HDMI_CONTROL_SERVICE:
+                return new StaticServiceFetcher<HdmiControlManager>() {
+                    @Override
+                    public HdmiControlManager createService() {
+                        IBinder b = ServiceManager.getService(Context.HDMI_CONTROL_SERVICE);
+                        return new HdmiControlManager(IHdmiControlService.Stub.asInterface(b));
+                    }
+                };
+
+            case Context.CLIPBOARD_SERVICE:
+                return new CachedServiceFetcher<ClipboardManager>(index) {
+                    @Override
+                    public ClipboardManager createService(ContextImpl ctx) {
+                        return new ClipboardManager(ctx.getOuterContext(),
+                                ctx.mMainThread.getHandler());
+                    }
+                };
+
+            case Context.CONNECTIVITY_SERVICE:
+                return new StaticApplicationContextServiceFetcher<ConnectivityManager>() {
+                    @Override
+                    public ConnectivityManager createService(Context context) {
+                        IBinder b = ServiceManager.getService(Context.CONNECTIVITY_SERVICE);
+                        IConnectivityManager service = IConnectivityManager.Stub.asInterface(b);
+                        return new ConnectivityManager(context, service);
+                    }
+                };
+
+            case Context.COUNTRY_DETECTOR:
+                return new StaticServiceFetcher<CountryDetector>() {
+                    @Override
+                    public CountryDetector createService() {
+                        IBinder b = ServiceManager.getService(Context.COUNTRY_DETECTOR);
+                        return new CountryDetector(ICountryDetector.Stub.asInterface(b));
+                    }
+                };
+
+            case Context.DEVICE_POLICY_SERVICE:
+                return new CachedServiceFetcher<DevicePolicyManager>(index) {
+                    @Override
+                    public DevicePolicyManager createService(ContextImpl ctx) {
+                        return DevicePolicyManager.create(ctx);
+                    }
+                };
+
+            case Context.DOWNLOAD_SERVICE:
+                return new CachedServiceFetcher<DownloadManager>(index) {
+                    @Override
+                    public DownloadManager createService(ContextImpl ctx) {
+                        return new DownloadManager(ctx);
+                    }
+                };
+
+            case Context.BATTERY_SERVICE:
+                return new StaticServiceFetcher<BatteryManager>() {
+                    @Override
+                    public BatteryManager createService() {
+                        return new BatteryManager();
+                    }
+                };
+
+            case Context.NFC_SERVICE:
+                return new CachedServiceFetcher<NfcManager>(index) {
+                    @Override
+                    public NfcManager createService(ContextImpl ctx) {
+                        return new NfcManager(ctx);
+                    }
+                };
+
+            case Context.DROPBOX_SERVICE:
+                return new CachedServiceFetcher<DropBoxManager>(index) {
+                    @Override
+                    public DropBoxManager createService(ContextImpl ctx) {
+                        IBinder b = ServiceManager.getService(Context.DROPBOX_SERVICE);
+                        IDropBoxManagerService service = IDropBoxManagerService.Stub.asInterface(b);
+                        if (service == null) {
+                            // Don't return a DropBoxManager that will NPE upon use.
+                            // This also avoids caching a broken DropBoxManager in
+                            // getDropBoxManager during early boot, before the
+                            // DROPBOX_SERVICE is registered.
+                            return null;
+                        }
+                        return new DropBoxManager(ctx, service);
+                    }
+                };
+
+            case Context.INPUT_SERVICE:
+                return new StaticServiceFetcher<InputManager>() {
+                    @Override
+                    public InputManager createService() {
+                        return InputManager.getInstance();
+                    }
+                };
+
+            case Context.DISPLAY_SERVICE:
+                return new CachedServiceFetcher<DisplayManager>(index) {
+                    @Override
+                    public DisplayManager createService(ContextImpl ctx) {
+                        return new DisplayManager(ctx.getOuterContext());
+                    }
+                };
+
+            case Context.INPUT_METHOD_SERVICE:
+                return new StaticServiceFetcher<InputMethodManager>() {
+                    @Override
+                    public InputMethodManager createService() {
+                        return InputMethodManager.getInstance();
+                    }
+                };
+
+            case Context.TEXT_SERVICES_MANAGER_SERVICE:
+                return new StaticServiceFetcher<TextServicesManager>() {
+                    @Override
+                    public TextServicesManager createService() {
+                        return TextServicesManager.getInstance();
+                    }
+                };
+
+            case Context.KEYGUARD_SERVICE:
+                return new StaticServiceFetcher<KeyguardManager>() {
+                    @Override
+                    public KeyguardManager createService() {
+                        return new KeyguardManager();
+                    }
+                };
+
+            case Context.LAYOUT_INFLATER_SERVICE:
+                return new CachedServiceFetcher<LayoutInflater>(index) {
+                    @Override
+                    public LayoutInflater createService(ContextImpl ctx) {
+                        return new PhoneLayoutInflater(ctx.getOuterContext());
+                    }
+                };
+
+            case Context.LOCATION_SERVICE:
+                return new CachedServiceFetcher<LocationManager>(index) {
+                    @Override
+                    public LocationManager createService(ContextImpl ctx) {
+                        IBinder b = ServiceManager.getService(Context.LOCATION_SERVICE);
+                        return new LocationManager(ctx, ILocationManager.Stub.asInterface(b));
+                    }
+                };
+
+            case Context.NETWORK_POLICY_SERVICE:
+                return new CachedServiceFetcher<NetworkPolicyManager>(index) {
+                    @Override
+                    public NetworkPolicyManager createService(ContextImpl ctx) {
+                        return new NetworkPolicyManager(ctx, INetworkPolicyManager.Stub.asInterface(
+                                ServiceManager.getService(Context.NETWORK_POLICY_SERVICE)));
+                    }
+                };
+
+            case Context.NOTIFICATION_SERVICE:
+                return new CachedServiceFetcher<NotificationManager>(index) {
+                    @Override
+                    public NotificationManager createService(ContextImpl ctx) {
+                        final Context outerContext = ctx.getOuterContext();
+                        return new NotificationManager(
+                            new ContextThemeWrapper(outerContext,
+                                Resources.selectSystemTheme(0,
                                     outerContext.getApplicationInfo().targetSdkVersion,
                                     com.android.internal.R.style.Theme_Dialog,
                                     com.android.internal.R.style.Theme_Holo_Dialog,
                                     com.android.internal.R.style.Theme_DeviceDefault_Dialog,
                                     com.android.internal.R.style.Theme_DeviceDefault_Light_Dialog)),
-                    ctx.mMainThread.getHandler());
-            }});
-
-        registerService(Context.NSD_SERVICE, NsdManager.class,
-                new CachedServiceFetcher<NsdManager>() {
-            @Override
-            public NsdManager createService(ContextImpl ctx) {
-                IBinder b = ServiceManager.getService(Context.NSD_SERVICE);
-                INsdManager service = INsdManager.Stub.asInterface(b);
-                return new NsdManager(ctx.getOuterContext(), service);
-            }});
-
-        registerService(Context.POWER_SERVICE, PowerManager.class,
-                new CachedServiceFetcher<PowerManager>() {
-            @Override
-            public PowerManager createService(ContextImpl ctx) {
-                IBinder b = ServiceManager.getService(Context.POWER_SERVICE);
-                IPowerManager service = IPowerManager.Stub.asInterface(b);
-                if (service == null) {
-                    Log.wtf(TAG, "Failed to get power manager service.");
-                }
-                return new PowerManager(ctx.getOuterContext(),
-                        service, ctx.mMainThread.getHandler());
-            }});
-
-        registerService(Context.RECOVERY_SERVICE, RecoverySystem.class,
-                new CachedServiceFetcher<RecoverySystem>() {
-            @Override
-            public RecoverySystem createService(ContextImpl ctx) {
-                IBinder b = ServiceManager.getService(Context.RECOVERY_SERVICE);
-                IRecoverySystem service = IRecoverySystem.Stub.asInterface(b);
-                if (service == null) {
-                    Log.wtf(TAG, "Failed to get recovery service.");
-                }
-                return new RecoverySystem(service);
-            }});
-
-        registerService(Context.SEARCH_SERVICE, SearchManager.class,
-                new CachedServiceFetcher<SearchManager>() {
-            @Override
-            public SearchManager createService(ContextImpl ctx) {
-                return new SearchManager(ctx.getOuterContext(),
-                        ctx.mMainThread.getHandler());
-            }});
-
-        registerService(Context.SENSOR_SERVICE, SensorManager.class,
-                new CachedServiceFetcher<SensorManager>() {
-            @Override
-            public SensorManager createService(ContextImpl ctx) {
-                return new SystemSensorManager(ctx.getOuterContext(),
-                  ctx.mMainThread.getHandler().getLooper());
-            }});
-
-        registerService(Context.STATUS_BAR_SERVICE, StatusBarManager.class,
-                new CachedServiceFetcher<StatusBarManager>() {
-            @Override
-            public StatusBarManager createService(ContextImpl ctx) {
-                return new StatusBarManager(ctx.getOuterContext());
-            }});
-
-        registerService(Context.STORAGE_SERVICE, StorageManager.class,
-                new CachedServiceFetcher<StorageManager>() {
-            @Override
-            public StorageManager createService(ContextImpl ctx) {
-                return new StorageManager(ctx, ctx.mMainThread.getHandler().getLooper());
-            }});
-
-        registerService(Context.TELEPHONY_SERVICE, TelephonyManager.class,
-                new CachedServiceFetcher<TelephonyManager>() {
-            @Override
-            public TelephonyManager createService(ContextImpl ctx) {
-                return new TelephonyManager(ctx.getOuterContext());
-            }});
-
-        registerService(Context.TELEPHONY_SUBSCRIPTION_SERVICE, SubscriptionManager.class,
-                new CachedServiceFetcher<SubscriptionManager>() {
-            @Override
-            public SubscriptionManager createService(ContextImpl ctx) {
-                return new SubscriptionManager(ctx.getOuterContext());
-            }});
-
-        registerService(Context.CARRIER_CONFIG_SERVICE, CarrierConfigManager.class,
-                new CachedServiceFetcher<CarrierConfigManager>() {
-            @Override
-            public CarrierConfigManager createService(ContextImpl ctx) {
-                return new CarrierConfigManager();
-            }});
-
-        registerService(Context.TELECOM_SERVICE, TelecomManager.class,
-                new CachedServiceFetcher<TelecomManager>() {
-            @Override
-            public TelecomManager createService(ContextImpl ctx) {
-                return new TelecomManager(ctx.getOuterContext());
-            }});
-
-        registerService(Context.UI_MODE_SERVICE, UiModeManager.class,
-                new CachedServiceFetcher<UiModeManager>() {
-            @Override
-            public UiModeManager createService(ContextImpl ctx) {
-                return new UiModeManager();
-            }});
-
-        registerService(Context.USB_SERVICE, UsbManager.class,
-                new CachedServiceFetcher<UsbManager>() {
-            @Override
-            public UsbManager createService(ContextImpl ctx) {
-                IBinder b = ServiceManager.getService(Context.USB_SERVICE);
-                return new UsbManager(ctx, IUsbManager.Stub.asInterface(b));
-            }});
-
-        registerService(Context.SERIAL_SERVICE, SerialManager.class,
-                new CachedServiceFetcher<SerialManager>() {
-            @Override
-            public SerialManager createService(ContextImpl ctx) {
-                IBinder b = ServiceManager.getService(Context.SERIAL_SERVICE);
-                return new SerialManager(ctx, ISerialManager.Stub.asInterface(b));
-            }});
-
-        registerService(Context.VIBRATOR_SERVICE, Vibrator.class,
-                new CachedServiceFetcher<Vibrator>() {
-            @Override
-            public Vibrator createService(ContextImpl ctx) {
-                return new SystemVibrator(ctx);
-            }});
-
-        registerService(Context.WALLPAPER_SERVICE, WallpaperManager.class,
-                new CachedServiceFetcher<WallpaperManager>() {
-            @Override
-            public WallpaperManager createService(ContextImpl ctx) {
-                return new WallpaperManager(ctx.getOuterContext(),
-                        ctx.mMainThread.getHandler());
-            }});
-
-        registerService(Context.WIFI_SERVICE, WifiManager.class,
-                new CachedServiceFetcher<WifiManager>() {
-            @Override
-            public WifiManager createService(ContextImpl ctx) {
-                IBinder b = ServiceManager.getService(Context.WIFI_SERVICE);
-                IWifiManager service = IWifiManager.Stub.asInterface(b);
-                return new WifiManager(ctx.getOuterContext(), service,
-                        ConnectivityThread.getInstanceLooper());
-            }});
-
-        registerService(Context.WIFI_P2P_SERVICE, WifiP2pManager.class,
-                new StaticServiceFetcher<WifiP2pManager>() {
-            @Override
-            public WifiP2pManager createService() {
-                IBinder b = ServiceManager.getService(Context.WIFI_P2P_SERVICE);
-                IWifiP2pManager service = IWifiP2pManager.Stub.asInterface(b);
-                return new WifiP2pManager(service);
-            }});
-
-        registerService(Context.WIFI_NAN_SERVICE, WifiNanManager.class,
-                new StaticServiceFetcher<WifiNanManager>() {
-            @Override
-            public WifiNanManager createService() {
-                IBinder b = ServiceManager.getService(Context.WIFI_NAN_SERVICE);
-                IWifiNanManager service = IWifiNanManager.Stub.asInterface(b);
-                if (service == null) {
-                    return null;
-                }
-                return new WifiNanManager(service);
-            }});
-
-        registerService(Context.WIFI_SCANNING_SERVICE, WifiScanner.class,
-                new CachedServiceFetcher<WifiScanner>() {
-            @Override
-            public WifiScanner createService(ContextImpl ctx) {
-                IBinder b = ServiceManager.getService(Context.WIFI_SCANNING_SERVICE);
-                IWifiScanner service = IWifiScanner.Stub.asInterface(b);
-                return new WifiScanner(ctx.getOuterContext(), service,
-                        ConnectivityThread.getInstanceLooper());
-            }});
-
-        registerService(Context.WIFI_RTT_SERVICE, RttManager.class,
-                new CachedServiceFetcher<RttManager>() {
-            @Override
-            public RttManager createService(ContextImpl ctx) {
-                IBinder b = ServiceManager.getService(Context.WIFI_RTT_SERVICE);
-                IRttManager service = IRttManager.Stub.asInterface(b);
-                return new RttManager(ctx.getOuterContext(), service,
-                        ConnectivityThread.getInstanceLooper());
-            }});
-
-        registerService(Context.ETHERNET_SERVICE, EthernetManager.class,
-                new CachedServiceFetcher<EthernetManager>() {
-            @Override
-            public EthernetManager createService(ContextImpl ctx) {
-                IBinder b = ServiceManager.getService(Context.ETHERNET_SERVICE);
-                IEthernetManager service = IEthernetManager.Stub.asInterface(b);
-                return new EthernetManager(ctx.getOuterContext(), service);
-            }});
-
-        registerService(Context.WINDOW_SERVICE, WindowManager.class,
-                new CachedServiceFetcher<WindowManager>() {
-            @Override
-            public WindowManager createService(ContextImpl ctx) {
-                return new WindowManagerImpl(ctx);
-            }});
-
-        registerService(Context.USER_SERVICE, UserManager.class,
-                new CachedServiceFetcher<UserManager>() {
-            @Override
-            public UserManager createService(ContextImpl ctx) {
-                IBinder b = ServiceManager.getService(Context.USER_SERVICE);
-                IUserManager service = IUserManager.Stub.asInterface(b);
-                return new UserManager(ctx, service);
-            }});
-
-        registerService(Context.APP_OPS_SERVICE, AppOpsManager.class,
-                new CachedServiceFetcher<AppOpsManager>() {
-            @Override
-            public AppOpsManager createService(ContextImpl ctx) {
-                IBinder b = ServiceManager.getService(Context.APP_OPS_SERVICE);
-                IAppOpsService service = IAppOpsService.Stub.asInterface(b);
-                return new AppOpsManager(ctx, service);
-            }});
-
-        registerService(Context.CAMERA_SERVICE, CameraManager.class,
-                new CachedServiceFetcher<CameraManager>() {
-            @Override
-            public CameraManager createService(ContextImpl ctx) {
-                return new CameraManager(ctx);
-            }});
-
-        registerService(Context.LAUNCHER_APPS_SERVICE, LauncherApps.class,
-                new CachedServiceFetcher<LauncherApps>() {
-            @Override
-            public LauncherApps createService(ContextImpl ctx) {
-                return new LauncherApps(ctx);
-            }});
-
-        registerService(Context.RESTRICTIONS_SERVICE, RestrictionsManager.class,
-                new CachedServiceFetcher<RestrictionsManager>() {
-            @Override
-            public RestrictionsManager createService(ContextImpl ctx) {
-                IBinder b = ServiceManager.getService(Context.RESTRICTIONS_SERVICE);
-                IRestrictionsManager service = IRestrictionsManager.Stub.asInterface(b);
-                return new RestrictionsManager(ctx, service);
-            }});
-
-        registerService(Context.PRINT_SERVICE, PrintManager.class,
-                new CachedServiceFetcher<PrintManager>() {
-            @Override
-            public PrintManager createService(ContextImpl ctx) {
-                IBinder iBinder = ServiceManager.getService(Context.PRINT_SERVICE);
-                IPrintManager service = IPrintManager.Stub.asInterface(iBinder);
-                return new PrintManager(ctx.getOuterContext(), service, UserHandle.myUserId(),
-                        UserHandle.getAppId(Process.myUid()));
-            }});
-
-        registerService(Context.CONSUMER_IR_SERVICE, ConsumerIrManager.class,
-                new CachedServiceFetcher<ConsumerIrManager>() {
-            @Override
-            public ConsumerIrManager createService(ContextImpl ctx) {
-                return new ConsumerIrManager(ctx);
-            }});
-
-        registerService(Context.MEDIA_SESSION_SERVICE, MediaSessionManager.class,
-                new CachedServiceFetcher<MediaSessionManager>() {
-            @Override
-            public MediaSessionManager createService(ContextImpl ctx) {
-                return new MediaSessionManager(ctx);
-            }});
-
-        registerService(Context.TRUST_SERVICE, TrustManager.class,
-                new StaticServiceFetcher<TrustManager>() {
-            @Override
-            public TrustManager createService() {
-                IBinder b = ServiceManager.getService(Context.TRUST_SERVICE);
-                return new TrustManager(b);
-            }});
-
-        registerService(Context.FINGERPRINT_SERVICE, FingerprintManager.class,
-                new CachedServiceFetcher<FingerprintManager>() {
-            @Override
-            public FingerprintManager createService(ContextImpl ctx) {
-                IBinder binder = ServiceManager.getService(Context.FINGERPRINT_SERVICE);
-                IFingerprintService service = IFingerprintService.Stub.asInterface(binder);
-                return new FingerprintManager(ctx.getOuterContext(), service);
-            }});
-
-        registerService(Context.TV_INPUT_SERVICE, TvInputManager.class,
-                new StaticServiceFetcher<TvInputManager>() {
-            @Override
-            public TvInputManager createService() {
-                IBinder iBinder = ServiceManager.getService(Context.TV_INPUT_SERVICE);
-                ITvInputManager service = ITvInputManager.Stub.asInterface(iBinder);
-                return new TvInputManager(service, UserHandle.myUserId());
-            }});
-
-        registerService(Context.NETWORK_SCORE_SERVICE, NetworkScoreManager.class,
-                new CachedServiceFetcher<NetworkScoreManager>() {
-            @Override
-            public NetworkScoreManager createService(ContextImpl ctx) {
-                return new NetworkScoreManager(ctx);
-            }});
-
-        registerService(Context.USAGE_STATS_SERVICE, UsageStatsManager.class,
-                new CachedServiceFetcher<UsageStatsManager>() {
-            @Override
-            public UsageStatsManager createService(ContextImpl ctx) {
-                IBinder iBinder = ServiceManager.getService(Context.USAGE_STATS_SERVICE);
-                IUsageStatsManager service = IUsageStatsManager.Stub.asInterface(iBinder);
-                return new UsageStatsManager(ctx.getOuterContext(), service);
-            }});
-
-        registerService(Context.NETWORK_STATS_SERVICE, NetworkStatsManager.class,
-                new CachedServiceFetcher<NetworkStatsManager>() {
-            @Override
-            public NetworkStatsManager createService(ContextImpl ctx) {
-                return new NetworkStatsManager(ctx.getOuterContext());
-            }});
-
-        registerService(Context.JOB_SCHEDULER_SERVICE, JobScheduler.class,
-                new StaticServiceFetcher<JobScheduler>() {
-            @Override
-            public JobScheduler createService() {
-                IBinder b = ServiceManager.getService(Context.JOB_SCHEDULER_SERVICE);
-                return new JobSchedulerImpl(IJobScheduler.Stub.asInterface(b));
-            }});
-
-        registerService(Context.PERSISTENT_DATA_BLOCK_SERVICE, PersistentDataBlockManager.class,
-                new StaticServiceFetcher<PersistentDataBlockManager>() {
-            @Override
-            public PersistentDataBlockManager createService() {
-                IBinder b = ServiceManager.getService(Context.PERSISTENT_DATA_BLOCK_SERVICE);
-                IPersistentDataBlockService persistentDataBlockService =
-                        IPersistentDataBlockService.Stub.asInterface(b);
-                if (persistentDataBlockService != null) {
-                    return new PersistentDataBlockManager(persistentDataBlockService);
-                } else {
-                    // not supported
-                    return null;
-                }
-            }});
-
-        registerService(Context.MEDIA_PROJECTION_SERVICE, MediaProjectionManager.class,
-                new CachedServiceFetcher<MediaProjectionManager>() {
-            @Override
-            public MediaProjectionManager createService(ContextImpl ctx) {
-                return new MediaProjectionManager(ctx);
-            }});
-
-        registerService(Context.APPWIDGET_SERVICE, AppWidgetManager.class,
-                new CachedServiceFetcher<AppWidgetManager>() {
-            @Override
-            public AppWidgetManager createService(ContextImpl ctx) {
-                IBinder b = ServiceManager.getService(Context.APPWIDGET_SERVICE);
-                return new AppWidgetManager(ctx, IAppWidgetService.Stub.asInterface(b));
-            }});
-
-        registerService(Context.MIDI_SERVICE, MidiManager.class,
-                new CachedServiceFetcher<MidiManager>() {
-            @Override
-            public MidiManager createService(ContextImpl ctx) {
-                IBinder b = ServiceManager.getService(Context.MIDI_SERVICE);
-                if (b == null) {
-                    return null;
-                }
-                return new MidiManager(IMidiManager.Stub.asInterface(b));
-            }});
-
-        registerService(Context.RADIO_SERVICE, RadioManager.class,
-                new CachedServiceFetcher<RadioManager>() {
-            @Override
-            public RadioManager createService(ContextImpl ctx) {
-                return new RadioManager(ctx);
-            }});
-
-        registerService(Context.HARDWARE_PROPERTIES_SERVICE, HardwarePropertiesManager.class,
-                new CachedServiceFetcher<HardwarePropertiesManager>() {
-            @Override
-            public HardwarePropertiesManager createService(ContextImpl ctx) {
-                    IBinder b = ServiceManager.getService(Context.HARDWARE_PROPERTIES_SERVICE);
-                    IHardwarePropertiesManager service =
-                            IHardwarePropertiesManager.Stub.asInterface(b);
-                    if (service == null) {
-                        Log.wtf(TAG, "Failed to get hardwareproperties service.");
-                        return null;
-                    }
-                    return new HardwarePropertiesManager(ctx, service);
-            }});
-
-        registerService(Context.SOUND_TRIGGER_SERVICE, SoundTriggerManager.class,
-                new CachedServiceFetcher<SoundTriggerManager>() {
-            @Override
-            public SoundTriggerManager createService(ContextImpl ctx) {
-                IBinder b = ServiceManager.getService(Context.SOUND_TRIGGER_SERVICE);
-                return new SoundTriggerManager(ctx, ISoundTriggerService.Stub.asInterface(b));
-            }});
-
-        registerService(Context.SHORTCUT_SERVICE, ShortcutManager.class,
-                new CachedServiceFetcher<ShortcutManager>() {
-            @Override
-            public ShortcutManager createService(ContextImpl ctx) {
-                return new ShortcutManager(ctx);
-            }});
-
-        registerService(Context.SYSTEM_HEALTH_SERVICE, SystemHealthManager.class,
-                new CachedServiceFetcher<SystemHealthManager>() {
-            @Override
-            public SystemHealthManager createService(ContextImpl ctx) {
-                return new SystemHealthManager();
-            }});
-
-        registerService(Context.CONTEXTHUB_SERVICE, ContextHubManager.class,
-                new CachedServiceFetcher<ContextHubManager>() {
-            @Override
-            public ContextHubManager createService(ContextImpl ctx) {
-                return new ContextHubManager(ctx.getOuterContext(),
-                  ctx.mMainThread.getHandler().getLooper());
-            }});
+                            ctx.mMainThread.getHandler());
+                    }
+                };
+
+            case Context.NSD_SERVICE:
+                return new CachedServiceFetcher<NsdManager>(index) {
+                    @Override
+                    public NsdManager createService(ContextImpl ctx) {
+                        IBinder b = ServiceManager.getService(Context.NSD_SERVICE);
+                        INsdManager service = INsdManager.Stub.asInterface(b);
+                        return new NsdManager(ctx.getOuterContext(), service);
+                    }
+                };
+
+            case Context.POWER_SERVICE:
+                return new CachedServiceFetcher<PowerManager>(index) {
+                    @Override
+                    public PowerManager createService(ContextImpl ctx) {
+                        IBinder b = ServiceManager.getService(Context.POWER_SERVICE);
+                        IPowerManager service = IPowerManager.Stub.asInterface(b);
+                        if (service == null) {
+                            Log.wtf(TAG, "Failed to get power manager service.");
+                        }
+                        return new PowerManager(ctx.getOuterContext(),
+                                service, ctx.mMainThread.getHandler());
+                    }
+                };
+
+            case Context.RECOVERY_SERVICE:
+                return new CachedServiceFetcher<RecoverySystem>(index) {
+                    @Override
+                    public RecoverySystem createService(ContextImpl ctx) {
+                        IBinder b = ServiceManager.getService(Context.RECOVERY_SERVICE);
+                        IRecoverySystem service = IRecoverySystem.Stub.asInterface(b);
+                        if (service == null) {
+                            Log.wtf(TAG, "Failed to get recovery service.");
+                        }
+                        return new RecoverySystem(service);
+                    }
+                };
+
+            case Context.SEARCH_SERVICE:
+                return new CachedServiceFetcher<SearchManager>(index) {
+                    @Override
+                    public SearchManager createService(ContextImpl ctx) {
+                        return new SearchManager(ctx.getOuterContext(),
+                                ctx.mMainThread.getHandler());
+                    }
+                };
+
+            case Context.SENSOR_SERVICE:
+                return new CachedServiceFetcher<SensorManager>(index) {
+                    @Override
+                    public SensorManager createService(ContextImpl ctx) {
+                        return new SystemSensorManager(ctx.getOuterContext(),
+                          ctx.mMainThread.getHandler().getLooper());
+                    }
+                };
+
+            case Context.STATUS_BAR_SERVICE:
+                return new CachedServiceFetcher<StatusBarManager>(index) {
+                    @Override
+                    public StatusBarManager createService(ContextImpl ctx) {
+                        return new StatusBarManager(ctx.getOuterContext());
+                    }
+                };
+
+            case Context.STORAGE_SERVICE:
+                return new CachedServiceFetcher<StorageManager>(index) {
+                    @Override
+                    public StorageManager createService(ContextImpl ctx) {
+                        return new StorageManager(ctx, ctx.mMainThread.getHandler().getLooper());
+                    }
+                };
+
+            case Context.TELEPHONY_SERVICE:
+                return new CachedServiceFetcher<TelephonyManager>(index) {
+                    @Override
+                    public TelephonyManager createService(ContextImpl ctx) {
+                        return new TelephonyManager(ctx.getOuterContext());
+                    }
+                };
+
+            case Context.TELEPHONY_SUBSCRIPTION_SERVICE:
+                return new CachedServiceFetcher<SubscriptionManager>(index) {
+                    @Override
+                    public SubscriptionManager createService(ContextImpl ctx) {
+                        return new SubscriptionManager(ctx.getOuterContext());
+                    }
+                };
+
+            case Context.CARRIER_CONFIG_SERVICE:
+                return new CachedServiceFetcher<CarrierConfigManager>(index) {
+                    @Override
+                    public CarrierConfigManager createService(ContextImpl ctx) {
+                        return new CarrierConfigManager();
+                    }
+                };
+
+            case Context.TELECOM_SERVICE:
+                return new CachedServiceFetcher<TelecomManager>(index) {
+                    @Override
+                    public TelecomManager createService(ContextImpl ctx) {
+                        return new TelecomManager(ctx.getOuterContext());
+                    }
+                };
+
+            case Context.UI_MODE_SERVICE:
+                return new CachedServiceFetcher<UiModeManager>(index) {
+                    @Override
+                    public UiModeManager createService(ContextImpl ctx) {
+                        return new UiModeManager();
+                    }
+                };
+
+            case Context.USB_SERVICE:
+                return new CachedServiceFetcher<UsbManager>(index) {
+                    @Override
+                    public UsbManager createService(ContextImpl ctx) {
+                        IBinder b = ServiceManager.getService(Context.USB_SERVICE);
+                        return new UsbManager(ctx, IUsbManager.Stub.asInterface(b));
+                    }
+                };
+
+            case Context.SERIAL_SERVICE:
+                return new CachedServiceFetcher<SerialManager>(index) {
+                    @Override
+                    public SerialManager createService(ContextImpl ctx) {
+                        IBinder b = ServiceManager.getService(Context.SERIAL_SERVICE);
+                        return new SerialManager(ctx, ISerialManager.Stub.asInterface(b));
+                    }
+                };
+
+            case Context.VIBRATOR_SERVICE:
+                return new CachedServiceFetcher<Vibrator>(index) {
+                    @Override
+                    public Vibrator createService(ContextImpl ctx) {
+                        return new SystemVibrator(ctx);
+                    }
+                };
+
+            case Context.WALLPAPER_SERVICE:
+                return new CachedServiceFetcher<WallpaperManager>(index) {
+                    @Override
+                    public WallpaperManager createService(ContextImpl ctx) {
+                        return new WallpaperManager(ctx.getOuterContext(),
+                                ctx.mMainThread.getHandler());
+                    }
+                };
+
+            case Context.WIFI_SERVICE:
+                return new CachedServiceFetcher<WifiManager>(index) {
+                    @Override
+                    public WifiManager createService(ContextImpl ctx) {
+                        IBinder b = ServiceManager.getService(Context.WIFI_SERVICE);
+                        IWifiManager service = IWifiManager.Stub.asInterface(b);
+                        return new WifiManager(ctx.getOuterContext(), service,
+                                ConnectivityThread.getInstanceLooper());
+                    }
+                };
+
+            case Context.WIFI_P2P_SERVICE:
+                return new StaticServiceFetcher<WifiP2pManager>() {
+                    @Override
+                    public WifiP2pManager createService() {
+                        IBinder b = ServiceManager.getService(Context.WIFI_P2P_SERVICE);
+                        IWifiP2pManager service = IWifiP2pManager.Stub.asInterface(b);
+                        return new WifiP2pManager(service);
+                    }
+                };
+
+            case Context.WIFI_NAN_SERVICE:
+                return new StaticServiceFetcher<WifiNanManager>() {
+                    @Override
+                    public WifiNanManager createService() {
+                        IBinder b = ServiceManager.getService(Context.WIFI_NAN_SERVICE);
+                        IWifiNanManager service = IWifiNanManager.Stub.asInterface(b);
+                        if (service == null) {
+                            return null;
+                        }
+                        return new WifiNanManager(service);
+                    }
+                };
+
+            case Context.WIFI_SCANNING_SERVICE:
+                return new CachedServiceFetcher<WifiScanner>(index) {
+                    @Override
+                    public WifiScanner createService(ContextImpl ctx) {
+                        IBinder b = ServiceManager.getService(Context.WIFI_SCANNING_SERVICE);
+                        IWifiScanner service = IWifiScanner.Stub.asInterface(b);
+                        return new WifiScanner(ctx.getOuterContext(), service,
+                                ConnectivityThread.getInstanceLooper());
+                    }
+                };
+
+            case Context.WIFI_RTT_SERVICE:
+                return new CachedServiceFetcher<RttManager>(index) {
+                    @Override
+                    public RttManager createService(ContextImpl ctx) {
+                        IBinder b = ServiceManager.getService(Context.WIFI_RTT_SERVICE);
+                        IRttManager service = IRttManager.Stub.asInterface(b);
+                        return new RttManager(ctx.getOuterContext(), service,
+                                ConnectivityThread.getInstanceLooper());
+                    }
+                };
+
+            case Context.ETHERNET_SERVICE:
+                return new CachedServiceFetcher<EthernetManager>(index) {
+                    @Override
+                    public EthernetManager createService(ContextImpl ctx) {
+                        IBinder b = ServiceManager.getService(Context.ETHERNET_SERVICE);
+                        IEthernetManager service = IEthernetManager.Stub.asInterface(b);
+                        return new EthernetManager(ctx.getOuterContext(), service);
+                    }
+                };
+
+            case Context.WINDOW_SERVICE:
+                return new CachedServiceFetcher<WindowManager>(index) {
+                    @Override
+                    public WindowManager createService(ContextImpl ctx) {
+                        return new WindowManagerImpl(ctx);
+                    }
+                };
+
+            case Context.USER_SERVICE:
+                return new CachedServiceFetcher<UserManager>(index) {
+                    @Override
+                    public UserManager createService(ContextImpl ctx) {
+                        IBinder b = ServiceManager.getService(Context.USER_SERVICE);
+                        IUserManager service = IUserManager.Stub.asInterface(b);
+                        return new UserManager(ctx, service);
+                    }
+                };
+
+            case Context.APP_OPS_SERVICE:
+                return new CachedServiceFetcher<AppOpsManager>(index) {
+                    @Override
+                    public AppOpsManager createService(ContextImpl ctx) {
+                        IBinder b = ServiceManager.getService(Context.APP_OPS_SERVICE);
+                        IAppOpsService service = IAppOpsService.Stub.asInterface(b);
+                        return new AppOpsManager(ctx, service);
+                    }
+                };
+
+            case Context.CAMERA_SERVICE:
+                return new CachedServiceFetcher<CameraManager>(index) {
+                    @Override
+                    public CameraManager createService(ContextImpl ctx) {
+                        return new CameraManager(ctx);
+                    }
+                };
+
+            case Context.LAUNCHER_APPS_SERVICE:
+                return new CachedServiceFetcher<LauncherApps>(index) {
+                    @Override
+                    public LauncherApps createService(ContextImpl ctx) {
+                        return new LauncherApps(ctx);
+                    }
+                };
+
+            case Context.RESTRICTIONS_SERVICE:
+                return new CachedServiceFetcher<RestrictionsManager>(index) {
+                    @Override
+                    public RestrictionsManager createService(ContextImpl ctx) {
+                        IBinder b = ServiceManager.getService(Context.RESTRICTIONS_SERVICE);
+                        IRestrictionsManager service = IRestrictionsManager.Stub.asInterface(b);
+                        return new RestrictionsManager(ctx, service);
+                    }
+                };
+
+            case Context.PRINT_SERVICE:
+                return new CachedServiceFetcher<PrintManager>(index) {
+                    @Override
+                    public PrintManager createService(ContextImpl ctx) {
+                        IBinder iBinder = ServiceManager.getService(Context.PRINT_SERVICE);
+                        IPrintManager service = IPrintManager.Stub.asInterface(iBinder);
+                        return new PrintManager(ctx.getOuterContext(), service,
+                                UserHandle.myUserId(), UserHandle.getAppId(Process.myUid()));
+                    }
+                };
+
+            case Context.CONSUMER_IR_SERVICE:
+                return new CachedServiceFetcher<ConsumerIrManager>(index) {
+                    @Override
+                    public ConsumerIrManager createService(ContextImpl ctx) {
+                        return new ConsumerIrManager(ctx);
+                    }
+                };
+
+            case Context.MEDIA_SESSION_SERVICE:
+                return new CachedServiceFetcher<MediaSessionManager>(index) {
+                    @Override
+                    public MediaSessionManager createService(ContextImpl ctx) {
+                        return new MediaSessionManager(ctx);
+                    }
+                };
+
+            case Context.TRUST_SERVICE:
+                return new StaticServiceFetcher<TrustManager>() {
+                    @Override
+                    public TrustManager createService() {
+                        IBinder b = ServiceManager.getService(Context.TRUST_SERVICE);
+                        return new TrustManager(b);
+                    }
+                };
+
+            case Context.FINGERPRINT_SERVICE:
+                return new CachedServiceFetcher<FingerprintManager>(index) {
+                    @Override
+                    public FingerprintManager createService(ContextImpl ctx) {
+                        IBinder binder = ServiceManager.getService(Context.FINGERPRINT_SERVICE);
+                        IFingerprintService service = IFingerprintService.Stub.asInterface(binder);
+                        return new FingerprintManager(ctx.getOuterContext(), service);
+                    }
+                };
+
+            case Context.TV_INPUT_SERVICE:
+                return new StaticServiceFetcher<TvInputManager>() {
+                    @Override
+                    public TvInputManager createService() {
+                        IBinder iBinder = ServiceManager.getService(Context.TV_INPUT_SERVICE);
+                        ITvInputManager service = ITvInputManager.Stub.asInterface(iBinder);
+                        return new TvInputManager(service, UserHandle.myUserId());
+                    }
+                };
+
+            case Context.NETWORK_SCORE_SERVICE:
+                return new CachedServiceFetcher<NetworkScoreManager>(index) {
+                    @Override
+                    public NetworkScoreManager createService(ContextImpl ctx) {
+                        return new NetworkScoreManager(ctx);
+                    }
+                };
+
+            case Context.USAGE_STATS_SERVICE:
+                return new CachedServiceFetcher<UsageStatsManager>(index) {
+                    @Override
+                    public UsageStatsManager createService(ContextImpl ctx) {
+                        IBinder iBinder = ServiceManager.getService(Context.USAGE_STATS_SERVICE);
+                        IUsageStatsManager service = IUsageStatsManager.Stub.asInterface(iBinder);
+                        return new UsageStatsManager(ctx.getOuterContext(), service);
+                    }
+                };
+
+            case Context.NETWORK_STATS_SERVICE:
+                return new CachedServiceFetcher<NetworkStatsManager>(index) {
+                    @Override
+                    public NetworkStatsManager createService(ContextImpl ctx) {
+                        return new NetworkStatsManager(ctx.getOuterContext());
+                    }
+                };
+
+            case Context.JOB_SCHEDULER_SERVICE:
+                return new StaticServiceFetcher<JobScheduler>() {
+                    @Override
+                    public JobScheduler createService() {
+                        IBinder b = ServiceManager.getService(Context.JOB_SCHEDULER_SERVICE);
+                        return new JobSchedulerImpl(IJobScheduler.Stub.asInterface(b));
+                    }
+                };
+
+            case Context.PERSISTENT_DATA_BLOCK_SERVICE:
+                return new StaticServiceFetcher<PersistentDataBlockManager>() {
+                    @Override
+                    public PersistentDataBlockManager createService() {
+                        IBinder b = ServiceManager.getService(
+                                Context.PERSISTENT_DATA_BLOCK_SERVICE);
+                        IPersistentDataBlockService persistentDataBlockService =
+                                IPersistentDataBlockService.Stub.asInterface(b);
+                        if (persistentDataBlockService != null) {
+                            return new PersistentDataBlockManager(persistentDataBlockService);
+                        } else {
+                            // not supported
+                            return null;
+                        }
+                    }
+                };
+
+            case Context.MEDIA_PROJECTION_SERVICE:
+                return new CachedServiceFetcher<MediaProjectionManager>(index) {
+                    @Override
+                    public MediaProjectionManager createService(ContextImpl ctx) {
+                        return new MediaProjectionManager(ctx);
+                    }
+                };
+
+            case Context.APPWIDGET_SERVICE:
+                return new CachedServiceFetcher<AppWidgetManager>(index) {
+                    @Override
+                    public AppWidgetManager createService(ContextImpl ctx) {
+                        IBinder b = ServiceManager.getService(Context.APPWIDGET_SERVICE);
+                        return new AppWidgetManager(ctx, IAppWidgetService.Stub.asInterface(b));
+                    }
+                };
+
+            case Context.MIDI_SERVICE:
+                return new CachedServiceFetcher<MidiManager>(index) {
+                    @Override
+                    public MidiManager createService(ContextImpl ctx) {
+                        IBinder b = ServiceManager.getService(Context.MIDI_SERVICE);
+                        if (b == null) {
+                            return null;
+                        }
+                        return new MidiManager(IMidiManager.Stub.asInterface(b));
+                    }
+                };
+
+            case Context.RADIO_SERVICE:
+                return new CachedServiceFetcher<RadioManager>(index) {
+                    @Override
+                    public RadioManager createService(ContextImpl ctx) {
+                        return new RadioManager(ctx);
+                    }
+                };
+
+            case Context.HARDWARE_PROPERTIES_SERVICE:
+                return new CachedServiceFetcher<HardwarePropertiesManager>(index) {
+                    @Override
+                    public HardwarePropertiesManager createService(ContextImpl ctx) {
+                        IBinder b = ServiceManager.getService(
+                                Context.HARDWARE_PROPERTIES_SERVICE);
+                        IHardwarePropertiesManager service =
+                                IHardwarePropertiesManager.Stub.asInterface(b);
+                        if (service == null) {
+                            Log.wtf(TAG, "Failed to get hardwareproperties service.");
+                            return null;
+                        }
+                        return new HardwarePropertiesManager(ctx, service);
+                    }
+                };
+
+            case Context.SOUND_TRIGGER_SERVICE:
+                return new CachedServiceFetcher<SoundTriggerManager>(index) {
+                    @Override
+                    public SoundTriggerManager createService(ContextImpl ctx) {
+                        IBinder b = ServiceManager.getService(Context.SOUND_TRIGGER_SERVICE);
+                        return new SoundTriggerManager(ctx,
+                                ISoundTriggerService.Stub.asInterface(b));
+                    }
+                };
+
+            case Context.SHORTCUT_SERVICE:
+                return new CachedServiceFetcher<ShortcutManager>(index) {
+                    @Override
+                    public ShortcutManager createService(ContextImpl ctx) {
+                        return new ShortcutManager(ctx);
+                    }
+                };
+
+            case Context.SYSTEM_HEALTH_SERVICE:
+                return new CachedServiceFetcher<SystemHealthManager>(index) {
+                    @Override
+                    public SystemHealthManager createService(ContextImpl ctx) {
+                        return new SystemHealthManager();
+                    }
+                };
+
+            case Context.CONTEXTHUB_SERVICE:
+                return new CachedServiceFetcher<ContextHubManager>(index) {
+                    @Override
+                    public ContextHubManager createService(ContextImpl ctx) {
+                        return new ContextHubManager(ctx.getOuterContext(),
+                          ctx.mMainThread.getHandler().getLooper());
+                    }
+                };
+
+            default:
+                throw new IllegalArgumentException("No fetcher for service "
+                        + SERVICES[index * 2]);
+        }
     }
 
     /**
      * Creates an array which is used to cache per-Context service instances.
      */
     public static Object[] createServiceCache() {
-        return new Object[sServiceCacheSize];
+        return new Object[sServiceFetchers.length];
     }
 
     /**
      * Gets a system service from a given context.
      */
     public static Object getSystemService(ContextImpl ctx, String name) {
-        ServiceFetcher<?> fetcher = SYSTEM_SERVICE_FETCHERS.get(name);
-        return fetcher != null ? fetcher.getService(ctx) : null;
+        return getSystemService(ctx, getSystemServiceIndex(name));
+    }
+
+    /**
+     * Gets a system service from a given context by its index. Callers that
+     * look up a service repeatedly can resolve the index once with
+     * {@link #getSystemServiceIndex} and skip the name lookup.
+     */
+    public static Object getSystemService(ContextImpl ctx, int index) {
+        final ServiceFetcher<?>[] fetchers = sServiceFetchers;
+        if (index < 0 || index >= fetchers.length) {
+            return null;
+        }
+        // Fetchers are immutable apart from state guarded by their own locks,
+        // so reading one without the lock either sees it whole or sees null.
+        ServiceFetcher<?> fetcher = fetchers[index];
+        if (fetcher == null) {
+            synchronized (fetchers) {
+                fetcher = fetchers[index];
+                if (fetcher == null) {
+                    fetcher = createFetcher(index);
+                    fetchers[index] = fetcher;
+                }
+            }
+        }
+        return fetcher.getService(ctx);
+    }
+
+    /**
+     * Gets the index of a system service, which stays the same for the
+     * lifetime of the process.
+     *
+     * @return The index or {@link #SERVICE_INDEX_UNKNOWN} if there is no such service.
+     */
+    public static int getSystemServiceIndex(String name) {
+        if (name == null) {
+            return SERVICE_INDEX_UNKNOWN;
+        }
+        final String[] table = sNameTable;
+        final int mask = table.length - 1;
+        int slot = nameTableSlot(name.hashCode(), sNameTableSeed);
+        while (true) {
+            final String candidate = table[slot];
+            if (candidate == null) {
+                return SERVICE_INDEX_UNKNOWN;
+            }
+            // Callers almost always pass the interned Context constant.
+            if (candidate == name || candidate.equals(name)) {
+                return sNameTableIndices[slot];
+            }
+            slot = (slot + 1) & mask;
+        }
     }
 
     /**
      * Gets the name of the system-level service that is represented by the specified class.
      */
     public static String getSystemServiceName(Class<?> serviceClass) {
-        return SYSTEM_SERVICE_NAMES.get(serviceClass);
+        return ServiceNamesHolder.NAMES_BY_CLASS_NAME.get(serviceClass.getName());
+    }
+
+    /**
+     * Holds the service names by class name, which the class loader builds on
+     * first use. The map is not modified afterwards, so lookups need no lock.
+     */
+    private static final class ServiceNamesHolder {
+        static final HashMap<String, String> NAMES_BY_CLASS_NAME = buildNamesByClassName();
+
+        private static HashMap<String, String> buildNamesByClassName() {
+            final int count = SERVICES.length / 2;
+            final HashMap<String, String> names = new HashMap<String, String>(count + 1);
+            for (int i = 0; i < count; i++) {
+                names.put(SERVICES[i * 2 + 1], SERVICES[i * 2]);
+            }
+            // The clipboard service moved to a new package.  If someone asks for the old
+            // interface by class then we want to redirect over to the new interface instead
+            // (which extends it).
+            names.put("android.text.ClipboardManager", Context.CLIPBOARD_SERVICE);
+            return names;
+        }
     }
 
     /**
-     * Statically registers a system service with the context.
-     * This method must be called during static initialization only.
+     * Builds the lookup tables of the services. Only the names are needed, the
+     * fetchers are created when a service is first requested.
      */
-    private static <T> void registerService(String serviceName, Class<T> serviceClass,
-            ServiceFetcher<T> serviceFetcher) {
-        SYSTEM_SERVICE_NAMES.put(serviceClass, serviceName);
-        SYSTEM_SERVICE_FETCHERS.put(serviceName, serviceFetcher);
+    private static void buildServiceTables() {
+        final int count = SERVICES.length / 2;
+        sServiceFetchers = new ServiceFetcher<?>[count];
+
+        final String[] table = new String[1 << NAME_TABLE_BITS];
+        final int[] indices = new int[table.length];
+        final int mask = table.length - 1;
+        final boolean[] used = new boolean[table.length];
+        int seed = NAME_TABLE_SEED;
+        if (hasCollisions(seed, used)) {
+            // The services changed without updating the seed. Search for a
+            // multiplier that maps all names to distinct slots, which takes a
+            // few hundred attempts. If none is found lookups probe linearly.
+            Log.w(TAG, "NAME_TABLE_SEED is out of date, searching for a new one");
+            seed = 0x9E3779B1;
+            for (int attempt = 0; attempt < NAME_TABLE_MAX_SEED_ATTEMPTS; attempt++) {
+                if (!hasCollisions(seed, used)) {
+                    break;
+                }
+                seed = (seed + 0x6A09E668) | 1;
+            }
+        }
+        for (int i = 0; i < count; i++) {
+            final String name = SERVICES[i * 2];
+            int slot = nameTableSlot(name.hashCode(), seed);
+            while (table[slot] != null) {
+                slot = (slot + 1) & mask;
+            }
+            table[slot] = name;
+            indices[slot] = i;
+        }
+        sNameTable = table;
+        sNameTableIndices = indices;
+        sNameTableSeed = seed;
+    }
+
+    private static boolean hasCollisions(int seed, boolean[] used) {
+        Arrays.fill(used, false);
+        for (int i = 0; i < SERVICES.length; i += 2) {
+            final int slot = nameTableSlot(SERVICES[i].hashCode(), seed);
+            if (used[slot]) {
+                return true;
+            }
+            used[slot] = true;
+        }
+        return false;
+    }
+
+    private static int nameTableSlot(int hash, int seed) {
+        return (hash * seed) >>> (Integer.SIZE - NAME_TABLE_BITS);
     }
 
     /**
      * Base interface for classes that fetch services.
-     * These objects must only be created during static initialization.
+     * These objects must only be created by {@link #createFetcher}.
      */
     static abstract interface ServiceFetcher<T> {
         T getService(ContextImpl ctx);
@@ -824,20 +1140,38 @@ final class SystemServiceRegistry {
     static abstract class CachedServiceFetcher<T> implements ServiceFetcher<T> {
         private final int mCacheIndex;
 
-        public CachedServiceFetcher() {
-            mCacheIndex = sServiceCacheSize++;
+        public CachedServiceFetcher(int cacheIndex) {
+            mCacheIndex = cacheIndex;
         }
 
         @Override
         @SuppressWarnings("unchecked")
         public final T getService(ContextImpl ctx) {
             final Object[] cache = ctx.mServiceCache;
+            // Fast path: the slot is read without a lock and the service through
+            // its volatile field. A slot seen before it is fully published has a
+            // null service and takes the slow path.
+            CacheSlot slot = (CacheSlot) cache[mCacheIndex];
+            if (slot != null) {
+                final Object service = slot.mService;
+                if (service != null) {
+                    return (T)service;
+                }
+            }
             synchronized (cache) {
-                // Fetch or create the service.
-                Object service = cache[mCacheIndex];
+                slot = (CacheSlot) cache[mCacheIndex];
+                if (slot == null) {
+                    slot = new CacheSlot();
+                    cache[mCacheIndex] = slot;
+                }
+            }
+            // Create the service holding only the lock of its slot, so creating
+            // one service does not block lookups of the others.
+            synchronized (slot) {
+                Object service = slot.mService;
                 if (service == null) {
                     service = createService(ctx);
-                    cache[mCacheIndex] = service;
+                    slot.mService = service;
                 }
                 return (T)service;
             }
@@ -846,6 +1180,13 @@ final class SystemServiceRegistry {
         public abstract T createService(ContextImpl ctx);
     }
 
+    /**
+     * Entry of the per-Context service cache.
+     */
+    private static final class CacheSlot {
+        volatile Object mService;
+    }
+
     /**
      * Override this class when the system service does not need a ContextImpl
      * and should be cached and retained process-wide.
@@ -2651,6 +2651,7 @@ public abstract class Context {
             ALARM_SERVICE,
             NOTIFICATION_SERVICE,
             ACCESSIBILITY_SERVICE,
+            //@hide: DATA_COLLECTION_SERVICE,
             CAPTIONING_SERVICE,
             KEYGUARD_SERVICE,
             LOCATION_SERVICE,
@@ -2985,6 +2986,17 @@ public abstract class Context {
      */
     public static final String ACCESSIBILITY_SERVICE = "accessibility";
 
+    /**
+     * Use with {@link #getSystemService} to retrieve a
+     * {@link android.view.accessibility.DataCollectionManager} for reading the
+     * accessibility events recorded by the system.
+     *
+     * @see #getSystemService
+     * @see android.view.accessibility.DataCollectionManager
+     * @hide
+     */
+    public static final String DATA_COLLECTION_SERVICE = "datacollection";
+
     /**
      * Use with {@link #getSystemService} to retrieve a
      * {@link android.view.accessibility.CaptioningManager} for obtaining
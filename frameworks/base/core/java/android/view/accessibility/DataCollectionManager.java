@@ -0,0 +1,599 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.view.accessibility;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.MemoryFile;
+import android.os.ParcelFileDescriptor;
+import android.os.RemoteException;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.FileDescriptor;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Reads the accessibility events recorded by the system. Events are fetched
+ * in batches that are transferred through a shared memory region, so reading
+ * a whole session costs a handful of Binder transactions.
+ * <p>
+ * To obtain a handle call {@link Context#getSystemService(String)} with
+ * {@link Context#DATA_COLLECTION_SERVICE}.
+ * </p>
+ *
+ * @hide
+ */
+public final class DataCollectionManager {
+
+    private static final String LOG_TAG = "DataCollectionManager";
+
+    /** Version of the batch encoding written by the system. */
+    public static final int BATCH_VERSION = 2;
+
+    /** Default maximal number of events fetched in one batch. */
+    public static final int DEFAULT_BATCH_SIZE = 512;
+
+    /** Package or class name id of events without one. */
+    public static final int PACKAGE_ID_UNKNOWN = -1;
+
+    /*
+     * Layout of an event stream. The shared memory starts with a header of
+     * the magic, the version and the ring capacity in bytes, followed by the
+     * ring. Every record starts with its length, which is a multiple of
+     * STREAM_RECORD_ALIGNMENT, followed by the event type, the event time,
+     * the window id and the package name, class name and text as a two byte
+     * length and UTF-8 bytes. A record never wraps around the end of the
+     * ring, instead STREAM_RECORD_WRAP marks that the next record is at the
+     * start. All numbers are big-endian.
+     */
+
+    public static final int STREAM_MAGIC = 0x61313173; // "a11s"
+
+    public static final int STREAM_VERSION = 1;
+
+    public static final int STREAM_HEADER_SIZE = 16;
+
+    public static final int STREAM_RECORD_HEADER_SIZE = 4;
+
+    public static final int STREAM_RECORD_ALIGNMENT = 8;
+
+    public static final int STREAM_RECORD_WRAP = -1;
+
+    public static final int STREAM_MAX_RECORD_SIZE = 4096;
+
+    /** Smallest supported event stream capacity in bytes. */
+    public static final int STREAM_MIN_CAPACITY = 16 * 1024;
+
+    /** Largest supported event stream capacity in bytes. */
+    public static final int STREAM_MAX_CAPACITY = 4 * 1024 * 1024;
+
+    private static final int BATCH_READ_BUFFER_SIZE = 4096;
+
+    // A record with empty strings, its type, time, window id and string lengths.
+    private static final int MIN_RECORD_SIZE = STREAM_RECORD_HEADER_SIZE + 22;
+
+    private final IDataCollectionManager mService;
+
+    /**
+     * Creates a new instance.
+     *
+     * @param service The backing system service.
+     */
+    public DataCollectionManager(IDataCollectionManager service) {
+        mService = service;
+    }
+
+    /**
+     * Reads the events recorded up to this call starting at a sequence number.
+     * Events that were overwritten before being read are skipped, which is
+     * visible as a gap in the sequence numbers. Events recorded while reading
+     * are left for the next call, so this returns even under steady load.
+     *
+     * @param fromSequence The sequence number of the first event to read.
+     * @return The events ordered by sequence number.
+     */
+    public List<RecordedEvent> readEvents(long fromSequence) {
+        // Recording times are uptime, so they tell which events came after this call.
+        final long endTime = SystemClock.uptimeMillis();
+        List<RecordedEvent> events = new ArrayList<>();
+        while (true) {
+            List<RecordedEvent> batch = readEvents(fromSequence, DEFAULT_BATCH_SIZE);
+            final int batchSize = batch.size();
+            for (int i = 0; i < batchSize; i++) {
+                final RecordedEvent event = batch.get(i);
+                if (event.getTime() > endTime) {
+                    return events;
+                }
+                events.add(event);
+            }
+            if (batchSize < DEFAULT_BATCH_SIZE) {
+                return events;
+            }
+            fromSequence = batch.get(batchSize - 1).getSequence() + 1;
+        }
+    }
+
+    /**
+     * Reads a batch of recorded events.
+     *
+     * @param fromSequence The sequence number of the first event to read.
+     * @param maxCount The maximal number of events to read.
+     * @return The events ordered by sequence number.
+     */
+    public List<RecordedEvent> readEvents(long fromSequence, int maxCount) {
+        if (mService == null) {
+            return Collections.emptyList();
+        }
+        final ParcelFileDescriptor pfd;
+        try {
+            pfd = mService.readEvents(fromSequence, maxCount);
+        } catch (RemoteException re) {
+            throw re.rethrowFromSystemServer();
+        }
+        if (pfd == null) {
+            return Collections.emptyList();
+        }
+        MemoryFile memoryFile = null;
+        try {
+            final FileDescriptor fd = pfd.getFileDescriptor();
+            memoryFile = new MemoryFile(fd, MemoryFile.getSize(fd), "r");
+            // Decode from the shared memory through a small buffer rather than
+            // copying the whole batch first.
+            return readBatch(new DataInputStream(new BufferedInputStream(
+                    memoryFile.getInputStream(), BATCH_READ_BUFFER_SIZE)));
+        } catch (IOException ioe) {
+            Log.e(LOG_TAG, "Error reading recorded events", ioe);
+            return Collections.emptyList();
+        } finally {
+            if (memoryFile != null) {
+                memoryFile.close();
+            }
+            try {
+                pfd.close();
+            } catch (IOException ioe) {
+                /* ignore */
+            }
+        }
+    }
+
+    /**
+     * Starts streaming events as they reach the system. Only one stream can be
+     * open at a time, opening a new one closes the previous one.
+     *
+     * @param capacity The size of the shared ring in bytes. Events that arrive
+     *     while the ring is full are dropped.
+     * @param callback Called when new events can be read from the stream.
+     * @param handler The handler on which to call the callback.
+     * @return The stream or null if it could not be opened.
+     */
+    public EventStream openEventStream(int capacity, EventStream.Callback callback,
+            Handler handler) {
+        if (mService == null) {
+            return null;
+        }
+        final EventStream stream = new EventStream(mService, callback, handler);
+        final ParcelFileDescriptor pfd;
+        try {
+            pfd = mService.openEventStream(capacity, stream.mListener);
+        } catch (RemoteException re) {
+            throw re.rethrowFromSystemServer();
+        }
+        if (pfd == null) {
+            return null;
+        }
+        try {
+            stream.map(pfd);
+            return stream;
+        } catch (IOException ioe) {
+            Log.e(LOG_TAG, "Error mapping event stream", ioe);
+            stream.close();
+            return null;
+        }
+    }
+
+    /**
+     * Decodes a batch of events. The encoding is the batch version, the number
+     * of package and class names used by the batch followed by the names in
+     * modified UTF-8, the number of events and for each event its sequence,
+     * time, type, window id, package name id, class name id, fan-out and drop
+     * reason. The name ids are indices into the names of the batch.
+     */
+    private static List<RecordedEvent> readBatch(DataInputStream in) throws IOException {
+        final int version = in.readInt();
+        if (version != BATCH_VERSION) {
+            throw new IOException("Unsupported batch version " + version);
+        }
+        final int nameCount = in.readInt();
+        final String[] names = new String[nameCount];
+        for (int i = 0; i < nameCount; i++) {
+            names[i] = in.readUTF();
+        }
+        final int count = in.readInt();
+        List<RecordedEvent> events = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            RecordedEvent event = new RecordedEvent();
+            event.mSequence = in.readLong();
+            event.mTime = in.readLong();
+            event.mEventType = in.readInt();
+            event.mWindowId = in.readInt();
+            final int packageId = in.readInt();
+            event.mPackageName = (packageId != PACKAGE_ID_UNKNOWN) ? names[packageId] : null;
+            final int classId = in.readInt();
+            event.mClassName = (classId != PACKAGE_ID_UNKNOWN) ? names[classId] : null;
+            event.mFanOut = in.readShort();
+            event.mDropReason = in.readByte();
+            events.add(event);
+        }
+        return events;
+    }
+
+    /**
+     * An accessibility event as recorded when it reached the system.
+     */
+    public static final class RecordedEvent {
+        private long mSequence;
+        private long mTime;
+        private int mEventType;
+        private int mWindowId;
+        private String mPackageName;
+        private String mClassName;
+        private int mFanOut;
+        private int mDropReason;
+
+        RecordedEvent() {
+            /* do nothing - reduce visibility */
+        }
+
+        /**
+         * @return The sequence number, increasing by one for each recorded event.
+         */
+        public long getSequence() {
+            return mSequence;
+        }
+
+        /**
+         * @return When the event reached the system in the
+         *     {@link android.os.SystemClock#uptimeMillis()} time base.
+         */
+        public long getTime() {
+            return mTime;
+        }
+
+        /**
+         * @return The {@link AccessibilityEvent} type.
+         */
+        public int getEventType() {
+            return mEventType;
+        }
+
+        public int getWindowId() {
+            return mWindowId;
+        }
+
+        /**
+         * @return The source package or null if not known.
+         */
+        public String getPackageName() {
+            return mPackageName;
+        }
+
+        /**
+         * @return The source class or null if not known.
+         */
+        public String getClassName() {
+            return mClassName;
+        }
+
+        /**
+         * @return The number of services the event was dispatched to.
+         */
+        public int getFanOut() {
+            return mFanOut;
+        }
+
+        /**
+         * @return Why the event was not dispatched or zero if it was.
+         */
+        public int getDropReason() {
+            return mDropReason;
+        }
+
+        @Override
+        public String toString() {
+            return "RecordedEvent[sequence=" + mSequence + ", time=" + mTime
+                    + ", type=" + AccessibilityEvent.eventTypeToString(mEventType)
+                    + ", windowId=" + mWindowId + ", package=" + mPackageName
+                    + ", class=" + mClassName
+                    + ", fanOut=" + mFanOut + ", dropReason=" + mDropReason + "]";
+        }
+    }
+
+    /**
+     * Events streamed by the system through a shared memory ring. Events are
+     * decoded straight from the mapping of the ring and the space is handed
+     * back to the system once they are read.
+     */
+    public static final class EventStream {
+
+        /**
+         * Callback for new events in a stream.
+         */
+        public interface Callback {
+            void onEventsAvailable(EventStream stream);
+        }
+
+        private final IDataCollectionManager mService;
+
+        private final Callback mCallback;
+
+        private final Handler mHandler;
+
+        private final IAccessibilityEventStreamListener.Stub mListener =
+                new IAccessibilityEventStreamListener.Stub() {
+            @Override
+            public void onEventsAvailable(long head, long droppedCount) {
+                synchronized (EventStream.this) {
+                    mHead = head;
+                    mDroppedCount = droppedCount;
+                }
+                mHandler.post(mNotifyCallback);
+            }
+        };
+
+        private final Runnable mNotifyCallback = new Runnable() {
+            @Override
+            public void run() {
+                mCallback.onEventsAvailable(EventStream.this);
+            }
+        };
+
+        private ParcelFileDescriptor mFileDescriptor;
+
+        private MemoryFile mMemoryFile;
+
+        private int mCapacity;
+
+        private byte[] mBuffer;
+
+        private long mHead;
+
+        private long mTail;
+
+        private long mDroppedCount;
+
+        EventStream(IDataCollectionManager service, Callback callback, Handler handler) {
+            mService = service;
+            mCallback = callback;
+            mHandler = handler;
+        }
+
+        void map(ParcelFileDescriptor pfd) throws IOException {
+            mFileDescriptor = pfd;
+            final FileDescriptor fd = pfd.getFileDescriptor();
+            mMemoryFile = new MemoryFile(fd, MemoryFile.getSize(fd), "r");
+            final byte[] header = new byte[STREAM_HEADER_SIZE];
+            mMemoryFile.readBytes(header, 0, 0, STREAM_HEADER_SIZE);
+            if (getInt(header, 0) != STREAM_MAGIC || getInt(header, 4) != STREAM_VERSION) {
+                throw new IOException("Unsupported event stream");
+            }
+            mCapacity = getInt(header, 8);
+            if (mCapacity < STREAM_MIN_CAPACITY || mCapacity > STREAM_MAX_CAPACITY
+                    || mCapacity % STREAM_RECORD_ALIGNMENT != 0
+                    || STREAM_HEADER_SIZE + mCapacity > mMemoryFile.length()) {
+                throw new IOException("Invalid event stream capacity " + mCapacity);
+            }
+            mBuffer = new byte[mCapacity];
+        }
+
+        /**
+         * @return The number of events dropped by the system because the ring was full.
+         */
+        public synchronized long getDroppedCount() {
+            return mDroppedCount;
+        }
+
+        /**
+         * @return Whether the stream was closed, either by calling {@link #close()}
+         *     or because it could not be read.
+         */
+        public synchronized boolean isClosed() {
+            return mMemoryFile == null;
+        }
+
+        /**
+         * Reads all available events and hands their space back to the system.
+         * If the stream cannot be read it is closed, a new one has to be opened
+         * to continue receiving events.
+         *
+         * @param outEvents The list to which to add the events.
+         * @return The number of read events.
+         */
+        public synchronized int readEvents(List<StreamedEvent> outEvents) {
+            if (mMemoryFile == null || mTail == mHead) {
+                return 0;
+            }
+            int count = 0;
+            try {
+                while (mTail < mHead) {
+                    final int start = (int) (mTail % mCapacity);
+                    final int end = (int) Math.min(mCapacity, start + (mHead - mTail));
+                    // Copy the contiguous part of the ring once and decode in place.
+                    mMemoryFile.readBytes(mBuffer, STREAM_HEADER_SIZE + start, start,
+                            end - start);
+                    int offset = start;
+                    while (offset < end) {
+                        if (end - offset < STREAM_RECORD_HEADER_SIZE) {
+                            throw new IOException("Truncated record at " + offset);
+                        }
+                        final int length = getInt(mBuffer, offset);
+                        if (length == STREAM_RECORD_WRAP) {
+                            offset = mCapacity;
+                            break;
+                        }
+                        // The ring is shared memory, never trust a length to make progress.
+                        if (length < MIN_RECORD_SIZE || length > STREAM_MAX_RECORD_SIZE
+                                || length % STREAM_RECORD_ALIGNMENT != 0
+                                || length > end - offset) {
+                            throw new IOException("Invalid record length " + length
+                                    + " at " + offset);
+                        }
+                        outEvents.add(decodeRecord(mBuffer, offset, offset + length));
+                        offset += length;
+                        count++;
+                    }
+                    mTail += offset - start;
+                }
+            } catch (IOException ioe) {
+                // The position in the ring is lost, so the stream cannot recover.
+                // Closing it also stops the system from waiting for an ack.
+                Log.e(LOG_TAG, "Error reading event stream, closing it", ioe);
+                close();
+                return count;
+            }
+            try {
+                mService.ackEventStream(mListener, mTail);
+            } catch (RemoteException re) {
+                throw re.rethrowFromSystemServer();
+            }
+            return count;
+        }
+
+        /**
+         * Stops the stream and releases the shared memory.
+         */
+        public synchronized void close() {
+            try {
+                mService.closeEventStream(mListener);
+            } catch (RemoteException re) {
+                throw re.rethrowFromSystemServer();
+            } finally {
+                if (mMemoryFile != null) {
+                    mMemoryFile.close();
+                    mMemoryFile = null;
+                }
+                if (mFileDescriptor != null) {
+                    try {
+                        mFileDescriptor.close();
+                    } catch (IOException ioe) {
+                        /* ignore */
+                    }
+                    mFileDescriptor = null;
+                }
+            }
+        }
+
+        private static StreamedEvent decodeRecord(byte[] buffer, int offset, int end)
+                throws IOException {
+            StreamedEvent event = new StreamedEvent();
+            offset += STREAM_RECORD_HEADER_SIZE;
+            event.mEventType = getInt(buffer, offset);
+            event.mEventTime = ((long) getInt(buffer, offset + 4) << 32)
+                    | (getInt(buffer, offset + 8) & 0xFFFFFFFFL);
+            event.mWindowId = getInt(buffer, offset + 12);
+            offset += 16;
+            event.mPackageName = getString(buffer, offset, end);
+            offset += 2 + getShort(buffer, offset);
+            event.mClassName = getString(buffer, offset, end);
+            offset += 2 + getShort(buffer, offset);
+            event.mText = getString(buffer, offset, end);
+            return event;
+        }
+
+        private static String getString(byte[] buffer, int offset, int end) throws IOException {
+            if (end - offset < 2) {
+                throw new IOException("Truncated string at " + offset);
+            }
+            final int length = getShort(buffer, offset);
+            if (length > end - offset - 2) {
+                throw new IOException("Invalid string length " + length + " at " + offset);
+            }
+            return new String(buffer, offset + 2, length, StandardCharsets.UTF_8);
+        }
+
+        private static int getInt(byte[] buffer, int offset) {
+            return ((buffer[offset] & 0xFF) << 24) | ((buffer[offset + 1] & 0xFF) << 16)
+                    | ((buffer[offset + 2] & 0xFF) << 8) | (buffer[offset + 3] & 0xFF);
+        }
+
+        private static int getShort(byte[] buffer, int offset) {
+            return ((buffer[offset] & 0xFF) << 8) | (buffer[offset + 1] & 0xFF);
+        }
+    }
+
+    /**
+     * An accessibility event received through an {@link EventStream}.
+     */
+    public static final class StreamedEvent {
+        private int mEventType;
+        private long mEventTime;
+        private int mWindowId;
+        private String mPackageName;
+        private String mClassName;
+        private String mText;
+
+        StreamedEvent() {
+            /* do nothing - reduce visibility */
+        }
+
+        /**
+         * @return The {@link AccessibilityEvent} type.
+         */
+        public int getEventType() {
+            return mEventType;
+        }
+
+        /**
+         * @return The event time as reported by the sender.
+         */
+        public long getEventTime() {
+            return mEventTime;
+        }
+
+        public int getWindowId() {
+            return mWindowId;
+        }
+
+        public String getPackageName() {
+            return mPackageName;
+        }
+
+        public String getClassName() {
+            return mClassName;
+        }
+
+        /**
+         * @return The text of the event with the parts separated by new lines.
+         */
+        public String getText() {
+            return mText;
+        }
+
+        @Override
+        public String toString() {
+            return "StreamedEvent[type=" + AccessibilityEvent.eventTypeToString(mEventType)
+                    + ", time=" + mEventTime + ", windowId=" + mWindowId
+                    + ", package=" + mPackageName + ", class=" + mClassName + "]";
+        }
+    }
+}
@@ -0,0 +1,395 @@
+/*
+ ** Copyright 2016, The Android Open Source Project
+ **
+ ** Licensed under the Apache License, Version 2.0 (the "License");
+ ** you may not use this file except in compliance with the License.
+ ** You may obtain a copy of the License at
+ **
+ **     http://www.apache.org/licenses/LICENSE-2.0
+ **
+ ** Unless required by applicable law or agreed to in writing, software
+ ** distributed under the License is distributed on an "AS IS" BASIS,
+ ** WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ ** See the License for the specific language governing permissions and
+ ** limitations under the License.
+ */
+
+package com.android.server.accessibility;
+
+import android.os.SystemClock;
+import android.util.AtomicFile;
+import android.util.Slog;
+import android.util.SparseIntArray;
+import android.util.TimeUtils;
+import android.view.accessibility.AccessibilityEvent;
+import android.view.accessibility.DataCollectionManager;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+
+/**
+ * Flight recorder of the most recent accessibility events that reached the
+ * accessibility manager. Entries are kept in a ring of preallocated primitive
+ * arrays so recording does not allocate and can be left on all the time.
+ * Package and class names are stored as ids of the {@link NameInternTable},
+ * and copies of the events carry a dictionary of the names they use.
+ */
+final class AccessibilityEventRecorder {
+
+    private static final String LOG_TAG = "AccessibilityEventRecorder";
+
+    /** The event was delivered to the interested services. */
+    public static final int DROP_REASON_NONE = 0;
+
+    /** The event came from a user that is not the current one. */
+    public static final int DROP_REASON_BACKGROUND_USER = 1;
+
+    /** The security policy did not allow dispatching the event. */
+    public static final int DROP_REASON_POLICY = 2;
+
+    private static final String[] DROP_REASON_NAMES = {
+        "none", "background_user", "policy"
+    };
+
+    /** Magic number at the start of saved recordings, followed by a batch. */
+    static final int FILE_MAGIC = 0x61313172; // "a11r"
+
+    private static final int DEFAULT_CAPACITY = 512;
+
+    private final Object mLock = new Object();
+
+    private final int mCapacity;
+
+    private final long[] mSequences;
+
+    private final long[] mTimes;
+
+    private final int[] mEventTypes;
+
+    private final int[] mWindowIds;
+
+    private final int[] mPackageIds;
+
+    private final int[] mClassIds;
+
+    private final short[] mFanOuts;
+
+    private final byte[] mDropReasons;
+
+    private final NameInternTable mNames = NameInternTable.getInstance();
+
+    private long mNextSequence;
+
+    public AccessibilityEventRecorder() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    public AccessibilityEventRecorder(int capacity) {
+        mCapacity = capacity;
+        mSequences = new long[capacity];
+        mTimes = new long[capacity];
+        mEventTypes = new int[capacity];
+        mWindowIds = new int[capacity];
+        mPackageIds = new int[capacity];
+        mClassIds = new int[capacity];
+        mFanOuts = new short[capacity];
+        mDropReasons = new byte[capacity];
+    }
+
+    /**
+     * Records an event.
+     *
+     * @param event The event.
+     * @param fanOut The number of services the event was dispatched to.
+     * @param dropReason Why the event was not dispatched, one of the
+     *     DROP_REASON_* constants.
+     */
+    public void record(AccessibilityEvent event, int fanOut, int dropReason) {
+        final long now = SystemClock.uptimeMillis();
+        // The table does not block, so look up the names before locking.
+        final int packageId = mNames.intern(event.getPackageName());
+        final int classId = mNames.intern(event.getClassName());
+        synchronized (mLock) {
+            final int index = (int) (mNextSequence % mCapacity);
+            mSequences[index] = mNextSequence++;
+            mTimes[index] = now;
+            mEventTypes[index] = event.getEventType();
+            mWindowIds[index] = event.getWindowId();
+            mPackageIds[index] = packageId;
+            mClassIds[index] = classId;
+            mFanOuts[index] = (short) Math.min(fanOut, Short.MAX_VALUE);
+            mDropReasons[index] = (byte) dropReason;
+        }
+    }
+
+    /**
+     * Prints the recorded events from oldest to newest.
+     */
+    public void dump(PrintWriter pw) {
+        synchronized (mLock) {
+            final long now = SystemClock.uptimeMillis();
+            final long first = getFirstSequenceLocked();
+            pw.append("Recent events[recorded=").append(String.valueOf(mNextSequence));
+            pw.append(", capacity=").append(String.valueOf(mCapacity)).println("]");
+            for (long sequence = first; sequence < mNextSequence; sequence++) {
+                final int index = (int) (sequence % mCapacity);
+                pw.append("  #").append(String.valueOf(sequence)).append(' ');
+                TimeUtils.formatDuration(mTimes[index], now, pw);
+                pw.append(' ').append(AccessibilityEvent.eventTypeToString(mEventTypes[index]));
+                pw.append(" window=").append(String.valueOf(mWindowIds[index]));
+                pw.append(" package=").append(getName(mPackageIds[index]));
+                pw.append(" class=").append(getName(mClassIds[index]));
+                pw.append(" fanOut=").append(String.valueOf(mFanOuts[index]));
+                pw.append(" drop=").println(DROP_REASON_NAMES[mDropReasons[index]]);
+            }
+        }
+    }
+
+    /**
+     * Prints one comma separated line per recorded event meant for parsing by tools.
+     */
+    public void dumpCheckin(PrintWriter pw) {
+        synchronized (mLock) {
+            final long first = getFirstSequenceLocked();
+            for (long sequence = first; sequence < mNextSequence; sequence++) {
+                final int index = (int) (sequence % mCapacity);
+                pw.append("evt,");
+                pw.print(sequence);
+                pw.print(',');
+                pw.print(mTimes[index]);
+                pw.print(',');
+                pw.print(mEventTypes[index]);
+                pw.print(',');
+                pw.print(mWindowIds[index]);
+                pw.print(',');
+                pw.append(getName(mPackageIds[index])).append(',');
+                pw.print(mFanOuts[index]);
+                pw.print(',');
+                pw.print(mDropReasons[index]);
+                pw.print(',');
+                pw.println(getName(mClassIds[index]));
+            }
+        }
+    }
+
+    /**
+     * Writes the recorded events to a file. The entries are copied under the
+     * lock and written after releasing it.
+     *
+     * @return The number of written events.
+     */
+    public int saveToFile(File file) throws IOException {
+        final Batch batch = copyBatch(0, mCapacity);
+        AtomicFile atomicFile = new AtomicFile(file);
+        FileOutputStream fos = null;
+        try {
+            fos = atomicFile.startWrite();
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fos));
+            out.writeInt(FILE_MAGIC);
+            batch.writeTo(out);
+            out.flush();
+            atomicFile.finishWrite(fos);
+        } catch (IOException ioe) {
+            Slog.w(LOG_TAG, "Failed to save recorded events to " + file, ioe);
+            atomicFile.failWrite(fos);
+            throw ioe;
+        }
+        return batch.mCount;
+    }
+
+    /**
+     * Reads events written by {@link #saveToFile(File)}.
+     */
+    public static Batch loadFromFile(File file) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(
+                new AtomicFile(file).openRead()))) {
+            final int magic = in.readInt();
+            if (magic != FILE_MAGIC) {
+                throw new IOException("Not a recording of accessibility events");
+            }
+            return Batch.readFrom(in);
+        }
+    }
+
+    /**
+     * Copies up to a number of recorded events starting at a sequence number.
+     * Events that were already overwritten are skipped.
+     */
+    public Batch copyBatch(long fromSequence, int maxCount) {
+        final Batch batch;
+        synchronized (mLock) {
+            final long first = Math.max(fromSequence, getFirstSequenceLocked());
+            final int count = (int) Math.max(0, Math.min(maxCount, mNextSequence - first));
+            batch = new Batch(count);
+            for (int i = 0; i < count; i++) {
+                final int index = (int) ((first + i) % mCapacity);
+                batch.mSequences[i] = mSequences[index];
+                batch.mTimes[i] = mTimes[index];
+                batch.mEventTypes[i] = mEventTypes[index];
+                batch.mWindowIds[i] = mWindowIds[index];
+                batch.mPackageIds[i] = mPackageIds[index];
+                batch.mClassIds[i] = mClassIds[index];
+                batch.mFanOuts[i] = mFanOuts[index];
+                batch.mDropReasons[i] = mDropReasons[index];
+            }
+        }
+        // Renumber the names densely so the batch only carries the ones it uses.
+        final SparseIntArray localIds = new SparseIntArray();
+        final ArrayList<String> names = new ArrayList<>();
+        for (int i = 0; i < batch.mCount; i++) {
+            batch.mPackageIds[i] = toLocalId(batch.mPackageIds[i], localIds, names);
+            batch.mClassIds[i] = toLocalId(batch.mClassIds[i], localIds, names);
+        }
+        batch.mNames = names.toArray(new String[names.size()]);
+        return batch;
+    }
+
+    private int toLocalId(int id, SparseIntArray localIds, ArrayList<String> names) {
+        if (id == NameInternTable.ID_UNKNOWN) {
+            return id;
+        }
+        int localId = localIds.get(id, -1);
+        if (localId < 0) {
+            final String name = mNames.getName(id);
+            if (name == null) {
+                // The name was interned in a generation that is gone.
+                return NameInternTable.ID_UNKNOWN;
+            }
+            localId = names.size();
+            localIds.put(id, localId);
+            names.add(name);
+        }
+        return localId;
+    }
+
+    private long getFirstSequenceLocked() {
+        return Math.max(0, mNextSequence - mCapacity);
+    }
+
+    private String getName(int id) {
+        final String name = mNames.getName(id);
+        return (name != null) ? name : "?";
+    }
+
+    /**
+     * Copy of recorded events that can be encoded without holding the lock.
+     */
+    static final class Batch {
+        final int mCount;
+        final long[] mSequences;
+        final long[] mTimes;
+        final int[] mEventTypes;
+        final int[] mWindowIds;
+        final int[] mPackageIds;
+        final int[] mClassIds;
+        final short[] mFanOuts;
+        final byte[] mDropReasons;
+        // Package and class names by the ids used in the batch.
+        String[] mNames;
+
+        Batch(int count) {
+            mCount = count;
+            mSequences = new long[count];
+            mTimes = new long[count];
+            mEventTypes = new int[count];
+            mWindowIds = new int[count];
+            mPackageIds = new int[count];
+            mClassIds = new int[count];
+            mFanOuts = new short[count];
+            mDropReasons = new byte[count];
+        }
+
+        /**
+         * @return The number of bytes written by {@link #writeTo(DataOutputStream)}.
+         */
+        int getEncodedSize() {
+            // The version, the name count and the event count.
+            int size = 12;
+            for (String name : mNames) {
+                size += 2 + getModifiedUtf8Length(name);
+            }
+            // Sequence, time, type, window id, name ids, fan-out and drop reason.
+            return size + mCount * 35;
+        }
+
+        private static int getModifiedUtf8Length(String string) {
+            final int length = string.length();
+            int utfLength = 0;
+            for (int i = 0; i < length; i++) {
+                final char c = string.charAt(i);
+                if (c != 0 && c < 0x80) {
+                    utfLength++;
+                } else if (c < 0x800) {
+                    utfLength += 2;
+                } else {
+                    utfLength += 3;
+                }
+            }
+            return utfLength;
+        }
+
+        /**
+         * Writes the events in the encoding read by {@link DataCollectionManager}.
+         */
+        void writeTo(DataOutputStream out) throws IOException {
+            out.writeInt(DataCollectionManager.BATCH_VERSION);
+            out.writeInt(mNames.length);
+            for (String name : mNames) {
+                out.writeUTF(name);
+            }
+            out.writeInt(mCount);
+            for (int i = 0; i < mCount; i++) {
+                out.writeLong(mSequences[i]);
+                out.writeLong(mTimes[i]);
+                out.writeInt(mEventTypes[i]);
+                out.writeInt(mWindowIds[i]);
+                out.writeInt(mPackageIds[i]);
+                out.writeInt(mClassIds[i]);
+                out.writeShort(mFanOuts[i]);
+                out.writeByte(mDropReasons[i]);
+            }
+        }
+
+        /**
+         * Reads events in the encoding written by {@link #writeTo(DataOutputStream)}.
+         */
+        static Batch readFrom(DataInputStream in) throws IOException {
+            final int version = in.readInt();
+            if (version != DataCollectionManager.BATCH_VERSION) {
+                throw new IOException("Unsupported batch version " + version);
+            }
+            final String[] names = new String[in.readInt()];
+            for (int i = 0; i < names.length; i++) {
+                names[i] = in.readUTF();
+            }
+            final Batch batch = new Batch(in.readInt());
+            batch.mNames = names;
+            for (int i = 0; i < batch.mCount; i++) {
+                batch.mSequences[i] = in.readLong();
+                batch.mTimes[i] = in.readLong();
+                batch.mEventTypes[i] = in.readInt();
+                batch.mWindowIds[i] = in.readInt();
+                batch.mPackageIds[i] = readNameId(in, names);
+                batch.mClassIds[i] = readNameId(in, names);
+                batch.mFanOuts[i] = in.readShort();
+                batch.mDropReasons[i] = in.readByte();
+            }
+            return batch;
+        }
+
+        private static int readNameId(DataInputStream in, String[] names) throws IOException {
+            final int id = in.readInt();
+            if (id != NameInternTable.ID_UNKNOWN && (id < 0 || id >= names.length)) {
+                throw new IOException("Invalid name id " + id);
+            }
+            return id;
+        }
+    }
+}
@@ -0,0 +1,345 @@
+/*
+ ** Copyright 2016, The Android Open Source Project
+ **
+ ** Licensed under the Apache License, Version 2.0 (the "License");
+ ** you may not use this file except in compliance with the License.
+ ** You may obtain a copy of the License at
+ **
+ **     http://www.apache.org/licenses/LICENSE-2.0
+ **
+ ** Unless required by applicable law or agreed to in writing, software
+ ** distributed under the License is distributed on an "AS IS" BASIS,
+ ** WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ ** See the License for the specific language governing permissions and
+ ** limitations under the License.
+ */
+
+package com.android.server.accessibility;
+
+import android.os.Handler;
+import android.os.IBinder;
+import android.os.Looper;
+import android.os.MemoryFile;
+import android.os.Message;
+import android.os.ParcelFileDescriptor;
+import android.os.RemoteException;
+import android.util.Slog;
+import android.view.accessibility.AccessibilityEvent;
+import android.view.accessibility.DataCollectionManager;
+import android.view.accessibility.IAccessibilityEventStreamListener;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Single producer single consumer ring of encoded accessibility events in
+ * shared memory. The accessibility manager writes records and a collector
+ * process reads them from its own mapping of the same region.
+ * <p>
+ * The ring positions never go through the shared memory. The producer
+ * hands out the position up to which records are complete via a oneway
+ * callback and the consumer returns the position up to which it has read
+ * via {@link #ack(long)}. The Binder transactions order the memory accesses
+ * of both sides, so no fences on the shared region are needed, and at most
+ * one wakeup is in flight, which coalesces them under load. Records that do
+ * not fit in the free space are dropped and counted.
+ * </p>
+ * <p>
+ * The record layout is described in {@link DataCollectionManager}. This
+ * class is not thread safe.
+ * </p>
+ */
+final class AccessibilityEventStream {
+
+    private static final String LOG_TAG = "AccessibilityEventStream";
+
+    private static final String MEMORY_FILE_NAME = "a11y_event_stream";
+
+    private static final int MSG_WAKEUP = 1;
+
+    // Strings are truncated so the lengths of the following strings, the
+    // alignment padding and a wrap marker still fit in the record buffer.
+    private static final int MAX_STRING_END = DataCollectionManager.STREAM_MAX_RECORD_SIZE
+            - DataCollectionManager.STREAM_RECORD_ALIGNMENT - 2 * 2;
+
+    private final MemoryFile mMemoryFile;
+
+    private final int mCapacity;
+
+    private final IAccessibilityEventStreamListener mListener;
+
+    private final Handler mHandler;
+
+    // Reused for encoding so writing a record does not allocate.
+    private final byte[] mRecord = new byte[DataCollectionManager.STREAM_MAX_RECORD_SIZE];
+
+    private long mHead;
+
+    private long mTail;
+
+    private long mDroppedCount;
+
+    private long mPasswordCount;
+
+    private TextRedactor mRedactor;
+
+    private boolean mWakeupPending;
+
+    private IBinder.DeathRecipient mDeathRecipient;
+
+    /**
+     * Creates a new stream.
+     *
+     * @param capacity The size of the ring in bytes, clamped to the supported range.
+     * @param listener The collector to wake up when records are available.
+     * @param looper The looper on which to deliver wakeups.
+     */
+    AccessibilityEventStream(int capacity, IAccessibilityEventStreamListener listener,
+            Looper looper) throws IOException {
+        capacity = Math.max(DataCollectionManager.STREAM_MIN_CAPACITY,
+                Math.min(capacity, DataCollectionManager.STREAM_MAX_CAPACITY));
+        // Records are aligned, so the end of the ring always has room for a wrap marker.
+        mCapacity = capacity & ~(DataCollectionManager.STREAM_RECORD_ALIGNMENT - 1);
+        mListener = listener;
+        mMemoryFile = new MemoryFile(MEMORY_FILE_NAME,
+                DataCollectionManager.STREAM_HEADER_SIZE + mCapacity);
+        int offset = putInt(mRecord, 0, DataCollectionManager.STREAM_MAGIC);
+        offset = putInt(mRecord, offset, DataCollectionManager.STREAM_VERSION);
+        offset = putInt(mRecord, offset, mCapacity);
+        mMemoryFile.writeBytes(mRecord, 0, 0, offset);
+        mHandler = new Handler(looper) {
+            @Override
+            public void handleMessage(Message message) {
+                final long head = ((long) message.arg1 << 32) | (message.arg2 & 0xFFFFFFFFL);
+                final long droppedCount = (Long) message.obj;
+                try {
+                    mListener.onEventsAvailable(head, droppedCount);
+                } catch (RemoteException re) {
+                    Slog.w(LOG_TAG, "Error waking up event stream listener", re);
+                }
+            }
+        };
+    }
+
+    /**
+     * @return A duplicate of the shared memory fd to hand to the collector.
+     */
+    ParcelFileDescriptor dupFileDescriptor() throws IOException {
+        return ParcelFileDescriptor.dup(mMemoryFile.getFileDescriptor());
+    }
+
+    IAccessibilityEventStreamListener getListener() {
+        return mListener;
+    }
+
+    /**
+     * Registers a recipient for the death of the listener that is
+     * unregistered when the stream is closed.
+     */
+    void linkToDeath(IBinder.DeathRecipient recipient) throws RemoteException {
+        mListener.asBinder().linkToDeath(recipient, 0);
+        mDeathRecipient = recipient;
+    }
+
+    long getDroppedCount() {
+        return mDroppedCount;
+    }
+
+    /**
+     * @return The number of events left out because they came from password fields.
+     */
+    long getPasswordCount() {
+        return mPasswordCount;
+    }
+
+    /**
+     * Sets the redactor that masks user data in the text of the events
+     * written from now on, null to write the text as is.
+     */
+    void setRedactor(TextRedactor redactor) {
+        mRedactor = redactor;
+    }
+
+    /**
+     * Encodes and appends an event, dropping it if the ring is full. Events
+     * from password fields are never written.
+     *
+     * @return Whether the event was written.
+     */
+    boolean write(AccessibilityEvent event) {
+        if (event.isPassword()) {
+            mPasswordCount++;
+            return false;
+        }
+        final byte[] record = mRecord;
+        int offset = DataCollectionManager.STREAM_RECORD_HEADER_SIZE;
+        offset = putInt(record, offset, event.getEventType());
+        offset = putLong(record, offset, event.getEventTime());
+        offset = putInt(record, offset, event.getWindowId());
+        offset = putString(record, offset, event.getPackageName());
+        offset = putString(record, offset, event.getClassName());
+        final int textStart = offset + 2;
+        offset = putText(record, offset, event.getText());
+        if (mRedactor != null) {
+            mRedactor.redact(record, textStart, offset);
+        }
+        final int length = align(offset);
+        putInt(record, 0, length);
+
+        final int ringOffset = (int) (mHead % mCapacity);
+        final int padding = (ringOffset + length > mCapacity) ? mCapacity - ringOffset : 0;
+        if (mHead - mTail + padding + length > mCapacity) {
+            mDroppedCount++;
+            return false;
+        }
+        if (padding > 0) {
+            putInt(record, length, DataCollectionManager.STREAM_RECORD_WRAP);
+            writeBytesUnchecked(record, length, toFileOffset(ringOffset), 4);
+            mHead += padding;
+        }
+        writeBytesUnchecked(record, 0, toFileOffset((int) (mHead % mCapacity)), length);
+        mHead += length;
+        if (!mWakeupPending) {
+            scheduleWakeup();
+        }
+        return true;
+    }
+
+    /**
+     * Called when the collector has consumed all records up to a position.
+     */
+    void ack(long tail) {
+        if (tail < mTail || tail > mHead) {
+            Slog.w(LOG_TAG, "Ignoring invalid ack " + tail);
+            return;
+        }
+        mTail = tail;
+        mWakeupPending = false;
+        if (mHead > mTail) {
+            scheduleWakeup();
+        }
+    }
+
+    void close() {
+        if (mDeathRecipient != null) {
+            mListener.asBinder().unlinkToDeath(mDeathRecipient, 0);
+            mDeathRecipient = null;
+        }
+        mHandler.removeMessages(MSG_WAKEUP);
+        mMemoryFile.close();
+    }
+
+    private void scheduleWakeup() {
+        mWakeupPending = true;
+        mHandler.obtainMessage(MSG_WAKEUP, (int) (mHead >>> 32), (int) mHead,
+                mDroppedCount).sendToTarget();
+    }
+
+    private void writeBytesUnchecked(byte[] buffer, int srcOffset, int destOffset, int count) {
+        try {
+            mMemoryFile.writeBytes(buffer, srcOffset, destOffset, count);
+        } catch (IOException ioe) {
+            Slog.e(LOG_TAG, "Error writing to event stream", ioe);
+        }
+    }
+
+    private static int toFileOffset(int ringOffset) {
+        return DataCollectionManager.STREAM_HEADER_SIZE + ringOffset;
+    }
+
+    private static int align(int length) {
+        final int mask = DataCollectionManager.STREAM_RECORD_ALIGNMENT - 1;
+        return (length + mask) & ~mask;
+    }
+
+    private static int putInt(byte[] buffer, int offset, int value) {
+        buffer[offset] = (byte) (value >>> 24);
+        buffer[offset + 1] = (byte) (value >>> 16);
+        buffer[offset + 2] = (byte) (value >>> 8);
+        buffer[offset + 3] = (byte) value;
+        return offset + 4;
+    }
+
+    private static int putLong(byte[] buffer, int offset, long value) {
+        offset = putInt(buffer, offset, (int) (value >>> 32));
+        return putInt(buffer, offset, (int) value);
+    }
+
+    /**
+     * Writes a string as a two byte length followed by its UTF-8 encoding,
+     * truncated to the space left in the record.
+     */
+    private static int putString(byte[] buffer, int offset, CharSequence text) {
+        final int lengthOffset = offset;
+        offset += 2;
+        if (text != null) {
+            offset = encodeUtf8(text, buffer, offset, MAX_STRING_END);
+        }
+        final int length = offset - lengthOffset - 2;
+        buffer[lengthOffset] = (byte) (length >>> 8);
+        buffer[lengthOffset + 1] = (byte) length;
+        return offset;
+    }
+
+    /**
+     * Writes the text of an event as a single string, joining the parts with
+     * new lines.
+     */
+    private static int putText(byte[] buffer, int offset, List<CharSequence> text) {
+        final int lengthOffset = offset;
+        offset += 2;
+        final int end = MAX_STRING_END;
+        final int count = text.size();
+        for (int i = 0; i < count && offset < end; i++) {
+            if (i > 0) {
+                buffer[offset++] = '\n';
+            }
+            final CharSequence part = text.get(i);
+            if (part != null) {
+                offset = encodeUtf8(part, buffer, offset, end);
+            }
+        }
+        final int length = offset - lengthOffset - 2;
+        buffer[lengthOffset] = (byte) (length >>> 8);
+        buffer[lengthOffset + 1] = (byte) length;
+        return offset;
+    }
+
+    /**
+     * Encodes chars as UTF-8 until the text or the space up to end runs out.
+     * Unpaired surrogates are replaced with '?'.
+     *
+     * @return The offset after the last written byte.
+     */
+    private static int encodeUtf8(CharSequence text, byte[] buffer, int offset, int end) {
+        final int length = text.length();
+        for (int i = 0; i < length; i++) {
+            final char c = text.charAt(i);
+            if (c < 0x80) {
+                if (offset + 1 > end) break;
+                buffer[offset++] = (byte) c;
+            } else if (c < 0x800) {
+                if (offset + 2 > end) break;
+                buffer[offset++] = (byte) (0xC0 | (c >> 6));
+                buffer[offset++] = (byte) (0x80 | (c & 0x3F));
+            } else if (Character.isHighSurrogate(c) && i + 1 < length
+                    && Character.isLowSurrogate(text.charAt(i + 1))) {
+                if (offset + 4 > end) break;
+                final int codePoint = Character.toCodePoint(c, text.charAt(++i));
+                buffer[offset++] = (byte) (0xF0 | (codePoint >> 18));
+                buffer[offset++] = (byte) (0x80 | ((codePoint >> 12) & 0x3F));
+                buffer[offset++] = (byte) (0x80 | ((codePoint >> 6) & 0x3F));
+                buffer[offset++] = (byte) (0x80 | (codePoint & 0x3F));
+            } else if (Character.isSurrogate(c)) {
+                if (offset + 1 > end) break;
+                buffer[offset++] = '?';
+            } else {
+                if (offset + 3 > end) break;
+                buffer[offset++] = (byte) (0xE0 | (c >> 12));
+                buffer[offset++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+                buffer[offset++] = (byte) (0x80 | (c & 0x3F));
+            }
+        }
+        return offset;
+    }
+}
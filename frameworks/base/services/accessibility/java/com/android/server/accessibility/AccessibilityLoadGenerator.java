@@ -0,0 +1,527 @@
+/*
+ ** Copyright 2016, The Android Open Source Project
+ **
+ ** Licensed under the Apache License, Version 2.0 (the "License");
+ ** you may not use this file except in compliance with the License.
+ ** You may obtain a copy of the License at
+ **
+ **     http://www.apache.org/licenses/LICENSE-2.0
+ **
+ ** Unless required by applicable law or agreed to in writing, software
+ ** distributed under the License is distributed on an "AS IS" BASIS,
+ ** WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ ** See the License for the specific language governing permissions and
+ ** limitations under the License.
+ */
+
+package com.android.server.accessibility;
+
+import android.os.Build;
+import android.os.Debug;
+import android.os.SystemClock;
+import android.os.UserHandle;
+import android.text.TextUtils;
+import android.view.accessibility.AccessibilityEvent;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Pushes accessibility events into {@link AccessibilityManagerService} from
+ * several threads and reports the throughput, drops and lock wait time the
+ * service achieved. Events either replay a recording saved by dumpsys or
+ * follow a synthetic profile.
+ * <p>
+ * The events are really dispatched, so bound services and the input filter
+ * see them. The sender threads call the service directly, hence all events
+ * pass the permission checks as coming from the system. Each thread uses
+ * its own package name to stand in for a separate sending app.
+ * </p>
+ * <p>
+ * A run is started by one dump call and goes on in the background, its
+ * results are printed by later calls. Only one run goes on at a time and it
+ * is bounded in events and duration, so a forgotten run cannot load the
+ * service for long.
+ * </p>
+ */
+final class AccessibilityLoadGenerator {
+
+    /** Replays a recording, the argument is the speedup or 0 for unbounded. */
+    static final String MODE_REPLAY = "replay";
+
+    /** Fast scrolling, scroll events with occasional content changes. */
+    static final String MODE_SCROLL = "scroll";
+
+    /** Typing, text and selection changes carrying growing text. */
+    static final String MODE_TYPING = "typing";
+
+    /** Windows coming and going, window state and content changes. */
+    static final String MODE_CHURN = "churn";
+
+    /** Cycles through a given list of event types. */
+    static final String MODE_MIX = "mix";
+
+    private static final int MAX_THREAD_COUNT = 16;
+
+    private static final int MAX_EVENTS_PER_RUN = 1000000;
+
+    private static final long MAX_RUN_DURATION_MILLIS = 10 * 60 * 1000;
+
+    private static final String SENDER_PACKAGE_PREFIX = "com.android.a11yload.sender";
+
+    private static final String SENDER_CLASS_NAME = "android.view.View";
+
+    private final Object mLock = new Object();
+
+    private final AccessibilityManagerService mService;
+
+    // The current or the last run, guarded by mLock.
+    private Run mRun;
+
+    AccessibilityLoadGenerator(AccessibilityManagerService service) {
+        mService = service;
+    }
+
+    /**
+     * Starts a load described by dump arguments, unless one is running.
+     * <p>
+     * replay &lt;speedup&gt; [threads]: replays the file saved by --save-events,
+     * with 1 for real time and 0 for as fast as possible.
+     * </p>
+     * <p>
+     * scroll|typing|churn &lt;events per thread&gt; [threads]: sends events
+     * of a synthetic profile as fast as possible.
+     * </p>
+     * <p>
+     * mix &lt;events per thread&gt; &lt;threads&gt; &lt;type&gt;[,&lt;type&gt;...]:
+     * sends events cycling through the given event type values, a type listed
+     * twice is sent twice as often.
+     * </p>
+     */
+    void start(PrintWriter pw, String[] args, File recordingFile) {
+        if (args.length < 2) {
+            printUsage(pw);
+            return;
+        }
+        final String mode = args[0];
+        final int value;
+        final int threadCount;
+        try {
+            value = Integer.parseInt(args[1]);
+            threadCount = (args.length > 2) ? Integer.parseInt(args[2]) : 1;
+        } catch (NumberFormatException nfe) {
+            printUsage(pw);
+            return;
+        }
+        if (value < 0 || threadCount < 1 || threadCount > MAX_THREAD_COUNT) {
+            printUsage(pw);
+            return;
+        }
+        int[] mixTypes = null;
+        if (MODE_MIX.equals(mode)) {
+            mixTypes = (args.length == 4) ? parseEventTypes(args[3]) : null;
+            if (mixTypes == null) {
+                printUsage(pw);
+                return;
+            }
+        }
+        synchronized (mLock) {
+            if (mRun != null && !mRun.mFinished) {
+                pw.println("A load is running, see --load-status or stop it with --load-stop.");
+                return;
+            }
+            final Run run = new Run(mode, threadCount);
+            if (MODE_REPLAY.equals(mode)) {
+                final AccessibilityEventRecorder.Batch batch;
+                try {
+                    batch = AccessibilityEventRecorder.loadFromFile(recordingFile);
+                } catch (IOException ioe) {
+                    pw.println("Failed to load events from " + recordingFile + ": " + ioe);
+                    return;
+                }
+                if (batch.mCount == 0) {
+                    pw.println("No events in " + recordingFile);
+                    return;
+                }
+                for (int i = 0; i < threadCount; i++) {
+                    run.mSenders[i] = new ReplaySender(run, i, batch, value);
+                }
+            } else if (MODE_SCROLL.equals(mode) || MODE_TYPING.equals(mode)
+                    || MODE_CHURN.equals(mode) || MODE_MIX.equals(mode)) {
+                final int eventCount = Math.min(value, MAX_EVENTS_PER_RUN / threadCount);
+                final int windowId = mService.getActiveWindowId();
+                for (int i = 0; i < threadCount; i++) {
+                    run.mSenders[i] = new SyntheticSender(run, i, mode, mixTypes, eventCount,
+                            windowId);
+                }
+            } else {
+                printUsage(pw);
+                return;
+            }
+            run.start();
+            mRun = run;
+        }
+        pw.println("Load started, see --load-status for the results.");
+    }
+
+    /**
+     * Stops the senders of the running load.
+     */
+    void stop(PrintWriter pw) {
+        synchronized (mLock) {
+            if (mRun == null || mRun.mFinished) {
+                pw.println("No load is running.");
+                return;
+            }
+            mRun.stop();
+        }
+        pw.println("Load stopping, see --load-status for the results.");
+    }
+
+    /**
+     * Prints the progress of the running load or the results of the last one.
+     */
+    void dumpStatus(PrintWriter pw) {
+        synchronized (mLock) {
+            if (mRun == null) {
+                pw.println("No load has run.");
+                return;
+            }
+            mRun.dumpLocked(pw);
+        }
+    }
+
+    /**
+     * @return The event types of a comma separated list or null if one is not
+     *         a single event type.
+     */
+    private static int[] parseEventTypes(String list) {
+        final String[] values = TextUtils.split(list, ",");
+        if (values.length == 0) {
+            return null;
+        }
+        final int[] types = new int[values.length];
+        for (int i = 0; i < values.length; i++) {
+            try {
+                types[i] = Integer.decode(values[i]);
+            } catch (NumberFormatException nfe) {
+                return null;
+            }
+            if (Integer.bitCount(types[i]) != 1) {
+                return null;
+            }
+        }
+        return types;
+    }
+
+    private static void printUsage(PrintWriter pw) {
+        pw.println("Usage: --load replay <speedup, 0 for unbounded> [threads]");
+        pw.println("       --load scroll|typing|churn <events per thread> [threads]");
+        pw.println("       --load mix <events per thread> <threads> <type>[,<type>...]");
+        pw.println("       --load-status");
+        pw.println("       --load-stop");
+        pw.println("At most " + MAX_THREAD_COUNT + " threads, " + MAX_EVENTS_PER_RUN
+                + " events and " + MAX_RUN_DURATION_MILLIS / 1000 + "s per load.");
+    }
+
+    /**
+     * The senders of one load and the counters of the service around it.
+     */
+    private final class Run {
+        final String mMode;
+        final Sender[] mSenders;
+        final AtomicInteger mRunningSenderCount;
+        // Counting slows down every allocation in the process, so only while running.
+        final boolean mCountAllocations = Build.IS_DEBUGGABLE;
+
+        volatile boolean mStopped;
+
+        // Written by the last sender to finish, guarded by mLock.
+        boolean mFinished;
+        long mStartTime;
+        long mEndTime;
+        long mDeadline;
+        AccessibilityStateSnapshot mBefore;
+        AccessibilityStateSnapshot mAfter;
+
+        Run(String mode, int threadCount) {
+            mMode = mode;
+            mSenders = new Sender[threadCount];
+            mRunningSenderCount = new AtomicInteger(threadCount);
+        }
+
+        void start() {
+            mBefore = mService.takeStateSnapshot();
+            mBefore.recycle();
+            if (mCountAllocations) {
+                AllocationCounting.acquire();
+            }
+            mStartTime = SystemClock.elapsedRealtimeNanos();
+            mDeadline = SystemClock.uptimeMillis() + MAX_RUN_DURATION_MILLIS;
+            for (Sender sender : mSenders) {
+                sender.start();
+            }
+        }
+
+        void stop() {
+            mStopped = true;
+            for (Sender sender : mSenders) {
+                // Wakes up replay senders waiting for the next event.
+                sender.interrupt();
+            }
+        }
+
+        boolean shouldStop() {
+            return mStopped || SystemClock.uptimeMillis() > mDeadline;
+        }
+
+        void onSenderFinished() {
+            if (mRunningSenderCount.decrementAndGet() > 0) {
+                return;
+            }
+            final long endTime = SystemClock.elapsedRealtimeNanos();
+            if (mCountAllocations) {
+                AllocationCounting.release();
+            }
+            final AccessibilityStateSnapshot after = mService.takeStateSnapshot();
+            after.recycle();
+            synchronized (mLock) {
+                mEndTime = endTime;
+                mAfter = after;
+                mFinished = true;
+            }
+        }
+
+        void dumpLocked(PrintWriter pw) {
+            final long endTime = mFinished ? mEndTime : SystemClock.elapsedRealtimeNanos();
+            final long durationMicros = Math.max(1, (endTime - mStartTime) / 1000);
+            pw.append("Load[mode=").append(mMode);
+            pw.append(", threads=").append(String.valueOf(mSenders.length));
+            pw.append(", services=").append(String.valueOf(getBoundServiceCount(mBefore)));
+            pw.append(", state=").append(!mFinished ? "running"
+                    : (mStopped ? "stopped" : "finished"));
+            pw.append(", duration=").append(String.valueOf(durationMicros / 1000)).println("ms]");
+            long sentCount = 0;
+            for (Sender sender : mSenders) {
+                sentCount += sender.mSentCount;
+            }
+            pw.append("  sent=").append(String.valueOf(sentCount));
+            pw.append(" throughput=").append(String.valueOf(sentCount * 1000000 / durationMicros));
+            pw.println("/s");
+            if (!mFinished) {
+                return;
+            }
+            final LatencyHistogram sendLatency = new LatencyHistogram();
+            long allocCount = 0;
+            long allocBytes = 0;
+            for (Sender sender : mSenders) {
+                sendLatency.add(sender.mSendLatency);
+                allocCount += sender.mAllocCount;
+                allocBytes += sender.mAllocBytes;
+            }
+            final AccessibilityStateSnapshot before = mBefore;
+            final AccessibilityStateSnapshot after = mAfter;
+            final long receivedCount = after.mReceivedEventCount - before.mReceivedEventCount;
+            final long droppedCount = (after.mBackgroundUserEventCount
+                    - before.mBackgroundUserEventCount)
+                    + (after.mRejectedEventCount - before.mRejectedEventCount);
+            final long lockWaitNanos = after.mEventLockWaitNanos - before.mEventLockWaitNanos;
+            // Counters are global, so events of real apps during the run are included.
+            pw.append("  received=").append(String.valueOf(receivedCount));
+            pw.append(" dropped=").append(String.valueOf(droppedCount));
+            pw.append(" serviceNotifications=").println(String.valueOf(
+                    after.mServiceNotificationCount - before.mServiceNotificationCount));
+            pw.append("  lockWait=").append(String.valueOf(lockWaitNanos / 1000000)).append("ms");
+            pw.append(" perEvent=").append(String.valueOf(
+                    (receivedCount > 0) ? lockWaitNanos / 1000 / receivedCount : 0)).println("us");
+            pw.append("  send[count,mean,p50,p90,p99,max (us)]:");
+            sendLatency.dumpCompact(pw);
+            pw.println();
+            if (mCountAllocations && sentCount > 0) {
+                // Only what the sending threads allocate, not the dispatch to the services.
+                pw.append("  allocCount=").append(String.valueOf(allocCount));
+                pw.append(" perEvent=").append(String.valueOf(allocCount / sentCount));
+                pw.append(" allocBytes=").append(String.valueOf(allocBytes));
+                pw.append(" perEvent=").println(String.valueOf(allocBytes / sentCount));
+            }
+        }
+    }
+
+    private static int getBoundServiceCount(AccessibilityStateSnapshot snapshot) {
+        final int userCount = snapshot.mUserStates.size();
+        for (int i = 0; i < userCount; i++) {
+            final AccessibilityStateSnapshot.UserStateSnapshot user = snapshot.mUserStates.get(i);
+            if (user.mUserId == snapshot.mCurrentUserId) {
+                return user.mServices.size();
+            }
+        }
+        return 0;
+    }
+
+    private abstract class Sender extends Thread {
+        final Run mRun;
+
+        final LatencyHistogram mSendLatency = new LatencyHistogram();
+
+        final String mPackageName;
+
+        // Only written by the sender, read for the progress of a running load.
+        volatile long mSentCount;
+
+        long mAllocCount;
+
+        long mAllocBytes;
+
+        Sender(Run run, int index) {
+            super("a11y-load-" + index);
+            mRun = run;
+            mPackageName = SENDER_PACKAGE_PREFIX + index;
+        }
+
+        @Override
+        public final void run() {
+            try {
+                sendEvents();
+            } finally {
+                mRun.onSenderFinished();
+            }
+        }
+
+        /**
+         * Sends the events of this sender until done or the run stops.
+         */
+        abstract void sendEvents();
+
+        /**
+         * Sends an event, which is recycled by the service.
+         */
+        void send(AccessibilityEvent event) {
+            final boolean countAllocations = mRun.mCountAllocations;
+            long allocCount = 0;
+            long allocBytes = 0;
+            if (countAllocations) {
+                allocCount = Debug.getThreadAllocCount();
+                allocBytes = Debug.getThreadAllocSize();
+            }
+            final long startTime = SystemClock.elapsedRealtimeNanos();
+            mService.sendAccessibilityEvent(event, UserHandle.USER_CURRENT);
+            final long endTime = SystemClock.elapsedRealtimeNanos();
+            if (countAllocations) {
+                mAllocCount += Debug.getThreadAllocCount() - allocCount;
+                mAllocBytes += Debug.getThreadAllocSize() - allocBytes;
+            }
+            mSendLatency.record((endTime - startTime) / 1000);
+            mSentCount++;
+        }
+    }
+
+    /**
+     * Sends every n-th event of a recording at its recorded time scaled by the speedup.
+     */
+    private final class ReplaySender extends Sender {
+        private final int mFirst;
+        private final int mStride;
+        private final AccessibilityEventRecorder.Batch mBatch;
+        private final int mSpeedup;
+
+        ReplaySender(Run run, int index, AccessibilityEventRecorder.Batch batch, int speedup) {
+            super(run, index);
+            mFirst = index;
+            mStride = run.mSenders.length;
+            mBatch = batch;
+            mSpeedup = speedup;
+        }
+
+        @Override
+        void sendEvents() {
+            final AccessibilityEventRecorder.Batch batch = mBatch;
+            final long startTime = SystemClock.uptimeMillis();
+            final long firstEventTime = batch.mTimes[0];
+            for (int i = mFirst; i < batch.mCount && !mRun.shouldStop(); i += mStride) {
+                if (mSpeedup > 0) {
+                    final long due = startTime + (batch.mTimes[i] - firstEventTime) / mSpeedup;
+                    final long delay = due - SystemClock.uptimeMillis();
+                    if (delay > 0) {
+                        try {
+                            Thread.sleep(delay);
+                        } catch (InterruptedException ie) {
+                            // The run was stopped.
+                            return;
+                        }
+                    }
+                }
+                final AccessibilityEvent event = AccessibilityEvent.obtain(
+                        batch.mEventTypes[i]);
+                final int packageId = batch.mPackageIds[i];
+                event.setPackageName((packageId != NameInternTable.ID_UNKNOWN)
+                        ? batch.mNames[packageId] : mPackageName);
+                final int classId = batch.mClassIds[i];
+                event.setClassName((classId != NameInternTable.ID_UNKNOWN)
+                        ? batch.mNames[classId] : SENDER_CLASS_NAME);
+                event.setWindowId(batch.mWindowIds[i]);
+                event.setEventTime(SystemClock.uptimeMillis());
+                send(event);
+            }
+        }
+    }
+
+    /**
+     * Sends events of a synthetic profile as fast as possible.
+     */
+    private final class SyntheticSender extends Sender {
+        private final String mMode;
+        private final int[] mMixTypes;
+        private final int mEventCount;
+        private final int mWindowId;
+        private final StringBuilder mText = new StringBuilder();
+
+        SyntheticSender(Run run, int index, String mode, int[] mixTypes, int eventCount,
+                int windowId) {
+            super(run, index);
+            mMode = mode;
+            mMixTypes = mixTypes;
+            mEventCount = eventCount;
+            mWindowId = windowId;
+        }
+
+        @Override
+        void sendEvents() {
+            for (int i = 0; i < mEventCount && !mRun.shouldStop(); i++) {
+                final AccessibilityEvent event = AccessibilityEvent.obtain(nextEventType(i));
+                event.setPackageName(mPackageName);
+                event.setClassName(SENDER_CLASS_NAME);
+                event.setWindowId(mWindowId);
+                event.setEventTime(SystemClock.uptimeMillis());
+                if (MODE_TYPING.equals(mMode)) {
+                    // Words of five letters, cleared once in a while like a sent message.
+                    if (mText.length() >= 200) {
+                        mText.setLength(0);
+                    }
+                    mText.append((i % 6 == 5) ? ' ' : (char) ('a' + i % 26));
+                    event.getText().add(mText.toString());
+                }
+                send(event);
+            }
+        }
+
+        private int nextEventType(int index) {
+            if (MODE_SCROLL.equals(mMode)) {
+                return (index % 4 == 3) ? AccessibilityEvent.TYPE_WINDOW_CONTENT_CHANGED
+                        : AccessibilityEvent.TYPE_VIEW_SCROLLED;
+            } else if (MODE_TYPING.equals(mMode)) {
+                return (index % 2 == 1) ? AccessibilityEvent.TYPE_VIEW_TEXT_SELECTION_CHANGED
+                        : AccessibilityEvent.TYPE_VIEW_TEXT_CHANGED;
+            } else if (MODE_MIX.equals(mMode)) {
+                return mMixTypes[index % mMixTypes.length];
+            } else {
+                switch (index % 3) {
+                    case 0: return AccessibilityEvent.TYPE_WINDOW_STATE_CHANGED;
+                    case 1: return AccessibilityEvent.TYPE_WINDOWS_CHANGED;
+                    default: return AccessibilityEvent.TYPE_WINDOW_CONTENT_CHANGED;
+                }
+            }
+        }
+    }
+}
@@ -53,6 +53,8 @@ import android.net.Uri;
 import android.os.Binder;
 import android.os.Build;
 import android.os.Bundle;
+import android.os.Debug;
+import android.os.Environment;
 import android.os.Handler;
 import android.os.IBinder;
 import android.os.Looper;
@@ -62,13 +64,18 @@ import android.os.Process;
 import android.os.RemoteCallbackList;
 import android.os.RemoteException;
 import android.os.SystemClock;
+import android.os.SystemProperties;
+import android.os.Trace;
 import android.os.UserHandle;
 import android.os.UserManager;
 import android.provider.Settings;
 import android.text.TextUtils;
 import android.text.TextUtils.SimpleStringSplitter;
+import android.util.ArrayMap;
+import android.util.ArraySet;
 import android.util.Slog;
 import android.util.SparseArray;
+import android.util.SparseIntArray;
 import android.view.Display;
 import android.view.IWindow;
 import android.view.InputDevice;
@@ -90,6 +97,7 @@ import android.view.accessibility.IAccessibilityManager;
 import android.view.accessibility.IAccessibilityManagerClient;
 
 import com.android.internal.R;
+import com.android.internal.annotations.VisibleForTesting;
 import com.android.internal.content.PackageMonitor;
 import com.android.internal.os.SomeArgs;
 import com.android.server.LocalServices;
@@ -97,6 +105,7 @@ import com.android.server.LocalServices;
 import com.android.server.statusbar.StatusBarManagerInternal;
 import org.xmlpull.v1.XmlPullParserException;
 
+import java.io.File;
 import java.io.FileDescriptor;
 import java.io.IOException;
 import java.io.PrintWriter;
@@ -146,10 +155,39 @@ public class AccessibilityManagerService extends IAccessibilityManager.Stub {
 
     private static final String FUNCTION_DUMP = "dump";
 
+    private static final String DUMP_ARG_CHECKIN = "--checkin";
+
+    private static final String DUMP_ARG_SAVE_EVENTS = "--save-events";
+
+    private static final String DUMP_ARG_RESET_STATS = "--reset-stats";
+
+    private static final String DUMP_ARG_LOAD = "--load";
+
+    private static final String DUMP_ARG_LOAD_STATUS = "--load-status";
+
+    private static final String DUMP_ARG_LOAD_STOP = "--load-stop";
+
+    private static final String DUMP_ARG_LOCK_PROFILE = "--lock-profile";
+
+    private static final String DUMP_ARG_SAMPLING = "--sampling";
+
+    private static final String DUMP_ARG_REDACTION = "--redaction";
+
+    private static final String RECORDED_EVENTS_FILE_NAME = "accessibility_events";
+
     private static final char COMPONENT_NAME_SEPARATOR = ':';
 
     private static final int OWN_PROCESS_ID = android.os.Process.myPid();
 
+    // Whether the package scan for installed services and the package monitor are
+    // deferred until a service is enabled or the installed services are requested.
+    private static final boolean LAZY_INIT =
+            SystemProperties.getBoolean("ro.accessibility.lazy_init", true);
+
+    // Number of most recently active background users whose installed services
+    // and parsed settings are kept so that switching back to them only rebinds.
+    private static final int MAX_WARM_BACKGROUND_USER_STATES = 2;
+
     private static final int WINDOW_ID_UNKNOWN = -1;
 
     // Each service has an ID. Also provide one for magnification gesture handling
@@ -185,6 +223,37 @@ public class AccessibilityManagerService extends IAccessibilityManager.Stub {
 
     private final MainHandler mMainHandler;
 
+    private final DispatchLatencyTracker mDispatchLatencyTracker = new DispatchLatencyTracker();
+
+    private final AccessibilityEventRecorder mEventRecorder = new AccessibilityEventRecorder();
+
+    private final LockContentionProfiler mLockProfiler = new LockContentionProfiler();
+
+    private AccessibilityEventStream mEventStream;
+
+    // Decides which events are recorded and streamed, guarded by mLock.
+    private final EventSamplingPolicy mSamplingPolicy = new EventSamplingPolicy();
+
+    // Masks user data in streamed event text, guarded by mLock.
+    private final TextRedactor mTextRedactor = new TextRedactor();
+
+    private final AccessibilityLoadGenerator mLoadGenerator = new AccessibilityLoadGenerator(this);
+
+    // Event counters reported by dump, guarded by mLock.
+    private long mReceivedEventCount;
+
+    private long mBackgroundUserEventCount;
+
+    private long mRejectedEventCount;
+
+    private long mServiceNotificationCount;
+
+    // Time event senders waited for the lock.
+    private long mEventLockWaitNanos;
+
+    // When the counters and latencies were last reset, guarded by mLock.
+    private long mStatsStartTime = SystemClock.uptimeMillis();
+
     private MagnificationController mMagnificationController;
 
     private InteractionBridge mInteractionBridge;
@@ -212,6 +281,16 @@ public class AccessibilityManagerService extends IAccessibilityManager.Stub {
 
     private final SparseArray<IBinder> mGlobalWindowTokens = new SparseArray<>();
 
+    // Time spent handling window updates under the lock, guarded by mLock.
+    private final LatencyHistogram mWindowsChangedLatency = new LatencyHistogram();
+
+    // Allocations of window updates, counted while lock profiling is on on
+    // debuggable builds since counting slows down every allocation. Guarded by mLock.
+    private boolean mCountWindowsChangedAllocations;
+    private long mWindowsChangedAllocUpdateCount;
+    private long mWindowsChangedAllocCount;
+    private long mWindowsChangedAllocBytes;
+
     private final SparseArray<UserState> mUserStates = new SparseArray<>();
 
     private final UserManager mUserManager;
@@ -221,6 +300,8 @@ public class AccessibilityManagerService extends IAccessibilityManager.Stub {
     //TODO: Remove this hack
     private boolean mInitialized;
 
+    private boolean mPackageMonitorRegistered;
+
     private WindowsForAccessibilityCallback mWindowsForAccessibilityCallback;
 
     private UserState getCurrentUserStateLocked() {
@@ -233,18 +314,72 @@ public class AccessibilityManagerService extends IAccessibilityManager.Stub {
      * @param context A {@link Context} instance.
      */
     public AccessibilityManagerService(Context context) {
+        this(context, context.getMainLooper(),
+                LocalServices.getService(WindowManagerInternal.class));
+    }
+
+    /**
+     * Creates a new instance with the dependencies that cannot be provided
+     * through the context passed in, so the service can be driven by stand-ins
+     * outside of the system server.
+     *
+     * @param context A {@link Context} instance. Managers are obtained from it.
+     * @param looper The looper on which the service handles messages.
+     * @param windowManager The window manager.
+     */
+    @VisibleForTesting
+    AccessibilityManagerService(Context context, Looper looper,
+            WindowManagerInternal windowManager) {
         mContext = context;
         mPackageManager = mContext.getPackageManager();
         mPowerManager = (PowerManager) mContext.getSystemService(Context.POWER_SERVICE);
-        mWindowManagerService = LocalServices.getService(WindowManagerInternal.class);
+        mWindowManagerService = windowManager;
         mUserManager = (UserManager) context.getSystemService(Context.USER_SERVICE);
         mSecurityPolicy = new SecurityPolicy();
-        mMainHandler = new MainHandler(mContext.getMainLooper());
+        mMainHandler = new MainHandler(looper);
+        if (!LAZY_INIT) {
+            registerPackageMonitor();
+            mPackageMonitorRegistered = true;
+        }
         registerBroadcastReceivers();
         new AccessibilityContentObserver(mMainHandler).register(
                 context.getContentResolver());
     }
 
+    AccessibilityEventRecorder getEventRecorder() {
+        return mEventRecorder;
+    }
+
+    /**
+     * Starts exporting dispatched events to a stream, closing the previous one.
+     */
+    void setEventStream(AccessibilityEventStream stream) {
+        synchronized (mLock) {
+            if (mEventStream != null) {
+                mEventStream.close();
+            }
+            stream.setRedactor(mTextRedactor);
+            mEventStream = stream;
+        }
+    }
+
+    void ackEventStream(IBinder listener, long tail) {
+        synchronized (mLock) {
+            if (mEventStream != null && mEventStream.getListener().asBinder() == listener) {
+                mEventStream.ack(tail);
+            }
+        }
+    }
+
+    void closeEventStream(IBinder listener) {
+        synchronized (mLock) {
+            if (mEventStream != null && mEventStream.getListener().asBinder() == listener) {
+                mEventStream.close();
+                mEventStream = null;
+            }
+        }
+    }
+
     private UserState getUserStateLocked(int userId) {
         UserState state = mUserStates.get(userId);
         if (state == null) {
@@ -254,26 +389,90 @@ public class AccessibilityManagerService extends IAccessibilityManager.Stub {
         return state;
     }
 
-    private void registerBroadcastReceivers() {
+    private void registerPackageMonitor() {
         PackageMonitor monitor = new PackageMonitor() {
+            // Packages reported by the callbacks of the current broadcast, which
+            // all run on the monitor thread before onSomePackagesChanged().
+            private final ArraySet<String> mChangedPackages = new ArraySet<>();
+
+            @Override
+            public void onPackageAppeared(String packageName, int reason) {
+                mChangedPackages.add(packageName);
+            }
+
+            @Override
+            public void onPackageDisappeared(String packageName, int reason) {
+                mChangedPackages.add(packageName);
+            }
+
+            @Override
+            public void onPackageModified(String packageName) {
+                mChangedPackages.add(packageName);
+            }
+
+            @Override
+            public void onPackagesSuspended(String[] packages) {
+                Collections.addAll(mChangedPackages, packages);
+            }
+
+            @Override
+            public void onPackagesUnsuspended(String[] packages) {
+                Collections.addAll(mChangedPackages, packages);
+            }
+
             @Override
             public void onSomePackagesChanged() {
                 synchronized (mLock) {
-                    // Only the profile parent can install accessibility services.
-                    // Therefore we ignore packages from linked profiles.
-                    if (getChangingUserId() != mCurrentUserId) {
-                        return;
-                    }
-                    // We will update when the automation service dies.
-                    UserState userState = getCurrentUserStateLocked();
-                    // We have to reload the installed services since some services may
-                    // have different attributes, resolve info (does not support equals),
-                    // etc. Remove them then to force reload.
-                    userState.mInstalledServices.clear();
-                    if (!userState.isUiAutomationSuppressingOtherServices()) {
-                        if (readConfigurationForUserStateLocked(userState)) {
-                            onUserStateChangedLocked(userState);
+                    try {
+                        // Only the profile parent can install accessibility services.
+                        // Therefore we ignore packages from linked profiles.
+                        final int userId = getChangingUserId();
+                        if (userId != mCurrentUserId) {
+                            // Keep a warm background user current so switching to it
+                            // only rebinds.
+                            UserState backgroundUserState = mUserStates.get(userId);
+                            if (backgroundUserState == null
+                                    || !backgroundUserState.mInstalledServicesRead) {
+                                return;
+                            }
+                            if (!mChangedPackages.isEmpty()) {
+                                readInstalledAccessibilityServicesForPackagesLocked(
+                                        backgroundUserState, mChangedPackages);
+                            } else {
+                                // Not known what changed, rescan when switched to.
+                                backgroundUserState.releaseInstalledServices();
+                            }
+                            return;
                         }
+                        UserState userState = getCurrentUserStateLocked();
+                        if (!mChangedPackages.isEmpty() && userState.mInstalledServicesRead) {
+                            // Only re-resolve the services of the changed packages. The
+                            // installed services are kept current even while automation
+                            // suppresses them so its fake service is not lost.
+                            boolean somethingChanged =
+                                    readInstalledAccessibilityServicesForPackagesLocked(
+                                            userState, mChangedPackages);
+                            // We will update when the automation service dies.
+                            if (!userState.isUiAutomationSuppressingOtherServices()) {
+                                somethingChanged |= readSettingsForUserStateLocked(userState);
+                                if (somethingChanged) {
+                                    onUserStateChangedLocked(userState);
+                                }
+                            }
+                            return;
+                        }
+                        // We have to reload the installed services since some services may
+                        // have different attributes, resolve info (does not support equals),
+                        // etc. Remove them then to force reload.
+                        userState.mInstalledServices.clear();
+                        // We will update when the automation service dies.
+                        if (!userState.isUiAutomationSuppressingOtherServices()) {
+                            if (readConfigurationForUserStateLocked(userState)) {
+                                onUserStateChangedLocked(userState);
+                            }
+                        }
+                    } finally {
+                        mChangedPackages.clear();
                     }
                 }
             }
@@ -377,7 +576,9 @@ public class AccessibilityManagerService extends IAccessibilityManager.Stub {
 
         // package changes
         monitor.register(mContext, null,  UserHandle.ALL, true);
+    }
 
+    private void registerBroadcastReceivers() {
         // user change and unlock
         IntentFilter intentFilter = new IntentFilter();
         intentFilter.addAction(Intent.ACTION_USER_SWITCHED);
@@ -452,30 +653,83 @@ public class AccessibilityManagerService extends IAccessibilityManager.Stub {
 
     @Override
     public boolean sendAccessibilityEvent(AccessibilityEvent event, int userId) {
-        synchronized (mLock) {
-            // We treat calls from a profile as if made by its parent as profiles
-            // share the accessibility state of the parent. The call below
-            // performs the current profile parent resolution..
-            final int resolvedUserId = mSecurityPolicy
-                    .resolveCallingUserIdEnforcingPermissionsLocked(userId);
-            // This method does nothing for a background user.
-            if (resolvedUserId != mCurrentUserId) {
-                return true; // yes, recycle the event
-            }
-            if (mSecurityPolicy.canDispatchAccessibilityEventLocked(event)) {
-                mSecurityPolicy.updateActiveAndAccessibilityFocusedWindowLocked(event.getWindowId(),
-                        event.getSourceNodeId(), event.getEventType(), event.getAction());
-                mSecurityPolicy.updateEventSourceLocked(event);
-                notifyAccessibilityServicesDelayedLocked(event, false);
-                notifyAccessibilityServicesDelayedLocked(event, true);
-            }
-            if (mHasInputFilter && mInputFilter != null) {
-                mMainHandler.obtainMessage(MainHandler.MSG_SEND_ACCESSIBILITY_EVENT_TO_INPUT_FILTER,
-                        AccessibilityEvent.obtain(event)).sendToTarget();
+        Trace.traceBegin(Trace.TRACE_TAG_SYSTEM_SERVER, "a11y.sendAccessibilityEvent");
+        try {
+            final long ingressStartTime = DispatchLatencyTracker.now();
+            final long lockWaitStart = mLockProfiler.start();
+            synchronized (mLock) {
+                final long lockHoldStart = mLockProfiler.acquired(
+                        LockContentionProfiler.SITE_SEND_EVENT, lockWaitStart);
+                try {
+                    mEventLockWaitNanos += DispatchLatencyTracker.now() - ingressStartTime;
+                    // We treat calls from a profile as if made by its parent as profiles
+                    // share the accessibility state of the parent. The call below
+                    // performs the current profile parent resolution..
+                    final int resolvedUserId = mSecurityPolicy
+                            .resolveCallingUserIdEnforcingPermissionsLocked(userId);
+                    mReceivedEventCount++;
+                    // This method does nothing for a background user.
+                    if (resolvedUserId != mCurrentUserId) {
+                        mBackgroundUserEventCount++;
+                        recordEventLocked(event, 0,
+                                AccessibilityEventRecorder.DROP_REASON_BACKGROUND_USER);
+                        return true; // yes, recycle the event
+                    }
+                    if (!mSecurityPolicy.canDispatchAccessibilityEventLocked(event)) {
+                        mRejectedEventCount++;
+                        recordEventLocked(event, 0, AccessibilityEventRecorder.DROP_REASON_POLICY);
+                    } else {
+                        mSecurityPolicy.updateActiveAndAccessibilityFocusedWindowLocked(
+                                event.getWindowId(), event.getSourceNodeId(), event.getEventType(),
+                                event.getAction());
+                        mSecurityPolicy.updateEventSourceLocked(event);
+                        final int eventType = event.getEventType();
+                        mDispatchLatencyTracker.recordLatency(DispatchLatencyTracker.STAGE_INGRESS,
+                                null, eventType, ingressStartTime);
+                        final long routingStartTime = DispatchLatencyTracker.now();
+                        final long notificationCount = mServiceNotificationCount;
+                        notifyAccessibilityServicesDelayedLocked(event, false);
+                        notifyAccessibilityServicesDelayedLocked(event, true);
+                        mDispatchLatencyTracker.recordLatency(DispatchLatencyTracker.STAGE_ROUTING,
+                                null, eventType, routingStartTime);
+                        recordEventLocked(event,
+                                (int) (mServiceNotificationCount - notificationCount),
+                                AccessibilityEventRecorder.DROP_REASON_NONE);
+                    }
+                    if (mHasInputFilter && mInputFilter != null) {
+                        mMainHandler.obtainMessage(
+                                MainHandler.MSG_SEND_ACCESSIBILITY_EVENT_TO_INPUT_FILTER,
+                                AccessibilityEvent.obtain(event)).sendToTarget();
+                    }
+                    event.recycle();
+                } finally {
+                    mLockProfiler.released(LockContentionProfiler.SITE_SEND_EVENT, lockHoldStart);
+                }
             }
-            event.recycle();
+            return (OWN_PROCESS_ID != Binder.getCallingPid());
+        } finally {
+            Trace.traceEnd(Trace.TRACE_TAG_SYSTEM_SERVER);
+        }
+    }
+
+    /**
+     * Records an event and streams it if it was dispatched. Only dispatched
+     * events are sampled, so dropped ones do not use up the sampling budget
+     * and are always recorded.
+     */
+    private void recordEventLocked(AccessibilityEvent event, int fanOut, int dropReason) {
+        if (dropReason != AccessibilityEventRecorder.DROP_REASON_NONE) {
+            mEventRecorder.record(event, fanOut, dropReason);
+            return;
+        }
+        if (!mSamplingPolicy.shouldKeep(event.getEventType(), event.getWindowId(),
+                SystemClock.uptimeMillis())) {
+            return;
+        }
+        mEventRecorder.record(event, fanOut, dropReason);
+        if (mEventStream != null) {
+            mEventStream.write(event);
         }
-        return (OWN_PROCESS_ID != Binder.getCallingPid());
     }
 
     @Override
@@ -489,6 +743,7 @@ public class AccessibilityManagerService extends IAccessibilityManager.Stub {
             // The automation service is a fake one and should not be reported
             // to clients as being installed - it really is not.
             UserState userState = getUserStateLocked(resolvedUserId);
+            ensureInstalledServicesReadLocked(userState);
             if (userState.mUiAutomationService != null) {
                 List<AccessibilityServiceInfo> installedServices = new ArrayList<>();
                 installedServices.addAll(userState.mInstalledServices);
@@ -684,6 +939,8 @@ public class AccessibilityManagerService extends IAccessibilityManager.Stub {
             userState.mUiAutomationServiceOwner = owner;
             userState.mUiAutomationServiceClient = serviceClient;
             userState.mUiAutomationFlags = flags;
+            // Read the installed services first so a later scan does not drop the automation.
+            ensureInstalledServicesReadLocked(userState);
             userState.mInstalledServices.add(accessibilityServiceInfo);
             if ((flags & UiAutomation.FLAG_DONT_SUPPRESS_ACCESSIBILITY_SERVICES) == 0) {
                 // Set the temporary state, and use it instead of settings
@@ -892,6 +1149,7 @@ public class AccessibilityManagerService extends IAccessibilityManager.Stub {
             // Disconnect from services for the old user.
             UserState oldUserState = getCurrentUserStateLocked();
             oldUserState.onSwitchToAnotherUser();
+            oldUserState.mLastActiveTime = SystemClock.uptimeMillis();
 
             // Disable the local managers for the old user.
             if (oldUserState.mClients.getRegisteredCallbackCount() > 0) {
@@ -900,8 +1158,7 @@ public class AccessibilityManagerService extends IAccessibilityManager.Stub {
             }
 
             // Announce user changes only if more that one exist.
-            UserManager userManager = (UserManager) mContext.getSystemService(Context.USER_SERVICE);
-            final boolean announceNewUser = userManager.getUsers().size() > 1;
+            final boolean announceNewUser = mUserManager.getUsers().size() > 1;
 
             // The user changed.
             mCurrentUserId = userId;
@@ -912,11 +1169,18 @@ public class AccessibilityManagerService extends IAccessibilityManager.Stub {
                 userState.mUiAutomationService.binderDied();
             }
 
-            readConfigurationForUserStateLocked(userState);
+            if (userState.mInstalledServicesRead) {
+                // A warm user state, its installed services are still current as
+                // package changes while it was in the background are applied to it.
+                readSettingsForUserStateLocked(userState);
+            } else {
+                readConfigurationForUserStateLocked(userState);
+            }
             // Even if reading did not yield change, we have to update
             // the state since the context in which the current user
             // state was used has changed since it was inactive.
             onUserStateChangedLocked(userState);
+            trimWarmUserStatesLocked();
 
             if (announceNewUser) {
                 // Schedule announcement of the current user if needed.
@@ -936,6 +1200,33 @@ public class AccessibilityManagerService extends IAccessibilityManager.Stub {
         }
     }
 
+    /**
+     * Releases the cached state of the least recently active background users
+     * beyond {@link #MAX_WARM_BACKGROUND_USER_STATES}. Window tokens and
+     * clients are live registrations and are always kept.
+     */
+    private void trimWarmUserStatesLocked() {
+        while (true) {
+            UserState oldest = null;
+            int warmCount = 0;
+            for (int i = 0, count = mUserStates.size(); i < count; i++) {
+                final UserState userState = mUserStates.valueAt(i);
+                if (userState.mUserId == mCurrentUserId || !userState.isWarm()) {
+                    continue;
+                }
+                warmCount++;
+                if (oldest == null || userState.mLastActiveTime < oldest.mLastActiveTime) {
+                    oldest = userState;
+                }
+            }
+            if (warmCount <= MAX_WARM_BACKGROUND_USER_STATES) {
+                return;
+            }
+            oldest.releaseInstalledServices();
+            oldest.mParsedComponentNameSettings.clear();
+        }
+    }
+
     private void removeUser(int userId) {
         synchronized (mLock) {
             mUserStates.remove(userId);
@@ -1035,14 +1326,111 @@ public class AccessibilityManagerService extends IAccessibilityManager.Stub {
     private boolean readInstalledAccessibilityServiceLocked(UserState userState) {
         mTempAccessibilityServiceInfoList.clear();
 
+        queryAccessibilityServicesLocked(mCurrentUserId, null, mTempAccessibilityServiceInfoList);
+
+        userState.mInstalledServicesRead = true;
+        if (!mPackageMonitorRegistered) {
+            // Registering takes locks outside of ours, so do it from the handler.
+            mPackageMonitorRegistered = true;
+            mMainHandler.sendEmptyMessage(MainHandler.MSG_REGISTER_PACKAGE_MONITOR);
+        }
+
+        if (!mTempAccessibilityServiceInfoList.equals(userState.mInstalledServices)) {
+            userState.mInstalledServices.clear();
+            userState.mInstalledServices.addAll(mTempAccessibilityServiceInfoList);
+            mTempAccessibilityServiceInfoList.clear();
+            return true;
+        }
+
+        mTempAccessibilityServiceInfoList.clear();
+        return false;
+    }
+
+    /**
+     * Re-resolves the installed services of some packages, leaving the services
+     * of all other packages untouched. Services that are still installed keep
+     * their position in the list.
+     *
+     * @return Whether any service of the packages was removed, added or changed.
+     */
+    private boolean readInstalledAccessibilityServicesForPackagesLocked(UserState userState,
+            Set<String> packageNames) {
+        final List<AccessibilityServiceInfo> updatedServices = mTempAccessibilityServiceInfoList;
+        updatedServices.clear();
+        for (String packageName : packageNames) {
+            queryAccessibilityServicesLocked(userState.mUserId, packageName, updatedServices);
+        }
+        boolean somethingChanged = false;
+        final List<AccessibilityServiceInfo> installedServices = userState.mInstalledServices;
+        for (int i = installedServices.size() - 1; i >= 0; i--) {
+            final AccessibilityServiceInfo installedService = installedServices.get(i);
+            final ResolveInfo resolveInfo = installedService.getResolveInfo();
+            // The automation service has no resolve info and no package.
+            if (resolveInfo == null
+                    || !packageNames.contains(resolveInfo.serviceInfo.packageName)) {
+                continue;
+            }
+            AccessibilityServiceInfo updatedService = null;
+            for (int j = 0; j < updatedServices.size(); j++) {
+                if (updatedServices.get(j).getId().equals(installedService.getId())) {
+                    updatedService = updatedServices.remove(j);
+                    break;
+                }
+            }
+            if (updatedService == null) {
+                installedServices.remove(i);
+                somethingChanged = true;
+            } else {
+                somethingChanged |= !isSameServiceInfo(installedService, updatedService);
+                installedServices.set(i, updatedService);
+            }
+        }
+        // What is left was not installed before.
+        if (!updatedServices.isEmpty()) {
+            installedServices.addAll(updatedServices);
+            somethingChanged = true;
+        }
+        updatedServices.clear();
+        return somethingChanged;
+    }
+
+    /**
+     * Compares the parts of two infos of a service that the service state is
+     * derived from. AccessibilityServiceInfo#equals only compares the ids.
+     */
+    private static boolean isSameServiceInfo(AccessibilityServiceInfo info,
+            AccessibilityServiceInfo other) {
+        return info.eventTypes == other.eventTypes
+                && info.feedbackType == other.feedbackType
+                && info.notificationTimeout == other.notificationTimeout
+                && info.flags == other.flags
+                && info.getCapabilities() == other.getCapabilities()
+                && Arrays.equals(info.packageNames, other.packageNames)
+                && TextUtils.equals(info.getSettingsActivityName(),
+                        other.getSettingsActivityName())
+                && info.getResolveInfo().serviceInfo.applicationInfo.targetSdkVersion
+                        == other.getResolveInfo().serviceInfo.applicationInfo.targetSdkVersion;
+    }
+
+    /**
+     * Resolves and parses the installed accessibility services of a user.
+     *
+     * @param userId The user whose services to resolve.
+     * @param packageName The package whose services to resolve or null for all.
+     * @param outServices The list to which to add the services.
+     */
+    private void queryAccessibilityServicesLocked(int userId, String packageName,
+            List<AccessibilityServiceInfo> outServices) {
+        Intent intent = new Intent(AccessibilityService.SERVICE_INTERFACE);
+        intent.setPackage(packageName);
         List<ResolveInfo> installedServices = mPackageManager.queryIntentServicesAsUser(
-                new Intent(AccessibilityService.SERVICE_INTERFACE),
+                intent,
                 PackageManager.GET_SERVICES
                         | PackageManager.GET_META_DATA
                         | PackageManager.MATCH_DISABLED_UNTIL_USED_COMPONENTS
                         | PackageManager.MATCH_DIRECT_BOOT_AWARE
                         | PackageManager.MATCH_DIRECT_BOOT_UNAWARE,
-                mCurrentUserId);
+                userId);
 
         for (int i = 0, count = installedServices.size(); i < count; i++) {
             ResolveInfo resolveInfo = installedServices.get(i);
@@ -1058,21 +1446,29 @@ public class AccessibilityManagerService extends IAccessibilityManager.Stub {
             AccessibilityServiceInfo accessibilityServiceInfo;
             try {
                 accessibilityServiceInfo = new AccessibilityServiceInfo(resolveInfo, mContext);
-                mTempAccessibilityServiceInfoList.add(accessibilityServiceInfo);
+                outServices.add(accessibilityServiceInfo);
             } catch (XmlPullParserException | IOException xppe) {
                 Slog.e(LOG_TAG, "Error while initializing AccessibilityServiceInfo", xppe);
             }
         }
+    }
 
-        if (!mTempAccessibilityServiceInfoList.equals(userState.mInstalledServices)) {
-            userState.mInstalledServices.clear();
-            userState.mInstalledServices.addAll(mTempAccessibilityServiceInfoList);
-            mTempAccessibilityServiceInfoList.clear();
-            return true;
+    /**
+     * Reads the installed services of a user. In lazy init mode the package scan
+     * is skipped while the user has no enabled services and no one asked for them.
+     */
+    private boolean readInstalledAccessibilityServicesIfNeededLocked(UserState userState) {
+        if (LAZY_INIT && !userState.mInstalledServicesRead
+                && userState.mEnabledServices.isEmpty()) {
+            return false;
         }
+        return readInstalledAccessibilityServiceLocked(userState);
+    }
 
-        mTempAccessibilityServiceInfoList.clear();
-        return false;
+    private void ensureInstalledServicesReadLocked(UserState userState) {
+        if (!userState.mInstalledServicesRead) {
+            readInstalledAccessibilityServiceLocked(userState);
+        }
     }
 
     private boolean readEnabledAccessibilityServicesLocked(UserState userState) {
@@ -1125,6 +1521,7 @@ public class AccessibilityManagerService extends IAccessibilityManager.Stub {
                 if (service.mIsDefault == isDefault) {
                     if (canDispatchEventToServiceLocked(service, event)) {
                         service.notifyAccessibilityEvent(event);
+                        mServiceNotificationCount++;
                     }
                 }
             }
@@ -1220,7 +1617,38 @@ public class AccessibilityManagerService extends IAccessibilityManager.Stub {
             Set<ComponentName> outComponentNames) {
         String settingValue = Settings.Secure.getStringForUser(mContext.getContentResolver(),
                 settingName, userId);
-        readComponentNamesFromStringLocked(settingValue, outComponentNames, false);
+        ParsedComponentNames parsed = getParsedComponentNamesLocked(settingName, userId);
+        if (parsed != null && parsed.isParsedFrom(settingValue)) {
+            outComponentNames.clear();
+            outComponentNames.addAll(parsed.mComponentNames);
+        } else {
+            readComponentNamesFromStringLocked(settingValue, outComponentNames, false);
+            if (parsed != null) {
+                parsed.set(settingValue, outComponentNames);
+            }
+        }
+    }
+
+    /**
+     * @return The cached parse of a setting, or null for a background user
+     *         whose state is not kept warm so reading it does not fill the
+     *         cache again.
+     */
+    private ParsedComponentNames getParsedComponentNamesLocked(String settingName, int userId) {
+        final UserState userState = (userId == mCurrentUserId)
+                ? getUserStateLocked(userId) : mUserStates.get(userId);
+        if (userState == null
+                || (userId != mCurrentUserId && !userState.mInstalledServicesRead)) {
+            return null;
+        }
+        final ArrayMap<String, ParsedComponentNames> parsedSettings =
+                userState.mParsedComponentNameSettings;
+        ParsedComponentNames parsed = parsedSettings.get(settingName);
+        if (parsed == null) {
+            parsed = new ParsedComponentNames();
+            parsedSettings.put(settingName, parsed);
+        }
+        return parsed;
     }
 
     /**
@@ -1270,53 +1698,71 @@ public class AccessibilityManagerService extends IAccessibilityManager.Stub {
             }
             builder.append(componentName.flattenToShortString());
         }
+        final String settingValue = builder.toString();
         final long identity = Binder.clearCallingIdentity();
         try {
+            // Writing notifies every observer of the setting, skip it if nothing changed.
+            if (settingValue.equals(Settings.Secure.getStringForUser(
+                    mContext.getContentResolver(), settingName, userId))) {
+                return;
+            }
             Settings.Secure.putStringForUser(mContext.getContentResolver(),
-                    settingName, builder.toString(), userId);
+                    settingName, settingValue, userId);
         } finally {
             Binder.restoreCallingIdentity(identity);
         }
+        // The observer reads back what was just written, save it the parsing.
+        final ParsedComponentNames parsed = getParsedComponentNamesLocked(settingName, userId);
+        if (parsed != null) {
+            parsed.set(settingValue, componentNames);
+        }
     }
 
     private void updateServicesLocked(UserState userState) {
-        Map<ComponentName, Service> componentNameToServiceMap =
-                userState.mComponentNameToServiceMap;
-        boolean isUnlockingOrUnlocked = mContext.getSystemService(UserManager.class)
-                .isUserUnlockingOrUnlocked(userState.mUserId);
+        Trace.traceBegin(Trace.TRACE_TAG_SYSTEM_SERVER, "a11y.updateServices");
+        final long lockHoldStart = mLockProfiler.start();
+        try {
+            Map<ComponentName, Service> componentNameToServiceMap =
+                    userState.mComponentNameToServiceMap;
+            boolean isUnlockingOrUnlocked = mUserManager.isUserUnlockingOrUnlocked(
+                    userState.mUserId);
 
-        for (int i = 0, count = userState.mInstalledServices.size(); i < count; i++) {
-            AccessibilityServiceInfo installedService = userState.mInstalledServices.get(i);
-            ComponentName componentName = ComponentName.unflattenFromString(
-                    installedService.getId());
+            for (int i = 0, count = userState.mInstalledServices.size(); i < count; i++) {
+                AccessibilityServiceInfo installedService = userState.mInstalledServices.get(i);
+                ComponentName componentName = ComponentName.unflattenFromString(
+                        installedService.getId());
 
-            Service service = componentNameToServiceMap.get(componentName);
+                Service service = componentNameToServiceMap.get(componentName);
 
-            // Ignore non-encryption-aware services until user is unlocked
-            if (!isUnlockingOrUnlocked && !installedService.isDirectBootAware()) {
-                Slog.d(LOG_TAG, "Ignoring non-encryption-aware service " + componentName);
-                continue;
-            }
+                // Ignore non-encryption-aware services until user is unlocked
+                if (!isUnlockingOrUnlocked && !installedService.isDirectBootAware()) {
+                    Slog.d(LOG_TAG, "Ignoring non-encryption-aware service " + componentName);
+                    continue;
+                }
 
-            // Wait for the binding if it is in process.
-            if (userState.mBindingServices.contains(componentName)) {
-                continue;
-            }
-            if (userState.mEnabledServices.contains(componentName)) {
-                if (service == null) {
-                    service = new Service(userState.mUserId, componentName, installedService);
-                } else if (userState.mBoundServices.contains(service)) {
+                // Wait for the binding if it is in process.
+                if (userState.mBindingServices.contains(componentName)) {
                     continue;
                 }
-                service.bindLocked();
-            } else {
-                if (service != null) {
-                    service.unbindLocked();
+                if (userState.mEnabledServices.contains(componentName)) {
+                    if (service == null) {
+                        service = new Service(userState.mUserId, componentName, installedService);
+                    } else if (userState.mBoundServices.contains(service)) {
+                        continue;
+                    }
+                    service.scheduleBindLocked();
+                } else {
+                    if (service != null) {
+                        service.unbindLocked();
+                    }
                 }
             }
-        }
 
-        updateAccessibilityEnabledSetting(userState);
+            updateAccessibilityEnabledSetting(userState);
+        } finally {
+            mLockProfiler.released(LockContentionProfiler.SITE_UPDATE_SERVICES, lockHoldStart);
+            Trace.traceEnd(Trace.TRACE_TAG_SYSTEM_SERVER);
+        }
     }
 
     private void scheduleUpdateClientsIfNeededLocked(UserState userState) {
@@ -1448,6 +1894,10 @@ public class AccessibilityManagerService extends IAccessibilityManager.Stub {
     private void onUserStateChangedLocked(UserState userState) {
         // TODO: Remove this hack
         mInitialized = true;
+        if (!userState.mEnabledServices.isEmpty()) {
+            // A service was enabled for a user whose installed services were never read.
+            ensureInstalledServicesReadLocked(userState);
+        }
         updateLegacyCapabilitiesLocked(userState);
         updateServicesLocked(userState);
         updateWindowsForAccessibilityCallbackLocked(userState);
@@ -1566,8 +2016,18 @@ public class AccessibilityManagerService extends IAccessibilityManager.Stub {
     }
 
     private boolean readConfigurationForUserStateLocked(UserState userState) {
-        boolean somethingChanged = readInstalledAccessibilityServiceLocked(userState);
-        somethingChanged |= readEnabledAccessibilityServicesLocked(userState);
+        // The enabled services are read first as they decide whether to scan packages.
+        boolean somethingChanged = readSettingsForUserStateLocked(userState);
+        somethingChanged |= readInstalledAccessibilityServicesIfNeededLocked(userState);
+        return somethingChanged;
+    }
+
+    /**
+     * Reads the accessibility settings of a user, which is all of its
+     * configuration except for the installed services.
+     */
+    private boolean readSettingsForUserStateLocked(UserState userState) {
+        boolean somethingChanged = readEnabledAccessibilityServicesLocked(userState);
         somethingChanged |= readTouchExplorationGrantedAccessibilityServicesLocked(userState);
         somethingChanged |= readTouchExplorationEnabledSettingLocked(userState);
         somethingChanged |= readHighTextContrastEnabledSettingLocked(userState);
@@ -1922,70 +2382,289 @@ public class AccessibilityManagerService extends IAccessibilityManager.Stub {
             }
         }
 
-        public void addService(ComponentName component) {
-            mServices.add(component.flattenToString());
+        public void addService(ComponentName component) {
+            mServices.add(component.flattenToString());
+        }
+
+        public void deleteService(ComponentName component) {
+            mServices.remove(component.flattenToString());
+        }
+
+        public void writeToSettings() {
+            Settings.Secure.putStringForUser(mContentResolver, mSettingsName,
+                    TextUtils.join(SETTINGS_DELIMITER, mServices), mUserId);
+        }
+    }
+
+    @Override
+    public void dump(FileDescriptor fd, final PrintWriter pw, String[] args) {
+        mSecurityPolicy.enforceCallingPermission(Manifest.permission.DUMP, FUNCTION_DUMP);
+        boolean checkin = false;
+        boolean saveEvents = false;
+        boolean resetStats = false;
+        if (args != null) {
+            for (int i = 0; i < args.length; i++) {
+                final String arg = args[i];
+                if (DUMP_ARG_CHECKIN.equals(arg)) {
+                    checkin = true;
+                } else if (DUMP_ARG_SAVE_EVENTS.equals(arg)) {
+                    saveEvents = true;
+                } else if (DUMP_ARG_RESET_STATS.equals(arg)) {
+                    resetStats = true;
+                } else if (DUMP_ARG_LOAD.equals(arg)) {
+                    runLoad(pw, Arrays.copyOfRange(args, i + 1, args.length));
+                    return;
+                } else if (DUMP_ARG_LOAD_STATUS.equals(arg)) {
+                    mLoadGenerator.dumpStatus(pw);
+                    return;
+                } else if (DUMP_ARG_LOAD_STOP.equals(arg)) {
+                    mLoadGenerator.stop(pw);
+                    return;
+                } else if (DUMP_ARG_LOCK_PROFILE.equals(arg)) {
+                    setLockProfileEnabled(pw, (i + 1 < args.length) ? args[i + 1] : null);
+                    return;
+                } else if (DUMP_ARG_SAMPLING.equals(arg)) {
+                    configureSampling(pw, Arrays.copyOfRange(args, i + 1, args.length));
+                    return;
+                } else if (DUMP_ARG_REDACTION.equals(arg)) {
+                    configureRedaction(pw, Arrays.copyOfRange(args, i + 1, args.length));
+                    return;
+                }
+            }
+        }
+        if (saveEvents) {
+            saveRecordedEvents(pw);
+            return;
+        }
+        if (resetStats) {
+            resetStats();
+            pw.println("Accessibility stats reset.");
+            return;
+        }
+        // Only copy the state under the lock, formatting it can take a while.
+        final AccessibilityStateSnapshot snapshot = takeStateSnapshot();
+        try {
+            if (checkin) {
+                snapshot.dumpCheckin(pw);
+                mDispatchLatencyTracker.dumpCheckin(pw);
+                mEventRecorder.dumpCheckin(pw);
+                return;
+            }
+            snapshot.dump(pw, mPackageManager);
+        } finally {
+            snapshot.recycle();
+        }
+        pw.println();
+        mDispatchLatencyTracker.dump(pw);
+        if (mLockProfiler.isEnabled()) {
+            pw.println();
+            mLockProfiler.dump(pw);
+        }
+        pw.println();
+        mEventRecorder.dump(pw);
+    }
+
+    private void setLockProfileEnabled(PrintWriter pw, String state) {
+        if ("on".equals(state) || "off".equals(state)) {
+            final boolean enabled = "on".equals(state);
+            synchronized (mLock) {
+                if (enabled != mLockProfiler.isEnabled()) {
+                    mLockProfiler.setEnabled(enabled);
+                    if (Build.IS_DEBUGGABLE) {
+                        if (enabled) {
+                            AllocationCounting.acquire();
+                        } else {
+                            AllocationCounting.release();
+                        }
+                        mCountWindowsChangedAllocations = enabled;
+                    }
+                }
+            }
+        } else if (state != null) {
+            pw.println("Usage: " + DUMP_ARG_LOCK_PROFILE + " [on|off]");
+            return;
+        }
+        mLockProfiler.dump(pw);
+    }
+
+    private void saveRecordedEvents(PrintWriter pw) {
+        final File file = new File(Environment.getDataSystemDirectory(),
+                RECORDED_EVENTS_FILE_NAME);
+        final long identity = Binder.clearCallingIdentity();
+        try {
+            final int count = mEventRecorder.saveToFile(file);
+            pw.println("Saved " + count + " events to " + file);
+        } catch (IOException ioe) {
+            pw.println("Failed to save events to " + file + ": " + ioe);
+        } finally {
+            Binder.restoreCallingIdentity(identity);
+        }
+    }
+
+    /**
+     * Changes the sampling policy as described by dump arguments and prints it.
+     * <p>
+     * rate &lt;type&gt; &lt;n&gt;: keeps one in n events of a type, 0 for none.
+     * keep &lt;types&gt;: never samples the types in a mask.
+     * window &lt;max&gt; &lt;slice ms&gt;: keeps at most max events per window and slice.
+     * reset: records all events again.
+     * </p>
+     */
+    private void configureSampling(PrintWriter pw, String[] args) {
+        synchronized (mLock) {
+            try {
+                if (args.length == 3 && "rate".equals(args[0])) {
+                    mSamplingPolicy.setRate(Integer.decode(args[1]), Integer.parseInt(args[2]));
+                } else if (args.length == 2 && "keep".equals(args[0])) {
+                    mSamplingPolicy.setKeepTypes(Integer.decode(args[1]));
+                } else if (args.length == 3 && "window".equals(args[0])) {
+                    mSamplingPolicy.setWindowLimit(Integer.parseInt(args[1]),
+                            Long.parseLong(args[2]));
+                } else if (args.length == 1 && "reset".equals(args[0])) {
+                    mSamplingPolicy.reset();
+                } else if (args.length != 0) {
+                    throw new IllegalArgumentException("Unknown arguments");
+                }
+            } catch (IllegalArgumentException iae) {
+                pw.println(iae.getMessage());
+                pw.println("Usage: " + DUMP_ARG_SAMPLING
+                        + " [rate <type> <n> | keep <types> | window <max> <slice ms> | reset]");
+                return;
+            }
+            mSamplingPolicy.dump(pw);
+        }
+    }
+
+    /**
+     * Sets the words masked in streamed event text and prints the redaction
+     * stats. The words are passed as one comma separated argument after
+     * "words", no argument after it clears them.
+     */
+    private void configureRedaction(PrintWriter pw, String[] args) {
+        synchronized (mLock) {
+            if (args.length > 0) {
+                if (!"words".equals(args[0]) || args.length > 2) {
+                    pw.println("Usage: " + DUMP_ARG_REDACTION + " [words [<word>,<word>...]]");
+                    return;
+                }
+                final String[] words = (args.length == 2)
+                        ? TextUtils.split(args[1], ",") : new String[0];
+                try {
+                    mTextRedactor.setWords(words);
+                } catch (IllegalArgumentException iae) {
+                    pw.println(iae.getMessage());
+                    return;
+                }
+            }
+            mTextRedactor.dump(pw);
+            if (mEventStream != null) {
+                pw.append("  passwordEventsSkipped=");
+                pw.println(mEventStream.getPasswordCount());
+            }
+        }
+    }
+
+    /**
+     * Starts sending generated events to this service in the background, on
+     * debuggable builds only since the events are really dispatched.
+     */
+    private void runLoad(PrintWriter pw, String[] args) {
+        if (!Build.IS_DEBUGGABLE) {
+            pw.println("Load generation is only available on debuggable builds.");
+            return;
         }
+        final File file = new File(Environment.getDataSystemDirectory(),
+                RECORDED_EVENTS_FILE_NAME);
+        mLoadGenerator.start(pw, args, file);
+    }
 
-        public void deleteService(ComponentName component) {
-            mServices.remove(component.flattenToString());
-        }
+    /**
+     * Clears the event counters and the dispatch latencies, so a run of a
+     * workload can be measured on its own. The recorded events are kept,
+     * collectors rely on their sequence numbers and bugreports on their
+     * history.
+     */
+    private void resetStats() {
+        synchronized (mLock) {
+            mReceivedEventCount = 0;
+            mBackgroundUserEventCount = 0;
+            mRejectedEventCount = 0;
+            mServiceNotificationCount = 0;
+            mEventLockWaitNanos = 0;
+            mStatsStartTime = SystemClock.uptimeMillis();
+            mWindowsChangedLatency.reset();
+            mWindowsChangedAllocUpdateCount = 0;
+            mWindowsChangedAllocCount = 0;
+            mWindowsChangedAllocBytes = 0;
+        }
+        mDispatchLatencyTracker.reset();
+    }
 
-        public void writeToSettings() {
-            Settings.Secure.putStringForUser(mContentResolver, mSettingsName,
-                    TextUtils.join(SETTINGS_DELIMITER, mServices), mUserId);
+    /**
+     * Copies the state reported by dump under the lock. The windows in the
+     * snapshot are clones and must be recycled.
+     */
+    AccessibilityStateSnapshot takeStateSnapshot() {
+        final long lockWaitStart = mLockProfiler.start();
+        synchronized (mLock) {
+            final long lockHoldStart = mLockProfiler.acquired(
+                    LockContentionProfiler.SITE_DUMP, lockWaitStart);
+            try {
+                return takeStateSnapshotLocked();
+            } finally {
+                mLockProfiler.released(LockContentionProfiler.SITE_DUMP, lockHoldStart);
+            }
         }
     }
 
-    @Override
-    public void dump(FileDescriptor fd, final PrintWriter pw, String[] args) {
-        mSecurityPolicy.enforceCallingPermission(Manifest.permission.DUMP, FUNCTION_DUMP);
-        synchronized (mLock) {
-            pw.println("ACCESSIBILITY MANAGER (dumpsys accessibility)");
-            pw.println();
-            final int userCount = mUserStates.size();
-            for (int i = 0; i < userCount; i++) {
-                UserState userState = mUserStates.valueAt(i);
-                pw.append("User state[attributes:{id=" + userState.mUserId);
-                pw.append(", currentUser=" + (userState.mUserId == mCurrentUserId));
-                pw.append(", touchExplorationEnabled=" + userState.mIsTouchExplorationEnabled);
-                pw.append(", displayMagnificationEnabled="
-                        + userState.mIsDisplayMagnificationEnabled);
-                pw.append(", autoclickEnabled=" + userState.mIsAutoclickEnabled);
-                if (userState.mUiAutomationService != null) {
-                    pw.append(", ");
-                    userState.mUiAutomationService.dump(fd, pw, args);
-                    pw.println();
-                }
-                pw.append("}");
-                pw.println();
-                pw.append("           services:{");
-                final int serviceCount = userState.mBoundServices.size();
-                for (int j = 0; j < serviceCount; j++) {
-                    if (j > 0) {
-                        pw.append(", ");
-                        pw.println();
-                        pw.append("                     ");
-                    }
-                    Service service = userState.mBoundServices.get(j);
-                    service.dump(fd, pw, args);
-                }
-                pw.println("}]");
-                pw.println();
+    /**
+     * Copies the state reported by dump so it can be formatted without holding
+     * the lock. The windows in the snapshot are clones and must be recycled.
+     */
+    private AccessibilityStateSnapshot takeStateSnapshotLocked() {
+        AccessibilityStateSnapshot snapshot = new AccessibilityStateSnapshot();
+        snapshot.mCurrentUserId = mCurrentUserId;
+        snapshot.mReceivedEventCount = mReceivedEventCount;
+        snapshot.mBackgroundUserEventCount = mBackgroundUserEventCount;
+        snapshot.mRejectedEventCount = mRejectedEventCount;
+        snapshot.mServiceNotificationCount = mServiceNotificationCount;
+        snapshot.mEventLockWaitNanos = mEventLockWaitNanos;
+        snapshot.mStatsDurationMillis = SystemClock.uptimeMillis() - mStatsStartTime;
+        snapshot.mWindowsChangedLatency.add(mWindowsChangedLatency);
+        snapshot.mWindowsChangedAllocUpdateCount = mWindowsChangedAllocUpdateCount;
+        snapshot.mWindowsChangedAllocCount = mWindowsChangedAllocCount;
+        snapshot.mWindowsChangedAllocBytes = mWindowsChangedAllocBytes;
+        final int userCount = mUserStates.size();
+        for (int i = 0; i < userCount; i++) {
+            UserState userState = mUserStates.valueAt(i);
+            AccessibilityStateSnapshot.UserStateSnapshot user =
+                    new AccessibilityStateSnapshot.UserStateSnapshot();
+            user.mUserId = userState.mUserId;
+            user.mIsTouchExplorationEnabled = userState.mIsTouchExplorationEnabled;
+            user.mIsDisplayMagnificationEnabled = userState.mIsDisplayMagnificationEnabled;
+            user.mIsAutoclickEnabled = userState.mIsAutoclickEnabled;
+            user.mEnabledServiceCount = userState.mEnabledServices.size();
+            user.mBindingServiceCount = userState.mBindingServices.size();
+            final int serviceCount = userState.mBoundServices.size();
+            for (int j = 0; j < serviceCount; j++) {
+                user.mServices.add(userState.mBoundServices.get(j).snapshotLocked());
             }
-            if (mSecurityPolicy.mWindows != null) {
-                final int windowCount = mSecurityPolicy.mWindows.size();
-                for (int j = 0; j < windowCount; j++) {
-                    if (j > 0) {
-                        pw.append(',');
-                        pw.println();
-                    }
-                    pw.append("Window[");
-                    AccessibilityWindowInfo window = mSecurityPolicy.mWindows.get(j);
-                    pw.append(window.toString());
-                    pw.append(']');
-                }
+            if (userState.mUiAutomationService != null) {
+                user.mUiAutomationService = userState.mUiAutomationService.snapshotLocked();
+            }
+            snapshot.mUserStates.add(user);
+        }
+        snapshot.mActiveWindowId = mSecurityPolicy.mActiveWindowId;
+        snapshot.mFocusedWindowId = mSecurityPolicy.mFocusedWindowId;
+        snapshot.mAccessibilityFocusedWindowId = mSecurityPolicy.mAccessibilityFocusedWindowId;
+        if (mSecurityPolicy.mWindows != null) {
+            final int windowCount = mSecurityPolicy.mWindows.size();
+            for (int i = 0; i < windowCount; i++) {
+                snapshot.mWindows.add(AccessibilityWindowInfo.obtain(
+                        mSecurityPolicy.mWindows.get(i)));
             }
         }
+        return snapshot;
     }
 
     private class AccessibilityConnectionWrapper implements DeathRecipient {
@@ -2026,6 +2705,8 @@ public class AccessibilityManagerService extends IAccessibilityManager.Stub {
         public static final int MSG_SHOW_ENABLED_TOUCH_EXPLORATION_DIALOG = 7;
         public static final int MSG_SEND_KEY_EVENT_TO_INPUT_FILTER = 8;
         public static final int MSG_CLEAR_ACCESSIBILITY_FOCUS = 9;
+        public static final int MSG_REGISTER_PACKAGE_MONITOR = 10;
+        public static final int MSG_BIND_SERVICE = 11;
 
         public MainHandler(Looper looper) {
             super(looper);
@@ -2090,6 +2771,24 @@ public class AccessibilityManagerService extends IAccessibilityManager.Stub {
                     }
                     bridge.clearAccessibilityFocusNotLocked(windowId);
                 } break;
+
+                case MSG_BIND_SERVICE: {
+                    Service service = (Service) msg.obj;
+                    service.bindNotLocked();
+                } break;
+
+                case MSG_REGISTER_PACKAGE_MONITOR: {
+                    registerPackageMonitor();
+                    // Pick up packages that changed between the first scan and now.
+                    synchronized (mLock) {
+                        UserState userState = getCurrentUserStateLocked();
+                        if (userState.mInstalledServicesRead
+                                && userState.mUiAutomationService == null
+                                && readInstalledAccessibilityServiceLocked(userState)) {
+                            onUserStateChangedLocked(userState);
+                        }
+                    }
+                } break;
             }
         }
 
@@ -2097,10 +2796,8 @@ public class AccessibilityManagerService extends IAccessibilityManager.Stub {
             synchronized (mLock) {
                 UserState userState = getCurrentUserStateLocked();
                 if (userState.isHandlingAccessibilityEvents()) {
-                    UserManager userManager = (UserManager) mContext.getSystemService(
-                            Context.USER_SERVICE);
                     String message = mContext.getString(R.string.user_switched,
-                            userManager.getUserInfo(mCurrentUserId).name);
+                            mUserManager.getUserInfo(mCurrentUserId).name);
                     AccessibilityEvent event = AccessibilityEvent.obtain(
                             AccessibilityEvent.TYPE_ANNOUNCEMENT);
                     event.getText().add(message);
@@ -2248,8 +2945,24 @@ public class AccessibilityManagerService extends IAccessibilityManager.Stub {
         final SparseArray<AccessibilityEvent> mPendingEvents =
             new SparseArray<>();
 
+        // Number of dispatch messages in the queue, reported as a trace counter.
+        int mPendingEventCount;
+
+        // Number of dispatch messages in the queue by event type.
+        final SparseIntArray mPendingEventCounts = new SparseIntArray();
+
+        // Cookie of the async trace slice of the next event that is not throttled.
+        int mNextTraceCookie;
+
+        final String mPendingEventsTraceName;
+
         boolean mWasConnectedAndDied;
 
+        // Whether bindServiceAsUser() was called and not undone, guarded by mLock.
+        boolean mBindIssued;
+
+        final String mBindTraceName;
+
         // Handler only for dispatching accessibility events since we use event
         // types as message types allowing us to remove messages per event type.
         public Handler mEventDispatchHandler = new Handler(mMainHandler.getLooper()) {
@@ -2257,7 +2970,8 @@ public class AccessibilityManagerService extends IAccessibilityManager.Stub {
             public void handleMessage(Message message) {
                 final int eventType =  message.what;
                 AccessibilityEvent event = (AccessibilityEvent) message.obj;
-                notifyAccessibilityEventInternal(eventType, event);
+                final long enqueueTime = DispatchLatencyTracker.fromMessageTime(message.arg2);
+                notifyAccessibilityEventInternal(eventType, event, message.arg1, enqueueTime);
             }
         };
 
@@ -2273,6 +2987,8 @@ public class AccessibilityManagerService extends IAccessibilityManager.Stub {
             mComponentName = componentName;
             mAccessibilityServiceInfo = accessibilityServiceInfo;
             mIsAutomation = (sFakeAccessibilityServiceComponentName.equals(componentName));
+            mPendingEventsTraceName = "a11y.pending " + componentName.flattenToShortString();
+            mBindTraceName = "a11y.bind " + componentName.flattenToShortString();
             if (!mIsAutomation) {
                 mIntent = new Intent().setComponent(mComponentName);
                 mIntent.putExtra(Intent.EXTRA_CLIENT_LABEL,
@@ -2323,6 +3039,64 @@ public class AccessibilityManagerService extends IAccessibilityManager.Stub {
                     & AccessibilityServiceInfo.FLAG_RETRIEVE_INTERACTIVE_WINDOWS) != 0;
         }
 
+        /**
+         * Marks the service as binding and makes the bind call from the main
+         * handler, outside of the lock. Binding goes through the activity
+         * manager and takes a while, so enabling several services at once
+         * would otherwise hold up event dispatch. Each bind completes on its
+         * own in {@link #onServiceConnected}, which is tracked through
+         * {@link UserState#mBindingServices} as before.
+         */
+        public void scheduleBindLocked() {
+            if (mIsAutomation) {
+                bindLocked();
+                return;
+            }
+            if (mService != null || mBindIssued) {
+                return;
+            }
+            getUserStateLocked(mUserId).mBindingServices.add(mComponentName);
+            mMainHandler.obtainMessage(MainHandler.MSG_BIND_SERVICE, this).sendToTarget();
+        }
+
+        /**
+         * Makes the bind call scheduled by {@link #scheduleBindLocked} unless the
+         * binding was cancelled in the meantime.
+         */
+        void bindNotLocked() {
+            synchronized (mLock) {
+                if (mBindIssued || !getUserStateLocked(mUserId).mBindingServices.contains(
+                        mComponentName)) {
+                    return;
+                }
+                mBindIssued = true;
+            }
+            Trace.asyncTraceBegin(Trace.TRACE_TAG_SYSTEM_SERVER, mBindTraceName, mId);
+            boolean bound = false;
+            final long identity = Binder.clearCallingIdentity();
+            try {
+                bound = mContext.bindServiceAsUser(mIntent, this,
+                        Context.BIND_AUTO_CREATE | Context.BIND_FOREGROUND_SERVICE_WHILE_AWAKE,
+                        new UserHandle(mUserId));
+            } finally {
+                Binder.restoreCallingIdentity(identity);
+            }
+            synchronized (mLock) {
+                final UserState userState = getUserStateLocked(mUserId);
+                if (!bound) {
+                    Trace.asyncTraceEnd(Trace.TRACE_TAG_SYSTEM_SERVER, mBindTraceName, mId);
+                    mBindIssued = false;
+                    userState.mBindingServices.remove(mComponentName);
+                } else if (mService == null
+                        && !userState.mBindingServices.contains(mComponentName)) {
+                    // Cancelled, for example by a user switch, while we were binding.
+                    Trace.asyncTraceEnd(Trace.TRACE_TAG_SYSTEM_SERVER, mBindTraceName, mId);
+                    mBindIssued = false;
+                    mContext.unbindService(this);
+                }
+            }
+        }
+
         /**
          * Binds to the accessibility service.
          *
@@ -2370,6 +3144,7 @@ public class AccessibilityManagerService extends IAccessibilityManager.Stub {
             getKeyEventDispatcher().flush(this);
             if (!mIsAutomation) {
                 mContext.unbindService(this);
+                mBindIssued = false;
             } else {
                 userState.destroyUiAutomationService();
             }
@@ -2460,7 +3235,9 @@ public class AccessibilityManagerService extends IAccessibilityManager.Stub {
                 UserState userState = getUserStateLocked(mUserId);
                 addServiceLocked(this, userState);
                 if (userState.mBindingServices.contains(mComponentName) || mWasConnectedAndDied) {
-                    userState.mBindingServices.remove(mComponentName);
+                    if (userState.mBindingServices.remove(mComponentName) && !mIsAutomation) {
+                        Trace.asyncTraceEnd(Trace.TRACE_TAG_SYSTEM_SERVER, mBindTraceName, mId);
+                    }
                     mWasConnectedAndDied = false;
                     try {
                        mServiceInterface.init(this, mId, mOverlayWindowToken);
@@ -2540,34 +3317,19 @@ public class AccessibilityManagerService extends IAccessibilityManager.Stub {
                 long accessibilityNodeId, String viewIdResName, int interactionId,
                 IAccessibilityInteractionConnectionCallback callback, long interrogatingTid)
                 throws RemoteException {
-            final int resolvedWindowId;
-            IAccessibilityInteractionConnection connection = null;
-            Region partialInteractiveRegion = Region.obtain();
-            synchronized (mLock) {
-                if (!isCalledForCurrentUserLocked()) {
-                    return false;
-                }
-                resolvedWindowId = resolveAccessibilityWindowIdLocked(accessibilityWindowId);
-                final boolean permissionGranted =
-                        mSecurityPolicy.canGetAccessibilityNodeInfoLocked(this, resolvedWindowId);
-                if (!permissionGranted) {
-                    return false;
-                } else {
-                    connection = getConnectionLocked(resolvedWindowId);
-                    if (connection == null) {
-                        return false;
-                    }
-                }
-                if (!mSecurityPolicy.computePartialInteractiveRegionForWindowLocked(
-                        resolvedWindowId, partialInteractiveRegion)) {
-                    partialInteractiveRegion.recycle();
-                    partialInteractiveRegion = null;
-                }
+            final QueryTarget target = prepareQuery(accessibilityWindowId, false, 0);
+            if (target == null) {
+                return false;
             }
+            final int resolvedWindowId = target.mWindowId;
+            final IAccessibilityInteractionConnection connection = target.mConnection;
+            final Region partialInteractiveRegion = target.mPartialInteractiveRegion;
             final int interrogatingPid = Binder.getCallingPid();
             final long identityToken = Binder.clearCallingIdentity();
             MagnificationSpec spec = getCompatibleMagnificationSpecLocked(resolvedWindowId);
             try {
+                Trace.traceBegin(Trace.TRACE_TAG_SYSTEM_SERVER,
+                        "a11y.findAccessibilityNodeInfosByViewId");
                 connection.findAccessibilityNodeInfosByViewId(accessibilityNodeId, viewIdResName,
                         partialInteractiveRegion, interactionId, callback, mFetchFlags,
                         interrogatingPid, interrogatingTid, spec);
@@ -2577,6 +3339,7 @@ public class AccessibilityManagerService extends IAccessibilityManager.Stub {
                     Slog.e(LOG_TAG, "Error findAccessibilityNodeInfoByViewId().");
                 }
             } finally {
+                Trace.traceEnd(Trace.TRACE_TAG_SYSTEM_SERVER);
                 Binder.restoreCallingIdentity(identityToken);
                 // Recycle if passed to another process.
                 if (partialInteractiveRegion != null && Binder.isProxy(connection)) {
@@ -2591,34 +3354,19 @@ public class AccessibilityManagerService extends IAccessibilityManager.Stub {
                 long accessibilityNodeId, String text, int interactionId,
                 IAccessibilityInteractionConnectionCallback callback, long interrogatingTid)
                 throws RemoteException {
-            final int resolvedWindowId;
-            IAccessibilityInteractionConnection connection = null;
-            Region partialInteractiveRegion = Region.obtain();
-            synchronized (mLock) {
-                if (!isCalledForCurrentUserLocked()) {
-                    return false;
-                }
-                resolvedWindowId = resolveAccessibilityWindowIdLocked(accessibilityWindowId);
-                final boolean permissionGranted =
-                    mSecurityPolicy.canGetAccessibilityNodeInfoLocked(this, resolvedWindowId);
-                if (!permissionGranted) {
-                    return false;
-                } else {
-                    connection = getConnectionLocked(resolvedWindowId);
-                    if (connection == null) {
-                        return false;
-                    }
-                }
-                if (!mSecurityPolicy.computePartialInteractiveRegionForWindowLocked(
-                        resolvedWindowId, partialInteractiveRegion)) {
-                    partialInteractiveRegion.recycle();
-                    partialInteractiveRegion = null;
-                }
+            final QueryTarget target = prepareQuery(accessibilityWindowId, false, 0);
+            if (target == null) {
+                return false;
             }
+            final int resolvedWindowId = target.mWindowId;
+            final IAccessibilityInteractionConnection connection = target.mConnection;
+            final Region partialInteractiveRegion = target.mPartialInteractiveRegion;
             final int interrogatingPid = Binder.getCallingPid();
             final long identityToken = Binder.clearCallingIdentity();
             MagnificationSpec spec = getCompatibleMagnificationSpecLocked(resolvedWindowId);
             try {
+                Trace.traceBegin(Trace.TRACE_TAG_SYSTEM_SERVER,
+                        "a11y.findAccessibilityNodeInfosByText");
                 connection.findAccessibilityNodeInfosByText(accessibilityNodeId, text,
                         partialInteractiveRegion, interactionId, callback, mFetchFlags,
                         interrogatingPid, interrogatingTid, spec);
@@ -2628,6 +3376,7 @@ public class AccessibilityManagerService extends IAccessibilityManager.Stub {
                     Slog.e(LOG_TAG, "Error calling findAccessibilityNodeInfosByText()");
                 }
             } finally {
+                Trace.traceEnd(Trace.TRACE_TAG_SYSTEM_SERVER);
                 Binder.restoreCallingIdentity(identityToken);
                 // Recycle if passed to another process.
                 if (partialInteractiveRegion != null && Binder.isProxy(connection)) {
@@ -2642,34 +3391,19 @@ public class AccessibilityManagerService extends IAccessibilityManager.Stub {
                 int accessibilityWindowId, long accessibilityNodeId, int interactionId,
                 IAccessibilityInteractionConnectionCallback callback, int flags,
                 long interrogatingTid) throws RemoteException {
-            final int resolvedWindowId;
-            IAccessibilityInteractionConnection connection = null;
-            Region partialInteractiveRegion = Region.obtain();
-            synchronized (mLock) {
-                if (!isCalledForCurrentUserLocked()) {
-                    return false;
-                }
-                resolvedWindowId = resolveAccessibilityWindowIdLocked(accessibilityWindowId);
-                final boolean permissionGranted =
-                    mSecurityPolicy.canGetAccessibilityNodeInfoLocked(this, resolvedWindowId);
-                if (!permissionGranted) {
-                    return false;
-                } else {
-                    connection = getConnectionLocked(resolvedWindowId);
-                    if (connection == null) {
-                        return false;
-                    }
-                }
-                if (!mSecurityPolicy.computePartialInteractiveRegionForWindowLocked(
-                        resolvedWindowId, partialInteractiveRegion)) {
-                    partialInteractiveRegion.recycle();
-                    partialInteractiveRegion = null;
-                }
+            final QueryTarget target = prepareQuery(accessibilityWindowId, false, 0);
+            if (target == null) {
+                return false;
             }
+            final int resolvedWindowId = target.mWindowId;
+            final IAccessibilityInteractionConnection connection = target.mConnection;
+            final Region partialInteractiveRegion = target.mPartialInteractiveRegion;
             final int interrogatingPid = Binder.getCallingPid();
             final long identityToken = Binder.clearCallingIdentity();
             MagnificationSpec spec = getCompatibleMagnificationSpecLocked(resolvedWindowId);
             try {
+                Trace.traceBegin(Trace.TRACE_TAG_SYSTEM_SERVER,
+                        "a11y.findAccessibilityNodeInfoByAccessibilityId");
                 connection.findAccessibilityNodeInfoByAccessibilityId(accessibilityNodeId,
                         partialInteractiveRegion, interactionId, callback, mFetchFlags | flags,
                         interrogatingPid, interrogatingTid, spec);
@@ -2679,6 +3413,7 @@ public class AccessibilityManagerService extends IAccessibilityManager.Stub {
                     Slog.e(LOG_TAG, "Error calling findAccessibilityNodeInfoByAccessibilityId()");
                 }
             } finally {
+                Trace.traceEnd(Trace.TRACE_TAG_SYSTEM_SERVER);
                 Binder.restoreCallingIdentity(identityToken);
                 // Recycle if passed to another process.
                 if (partialInteractiveRegion != null && Binder.isProxy(connection)) {
@@ -2693,35 +3428,18 @@ public class AccessibilityManagerService extends IAccessibilityManager.Stub {
                 int focusType, int interactionId,
                 IAccessibilityInteractionConnectionCallback callback, long interrogatingTid)
                 throws RemoteException {
-            final int resolvedWindowId;
-            IAccessibilityInteractionConnection connection = null;
-            Region partialInteractiveRegion = Region.obtain();
-            synchronized (mLock) {
-                if (!isCalledForCurrentUserLocked()) {
-                    return false;
-                }
-                resolvedWindowId = resolveAccessibilityWindowIdForFindFocusLocked(
-                        accessibilityWindowId, focusType);
-                final boolean permissionGranted =
-                    mSecurityPolicy.canGetAccessibilityNodeInfoLocked(this, resolvedWindowId);
-                if (!permissionGranted) {
-                    return false;
-                } else {
-                    connection = getConnectionLocked(resolvedWindowId);
-                    if (connection == null) {
-                        return false;
-                    }
-                }
-                if (!mSecurityPolicy.computePartialInteractiveRegionForWindowLocked(
-                        resolvedWindowId, partialInteractiveRegion)) {
-                    partialInteractiveRegion.recycle();
-                    partialInteractiveRegion = null;
-                }
+            final QueryTarget target = prepareQuery(accessibilityWindowId, true, focusType);
+            if (target == null) {
+                return false;
             }
+            final int resolvedWindowId = target.mWindowId;
+            final IAccessibilityInteractionConnection connection = target.mConnection;
+            final Region partialInteractiveRegion = target.mPartialInteractiveRegion;
             final int interrogatingPid = Binder.getCallingPid();
             final long identityToken = Binder.clearCallingIdentity();
             MagnificationSpec spec = getCompatibleMagnificationSpecLocked(resolvedWindowId);
             try {
+                Trace.traceBegin(Trace.TRACE_TAG_SYSTEM_SERVER, "a11y.findFocus");
                 connection.findFocus(accessibilityNodeId, focusType, partialInteractiveRegion,
                         interactionId, callback, mFetchFlags, interrogatingPid, interrogatingTid,
                         spec);
@@ -2731,6 +3449,7 @@ public class AccessibilityManagerService extends IAccessibilityManager.Stub {
                     Slog.e(LOG_TAG, "Error calling findFocus()");
                 }
             } finally {
+                Trace.traceEnd(Trace.TRACE_TAG_SYSTEM_SERVER);
                 Binder.restoreCallingIdentity(identityToken);
                 // Recycle if passed to another process.
                 if (partialInteractiveRegion != null && Binder.isProxy(connection)) {
@@ -2745,34 +3464,18 @@ public class AccessibilityManagerService extends IAccessibilityManager.Stub {
                 int direction, int interactionId,
                 IAccessibilityInteractionConnectionCallback callback, long interrogatingTid)
                 throws RemoteException {
-            final int resolvedWindowId;
-            IAccessibilityInteractionConnection connection = null;
-            Region partialInteractiveRegion = Region.obtain();
-            synchronized (mLock) {
-                if (!isCalledForCurrentUserLocked()) {
-                    return false;
-                }
-                resolvedWindowId = resolveAccessibilityWindowIdLocked(accessibilityWindowId);
-                final boolean permissionGranted =
-                    mSecurityPolicy.canGetAccessibilityNodeInfoLocked(this, resolvedWindowId);
-                if (!permissionGranted) {
-                    return false;
-                } else {
-                    connection = getConnectionLocked(resolvedWindowId);
-                    if (connection == null) {
-                        return false;
-                    }
-                }
-                if (!mSecurityPolicy.computePartialInteractiveRegionForWindowLocked(
-                        resolvedWindowId, partialInteractiveRegion)) {
-                    partialInteractiveRegion.recycle();
-                    partialInteractiveRegion = null;
-                }
+            final QueryTarget target = prepareQuery(accessibilityWindowId, false, 0);
+            if (target == null) {
+                return false;
             }
+            final int resolvedWindowId = target.mWindowId;
+            final IAccessibilityInteractionConnection connection = target.mConnection;
+            final Region partialInteractiveRegion = target.mPartialInteractiveRegion;
             final int interrogatingPid = Binder.getCallingPid();
             final long identityToken = Binder.clearCallingIdentity();
             MagnificationSpec spec = getCompatibleMagnificationSpecLocked(resolvedWindowId);
             try {
+                Trace.traceBegin(Trace.TRACE_TAG_SYSTEM_SERVER, "a11y.focusSearch");
                 connection.focusSearch(accessibilityNodeId, direction, partialInteractiveRegion,
                         interactionId, callback, mFetchFlags, interrogatingPid, interrogatingTid,
                         spec);
@@ -2782,6 +3485,7 @@ public class AccessibilityManagerService extends IAccessibilityManager.Stub {
                     Slog.e(LOG_TAG, "Error calling accessibilityFocusSearch()");
                 }
             } finally {
+                Trace.traceEnd(Trace.TRACE_TAG_SYSTEM_SERVER);
                 Binder.restoreCallingIdentity(identityToken);
                 // Recycle if passed to another process.
                 if (partialInteractiveRegion != null && Binder.isProxy(connection)) {
@@ -3067,6 +3771,20 @@ public class AccessibilityManagerService extends IAccessibilityManager.Stub {
             mInvocationHandler.setSoftKeyboardCallbackEnabled(enabled);
         }
 
+        AccessibilityStateSnapshot.ServiceSnapshot snapshotLocked() {
+            AccessibilityStateSnapshot.ServiceSnapshot snapshot =
+                    new AccessibilityStateSnapshot.ServiceSnapshot();
+            snapshot.mComponentName = mComponentName;
+            snapshot.mResolveInfo = mAccessibilityServiceInfo.getResolveInfo();
+            snapshot.mIsAutomation = mIsAutomation;
+            snapshot.mIsConnected = mService != null;
+            snapshot.mFeedbackType = mFeedbackType;
+            snapshot.mCapabilities = mAccessibilityServiceInfo.getCapabilities();
+            snapshot.mEventTypes = mEventTypes;
+            snapshot.mNotificationTimeout = mNotificationTimeout;
+            return snapshot;
+        }
+
         @Override
         public void dump(FileDescriptor fd, final PrintWriter pw, String[] args) {
             mSecurityPolicy.enforceCallingPermission(Manifest.permission.DUMP, FUNCTION_DUMP);
@@ -3170,6 +3888,8 @@ public class AccessibilityManagerService extends IAccessibilityManager.Stub {
                 // be modified to remove its source if the receiving service does
                 // not have permission to access the window content.
                 AccessibilityEvent newEvent = AccessibilityEvent.obtain(event);
+                final int enqueueTime = DispatchLatencyTracker.toMessageTime(
+                        DispatchLatencyTracker.now());
                 Message message;
                 if ((mNotificationTimeout > 0)
                         && (eventType != AccessibilityEvent.TYPE_WINDOW_CONTENT_CHANGED)) {
@@ -3177,16 +3897,29 @@ public class AccessibilityManagerService extends IAccessibilityManager.Stub {
                     final AccessibilityEvent oldEvent = mPendingEvents.get(eventType);
                     mPendingEvents.put(eventType, newEvent);
                     if (oldEvent != null) {
+                        // This also drops events of the type that were posted
+                        // unthrottled before the timeout changed.
                         mEventDispatchHandler.removeMessages(eventType);
+                        mPendingEventCount -= mPendingEventCounts.get(eventType);
+                        mPendingEventCounts.delete(eventType);
                         oldEvent.recycle();
                     }
-                    message = mEventDispatchHandler.obtainMessage(eventType);
+                    message = mEventDispatchHandler.obtainMessage(eventType, 0, enqueueTime);
                 } else {
-                    // Send all messages, bypassing mPendingEvents
-                    message = mEventDispatchHandler.obtainMessage(eventType, newEvent);
+                    // Send all messages, bypassing mPendingEvents. These are never
+                    // coalesced, so their delivery is traced as an async slice.
+                    final int traceCookie = mNextTraceCookie++;
+                    Trace.asyncTraceBegin(Trace.TRACE_TAG_SYSTEM_SERVER,
+                            mPendingEventsTraceName, traceCookie);
+                    message = mEventDispatchHandler.obtainMessage(eventType,
+                            traceCookie, enqueueTime, newEvent);
                 }
 
                 mEventDispatchHandler.sendMessageDelayed(message, mNotificationTimeout);
+                mPendingEventCount++;
+                mPendingEventCounts.put(eventType, mPendingEventCounts.get(eventType) + 1);
+                Trace.traceCounter(Trace.TRACE_TAG_SYSTEM_SERVER, mPendingEventsTraceName,
+                        mPendingEventCount);
             }
         }
 
@@ -3194,11 +3927,29 @@ public class AccessibilityManagerService extends IAccessibilityManager.Stub {
          * Notifies an accessibility service client for a scheduled event given the event type.
          *
          * @param eventType The type of the event to dispatch.
+         * @param event The event or null if it is pending in mPendingEvents.
+         * @param traceCookie The cookie of the async trace slice of an event that is not null.
+         * @param enqueueTime When the event was posted as per {@link DispatchLatencyTracker#now()}.
          */
-        private void notifyAccessibilityEventInternal(int eventType, AccessibilityEvent event) {
+        private void notifyAccessibilityEventInternal(int eventType, AccessibilityEvent event,
+                int traceCookie, long enqueueTime) {
             IAccessibilityServiceClient listener;
 
             synchronized (mLock) {
+                // The count of the type is already zero if the message was taken
+                // off the queue while removeMessages() ran, which counted it.
+                final int typeCount = mPendingEventCounts.get(eventType);
+                if (typeCount > 0) {
+                    mPendingEventCounts.put(eventType, typeCount - 1);
+                    mPendingEventCount--;
+                }
+                Trace.traceCounter(Trace.TRACE_TAG_SYSTEM_SERVER, mPendingEventsTraceName,
+                        mPendingEventCount);
+                if (event != null) {
+                    Trace.asyncTraceEnd(Trace.TRACE_TAG_SYSTEM_SERVER, mPendingEventsTraceName,
+                            traceCookie);
+                }
+
                 listener = mServiceInterface;
 
                 // If the service died/was disabled while the message for dispatching
@@ -3241,14 +3992,21 @@ public class AccessibilityManagerService extends IAccessibilityManager.Stub {
                 event.setSealed(true);
             }
 
+            mDispatchLatencyTracker.recordLatency(DispatchLatencyTracker.STAGE_THROTTLE,
+                    mComponentName, eventType, enqueueTime);
+            final long binderStartTime = DispatchLatencyTracker.now();
+            Trace.traceBegin(Trace.TRACE_TAG_SYSTEM_SERVER, "a11y.notifyAccessibilityEvent");
             try {
                 listener.onAccessibilityEvent(event);
+                mDispatchLatencyTracker.recordLatency(DispatchLatencyTracker.STAGE_BINDER,
+                        mComponentName, eventType, binderStartTime);
                 if (DEBUG) {
                     Slog.i(LOG_TAG, "Event " + event + " sent to " + listener);
                 }
             } catch (RemoteException re) {
                 Slog.e(LOG_TAG, "Error during sending " + event + " to " + listener, re);
             } finally {
+                Trace.traceEnd(Trace.TRACE_TAG_SYSTEM_SERVER);
                 event.recycle();
             }
         }
@@ -3420,6 +4178,55 @@ public class AccessibilityManagerService extends IAccessibilityManager.Stub {
             return null;
         }
 
+        /**
+         * Checks that a find or focus query may go to a window and gets the
+         * connection to the window. This is the part of the queries that runs
+         * under the lock, the query itself is sent without it.
+         *
+         * @param accessibilityWindowId The window id passed to the query.
+         * @param findFocus Whether the query is findFocus(), which resolves
+         *     the window by the focus type.
+         * @param focusType The focus type of findFocus().
+         * @return The target of the query or null if it is not allowed.
+         */
+        private QueryTarget prepareQuery(int accessibilityWindowId, boolean findFocus,
+                int focusType) {
+            Region partialInteractiveRegion = Region.obtain();
+            final long lockWaitStart = mLockProfiler.start();
+            synchronized (mLock) {
+                final long lockHoldStart = mLockProfiler.acquired(
+                        LockContentionProfiler.SITE_FIND_QUERY, lockWaitStart);
+                try {
+                    if (!isCalledForCurrentUserLocked()) {
+                        return null;
+                    }
+                    final int resolvedWindowId = findFocus
+                            ? resolveAccessibilityWindowIdForFindFocusLocked(
+                                    accessibilityWindowId, focusType)
+                            : resolveAccessibilityWindowIdLocked(accessibilityWindowId);
+                    final boolean permissionGranted =
+                        mSecurityPolicy.canGetAccessibilityNodeInfoLocked(this, resolvedWindowId);
+                    if (!permissionGranted) {
+                        return null;
+                    }
+                    final IAccessibilityInteractionConnection connection =
+                            getConnectionLocked(resolvedWindowId);
+                    if (connection == null) {
+                        return null;
+                    }
+                    if (!mSecurityPolicy.computePartialInteractiveRegionForWindowLocked(
+                            resolvedWindowId, partialInteractiveRegion)) {
+                        partialInteractiveRegion.recycle();
+                        partialInteractiveRegion = null;
+                    }
+                    return new QueryTarget(resolvedWindowId, connection,
+                            partialInteractiveRegion);
+                } finally {
+                    mLockProfiler.released(LockContentionProfiler.SITE_FIND_QUERY, lockHoldStart);
+                }
+            }
+        }
+
         private int resolveAccessibilityWindowIdLocked(int accessibilityWindowId) {
             if (accessibilityWindowId == AccessibilityNodeInfo.ACTIVE_WINDOW_ID) {
                 return mSecurityPolicy.getActiveWindowId();
@@ -3529,28 +4336,56 @@ public class AccessibilityManagerService extends IAccessibilityManager.Stub {
 
         @Override
         public void onWindowsForAccessibilityChanged(List<WindowInfo> windows) {
-            synchronized (mLock) {
-                // Populate the windows to report.
-                List<AccessibilityWindowInfo> reportedWindows = new ArrayList<>();
-                final int receivedWindowCount = windows.size();
-                for (int i = 0; i < receivedWindowCount; i++) {
-                    WindowInfo receivedWindow = windows.get(i);
-                    AccessibilityWindowInfo reportedWindow = populateReportedWindow(
-                            receivedWindow);
-                    if (reportedWindow != null) {
-                        reportedWindows.add(reportedWindow);
-                    }
-                }
+            Trace.traceBegin(Trace.TRACE_TAG_SYSTEM_SERVER, "a11y.onWindowsChanged");
+            try {
+                final long lockWaitStart = mLockProfiler.start();
+                synchronized (mLock) {
+                    final long lockHoldStart = mLockProfiler.acquired(
+                            LockContentionProfiler.SITE_WINDOWS_CHANGED, lockWaitStart);
+                    try {
+                        final boolean countAllocations = mCountWindowsChangedAllocations;
+                        long allocCount = 0;
+                        long allocBytes = 0;
+                        if (countAllocations) {
+                            allocCount = Debug.getThreadAllocCount();
+                            allocBytes = Debug.getThreadAllocSize();
+                        }
+                        final long startTime = SystemClock.elapsedRealtimeNanos();
+                        // Populate the windows to report.
+                        List<AccessibilityWindowInfo> reportedWindows = new ArrayList<>();
+                        final int receivedWindowCount = windows.size();
+                        for (int i = 0; i < receivedWindowCount; i++) {
+                            WindowInfo receivedWindow = windows.get(i);
+                            AccessibilityWindowInfo reportedWindow = populateReportedWindow(
+                                    receivedWindow);
+                            if (reportedWindow != null) {
+                                reportedWindows.add(reportedWindow);
+                            }
+                        }
 
-                if (DEBUG) {
-                    Slog.i(LOG_TAG, "Windows changed: " + reportedWindows);
-                }
+                        if (DEBUG) {
+                            Slog.i(LOG_TAG, "Windows changed: " + reportedWindows);
+                        }
 
-                // Let the policy update the focused and active windows.
-                mSecurityPolicy.updateWindowsLocked(reportedWindows);
+                        // Let the policy update the focused and active windows.
+                        mSecurityPolicy.updateWindowsLocked(reportedWindows);
 
-                // Someone may be waiting for the windows - advertise it.
-                mLock.notifyAll();
+                        // Someone may be waiting for the windows - advertise it.
+                        mLock.notifyAll();
+                        final long endTime = SystemClock.elapsedRealtimeNanos();
+                        if (countAllocations) {
+                            mWindowsChangedAllocUpdateCount++;
+                            mWindowsChangedAllocCount += Debug.getThreadAllocCount() - allocCount;
+                            mWindowsChangedAllocBytes += Debug.getThreadAllocSize() - allocBytes;
+                        }
+                        mWindowsChangedLatency.record((endTime - startTime) / 1000);
+                    } finally {
+                        mLockProfiler.released(LockContentionProfiler.SITE_WINDOWS_CHANGED,
+                                lockHoldStart);
+                    }
+                }
+            } finally {
+                Trace.traceEnd(Trace.TRACE_TAG_SYSTEM_SERVER);
             }
         }
 
@@ -4204,6 +5039,13 @@ public class AccessibilityManagerService extends IAccessibilityManager.Stub {
         public final List<AccessibilityServiceInfo> mInstalledServices =
                 new ArrayList<>();
 
+        // Whether mInstalledServices was filled by a package scan, see LAZY_INIT.
+        public boolean mInstalledServicesRead;
+
+        // Last parsed value of the component name list settings by setting name.
+        public final ArrayMap<String, ParsedComponentNames> mParsedComponentNameSettings =
+                new ArrayMap<>();
+
         public final Set<ComponentName> mBindingServices = new HashSet<>();
 
         public final Set<ComponentName> mEnabledServices = new HashSet<>();
@@ -4244,10 +5086,29 @@ public class AccessibilityManagerService extends IAccessibilityManager.Stub {
             }
         };
 
+        // When the user was last switched away from.
+        public long mLastActiveTime;
+
         public UserState(int userId) {
             mUserId = userId;
         }
 
+        /**
+         * @return Whether the state caches anything that is expensive to rebuild.
+         */
+        public boolean isWarm() {
+            return mInstalledServicesRead || !mParsedComponentNameSettings.isEmpty();
+        }
+
+        /**
+         * Drops the installed services of a background user so they are read
+         * again when the user becomes current.
+         */
+        public void releaseInstalledServices() {
+            mInstalledServices.clear();
+            mInstalledServicesRead = false;
+        }
+
         public int getClientState() {
             int clientState = 0;
             if (isHandlingAccessibilityEvents()) {
@@ -4310,6 +5171,45 @@ public class AccessibilityManagerService extends IAccessibilityManager.Stub {
         }
     }
 
+    /**
+     * Window and connection a find or focus query of a service goes to.
+     */
+    private static final class QueryTarget {
+        final int mWindowId;
+        final IAccessibilityInteractionConnection mConnection;
+        // Null if the whole window is interactive.
+        final Region mPartialInteractiveRegion;
+
+        QueryTarget(int windowId, IAccessibilityInteractionConnection connection,
+                Region partialInteractiveRegion) {
+            mWindowId = windowId;
+            mConnection = connection;
+            mPartialInteractiveRegion = partialInteractiveRegion;
+        }
+    }
+
+    /**
+     * Component names parsed from the value of a setting. Settings are read
+     * again on every configuration change, mostly with the same value, which
+     * then does not have to be parsed again.
+     */
+    private static final class ParsedComponentNames {
+        String mSettingValue;
+        final ArrayList<ComponentName> mComponentNames = new ArrayList<>();
+
+        boolean isParsedFrom(String settingValue) {
+            // The settings cache usually hands out the same string for an unchanged value.
+            return mSettingValue == settingValue
+                    || (mSettingValue != null && mSettingValue.equals(settingValue));
+        }
+
+        void set(String settingValue, Set<ComponentName> componentNames) {
+            mSettingValue = settingValue;
+            mComponentNames.clear();
+            mComponentNames.addAll(componentNames);
+        }
+    }
+
     private final class AccessibilityContentObserver extends ContentObserver {
 
         private final Uri mTouchExplorationEnabledUri = Settings.Secure.getUriFor(
@@ -0,0 +1,282 @@
+/*
+ ** Copyright 2016, The Android Open Source Project
+ **
+ ** Licensed under the Apache License, Version 2.0 (the "License");
+ ** you may not use this file except in compliance with the License.
+ ** You may obtain a copy of the License at
+ **
+ **     http://www.apache.org/licenses/LICENSE-2.0
+ **
+ ** Unless required by applicable law or agreed to in writing, software
+ ** distributed under the License is distributed on an "AS IS" BASIS,
+ ** WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ ** See the License for the specific language governing permissions and
+ ** limitations under the License.
+ */
+
+package com.android.server.accessibility;
+
+import android.accessibilityservice.AccessibilityServiceInfo;
+import android.content.ComponentName;
+import android.content.pm.PackageManager;
+import android.content.pm.ResolveInfo;
+import android.graphics.Rect;
+import android.util.TimeUtils;
+import android.view.accessibility.AccessibilityEvent;
+import android.view.accessibility.AccessibilityWindowInfo;
+
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Copy of the accessibility manager state that is relevant for dumping. It is
+ * populated while holding the service lock and formatted after releasing it,
+ * so dumping does not stall event dispatch.
+ */
+final class AccessibilityStateSnapshot {
+
+    private static final int CHECKIN_VERSION = 5;
+
+    public int mCurrentUserId;
+
+    public long mReceivedEventCount;
+
+    public long mBackgroundUserEventCount;
+
+    public long mRejectedEventCount;
+
+    public long mServiceNotificationCount;
+
+    public long mEventLockWaitNanos;
+
+    /** Time the counters cover since they were last reset. */
+    public long mStatsDurationMillis;
+
+    /** Time spent handling window updates from the window manager. */
+    public final LatencyHistogram mWindowsChangedLatency = new LatencyHistogram();
+
+    /** Window updates whose allocations were counted, only while lock profiling. */
+    public long mWindowsChangedAllocUpdateCount;
+
+    public long mWindowsChangedAllocCount;
+
+    public long mWindowsChangedAllocBytes;
+
+    public int mActiveWindowId;
+
+    public int mFocusedWindowId;
+
+    public int mAccessibilityFocusedWindowId;
+
+    public final List<UserStateSnapshot> mUserStates = new ArrayList<>();
+
+    /** Windows are clones owned by the snapshot, see {@link #recycle()}. */
+    public final List<AccessibilityWindowInfo> mWindows = new ArrayList<>();
+
+    /**
+     * Releases the cloned windows.
+     */
+    public void recycle() {
+        final int windowCount = mWindows.size();
+        for (int i = 0; i < windowCount; i++) {
+            mWindows.get(i).recycle();
+        }
+        mWindows.clear();
+    }
+
+    /**
+     * Prints the human readable dump. Service labels are loaded here, so this
+     * must not be called while holding the service lock.
+     */
+    public void dump(PrintWriter pw, PackageManager packageManager) {
+        pw.println("ACCESSIBILITY MANAGER (dumpsys accessibility)");
+        pw.println();
+        pw.append("Event counts[received=" + mReceivedEventCount);
+        pw.append(", backgroundUser=" + mBackgroundUserEventCount);
+        pw.append(", rejected=" + mRejectedEventCount);
+        pw.append(", serviceNotifications=" + mServiceNotificationCount);
+        pw.append(", lockWait=");
+        TimeUtils.formatDuration(mEventLockWaitNanos / 1000000, pw);
+        pw.append(", duration=");
+        TimeUtils.formatDuration(mStatsDurationMillis, pw);
+        pw.println("]");
+        pw.append("Window updates[count,mean,p50,p90,p99,max (us)]:");
+        mWindowsChangedLatency.dumpCompact(pw);
+        pw.println();
+        if (mWindowsChangedAllocUpdateCount > 0) {
+            pw.append("Window update allocations[updates=" + mWindowsChangedAllocUpdateCount);
+            pw.append(", perUpdate=" + mWindowsChangedAllocCount / mWindowsChangedAllocUpdateCount);
+            pw.append(", bytesPerUpdate="
+                    + mWindowsChangedAllocBytes / mWindowsChangedAllocUpdateCount);
+            pw.println("]");
+        }
+        pw.println();
+        final int userCount = mUserStates.size();
+        for (int i = 0; i < userCount; i++) {
+            UserStateSnapshot user = mUserStates.get(i);
+            pw.append("User state[attributes:{id=" + user.mUserId);
+            pw.append(", currentUser=" + (user.mUserId == mCurrentUserId));
+            pw.append(", touchExplorationEnabled=" + user.mIsTouchExplorationEnabled);
+            pw.append(", displayMagnificationEnabled=" + user.mIsDisplayMagnificationEnabled);
+            pw.append(", autoclickEnabled=" + user.mIsAutoclickEnabled);
+            if (user.mUiAutomationService != null) {
+                pw.append(", ");
+                user.mUiAutomationService.dump(pw, packageManager);
+                pw.println();
+            }
+            pw.append("}");
+            pw.println();
+            pw.append("           services:{");
+            final int serviceCount = user.mServices.size();
+            for (int j = 0; j < serviceCount; j++) {
+                if (j > 0) {
+                    pw.append(", ");
+                    pw.println();
+                    pw.append("                     ");
+                }
+                user.mServices.get(j).dump(pw, packageManager);
+            }
+            pw.println("}]");
+            pw.println();
+        }
+        final int windowCount = mWindows.size();
+        for (int j = 0; j < windowCount; j++) {
+            if (j > 0) {
+                pw.append(',');
+                pw.println();
+            }
+            pw.append("Window[");
+            pw.append(mWindows.get(j).toString());
+            pw.append(']');
+        }
+    }
+
+    /**
+     * Prints one comma separated line per user, service and window meant for
+     * parsing by tools.
+     */
+    public void dumpCheckin(PrintWriter pw) {
+        final Rect bounds = new Rect();
+        pw.append("vers,").println(CHECKIN_VERSION);
+        pw.append("cnt,");
+        pw.print(mReceivedEventCount);
+        pw.print(',');
+        pw.print(mBackgroundUserEventCount);
+        pw.print(',');
+        pw.print(mRejectedEventCount);
+        pw.print(',');
+        pw.print(mServiceNotificationCount);
+        pw.print(',');
+        pw.print(mStatsDurationMillis);
+        pw.print(',');
+        pw.println(mEventLockWaitNanos);
+        pw.append("wupd,");
+        mWindowsChangedLatency.dumpCompact(pw);
+        pw.println();
+        pw.append("walloc,");
+        pw.print(mWindowsChangedAllocUpdateCount);
+        pw.print(',');
+        pw.print(mWindowsChangedAllocCount);
+        pw.print(',');
+        pw.println(mWindowsChangedAllocBytes);
+        final int userCount = mUserStates.size();
+        for (int i = 0; i < userCount; i++) {
+            UserStateSnapshot user = mUserStates.get(i);
+            pw.append("user,");
+            pw.print(user.mUserId);
+            pw.print(',');
+            pw.print(user.mUserId == mCurrentUserId ? 1 : 0);
+            pw.print(',');
+            pw.print(user.mIsTouchExplorationEnabled ? 1 : 0);
+            pw.print(',');
+            pw.print(user.mIsDisplayMagnificationEnabled ? 1 : 0);
+            pw.print(',');
+            pw.print(user.mIsAutoclickEnabled ? 1 : 0);
+            pw.print(',');
+            pw.print(user.mEnabledServiceCount);
+            pw.print(',');
+            pw.println(user.mBindingServiceCount);
+            final int serviceCount = user.mServices.size();
+            for (int j = 0; j < serviceCount; j++) {
+                ServiceSnapshot service = user.mServices.get(j);
+                pw.append("svc,");
+                pw.print(user.mUserId);
+                pw.print(',');
+                pw.append(service.mComponentName.flattenToShortString()).append(',');
+                pw.print(service.mIsAutomation ? 1 : 0);
+                pw.print(',');
+                pw.print(service.mIsConnected ? 1 : 0);
+                pw.print(',');
+                pw.print(service.mFeedbackType);
+                pw.print(',');
+                pw.print(service.mCapabilities);
+                pw.print(',');
+                pw.print(service.mEventTypes);
+                pw.print(',');
+                pw.println(service.mNotificationTimeout);
+            }
+        }
+        final int windowCount = mWindows.size();
+        for (int i = 0; i < windowCount; i++) {
+            AccessibilityWindowInfo window = mWindows.get(i);
+            window.getBoundsInScreen(bounds);
+            pw.append("win,");
+            pw.print(window.getId());
+            pw.print(',');
+            pw.print(window.getType());
+            pw.print(',');
+            pw.print(window.getLayer());
+            pw.print(',');
+            pw.print(window.getId() == mActiveWindowId ? 1 : 0);
+            pw.print(',');
+            pw.print(window.getId() == mFocusedWindowId ? 1 : 0);
+            pw.print(',');
+            pw.print(window.getId() == mAccessibilityFocusedWindowId ? 1 : 0);
+            pw.print(',');
+            pw.print(window.getChildCount());
+            pw.print(',');
+            pw.print(bounds.left);
+            pw.print(',');
+            pw.print(bounds.top);
+            pw.print(',');
+            pw.print(bounds.right);
+            pw.print(',');
+            pw.println(bounds.bottom);
+        }
+    }
+
+    static final class UserStateSnapshot {
+        public int mUserId;
+        public boolean mIsTouchExplorationEnabled;
+        public boolean mIsDisplayMagnificationEnabled;
+        public boolean mIsAutoclickEnabled;
+        public int mEnabledServiceCount;
+        public int mBindingServiceCount;
+        public ServiceSnapshot mUiAutomationService;
+        public final List<ServiceSnapshot> mServices = new ArrayList<>();
+    }
+
+    static final class ServiceSnapshot {
+        public ComponentName mComponentName;
+        public ResolveInfo mResolveInfo;
+        public boolean mIsAutomation;
+        public boolean mIsConnected;
+        public int mFeedbackType;
+        public int mCapabilities;
+        public int mEventTypes;
+        public long mNotificationTimeout;
+
+        void dump(PrintWriter pw, PackageManager packageManager) {
+            pw.append("Service[label=" + ((mResolveInfo != null)
+                    ? mResolveInfo.loadLabel(packageManager)
+                    : mComponentName.flattenToShortString()));
+            pw.append(", feedbackType"
+                    + AccessibilityServiceInfo.feedbackTypeToString(mFeedbackType));
+            pw.append(", capabilities=" + mCapabilities);
+            pw.append(", eventTypes=" + AccessibilityEvent.eventTypeToString(mEventTypes));
+            pw.append(", notificationTimeout=" + mNotificationTimeout);
+            pw.append("]");
+        }
+    }
+}
@@ -0,0 +1,48 @@
+/*
+ ** Copyright 2016, The Android Open Source Project
+ **
+ ** Licensed under the Apache License, Version 2.0 (the "License");
+ ** you may not use this file except in compliance with the License.
+ ** You may obtain a copy of the License at
+ **
+ **     http://www.apache.org/licenses/LICENSE-2.0
+ **
+ ** Unless required by applicable law or agreed to in writing, software
+ ** distributed under the License is distributed on an "AS IS" BASIS,
+ ** WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ ** See the License for the specific language governing permissions and
+ ** limitations under the License.
+ */
+
+package com.android.server.accessibility;
+
+import android.os.Debug;
+
+/**
+ * Keeps the allocation counting of the process on while any user needs it.
+ * Counting is a single process wide switch, so users that turned it on and
+ * off directly would stop each other's counts.
+ */
+final class AllocationCounting {
+
+    private static int sUserCount;
+
+    private AllocationCounting() {
+        /* do nothing - static only */
+    }
+
+    /**
+     * Turns counting on until the matching {@link #release()}.
+     */
+    static synchronized void acquire() {
+        if (sUserCount++ == 0) {
+            Debug.startAllocCounting();
+        }
+    }
+
+    static synchronized void release() {
+        if (sUserCount > 0 && --sUserCount == 0) {
+            Debug.stopAllocCounting();
+        }
+    }
+}
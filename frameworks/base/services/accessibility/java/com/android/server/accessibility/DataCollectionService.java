@@ -0,0 +1,138 @@
+/*
+ ** Copyright 2016, The Android Open Source Project
+ **
+ ** Licensed under the Apache License, Version 2.0 (the "License");
+ ** you may not use this file except in compliance with the License.
+ ** You may obtain a copy of the License at
+ **
+ **     http://www.apache.org/licenses/LICENSE-2.0
+ **
+ ** Unless required by applicable law or agreed to in writing, software
+ ** distributed under the License is distributed on an "AS IS" BASIS,
+ ** WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ ** See the License for the specific language governing permissions and
+ ** limitations under the License.
+ */
+
+package com.android.server.accessibility;
+
+import android.Manifest;
+import android.content.Context;
+import android.os.IBinder;
+import android.os.MemoryFile;
+import android.os.ParcelFileDescriptor;
+import android.os.RemoteException;
+import android.util.Slog;
+import android.view.accessibility.IAccessibilityEventStreamListener;
+import android.view.accessibility.IDataCollectionManager;
+
+import libcore.io.IoUtils;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+/**
+ * Exposes the events recorded by the {@link AccessibilityManagerService} to
+ * privileged collectors. Events are handed out in batches encoded into a
+ * shared memory region that the caller reads directly.
+ */
+public class DataCollectionService extends IDataCollectionManager.Stub {
+
+    private static final String LOG_TAG = "DataCollectionService";
+
+    private static final String MEMORY_FILE_NAME = "a11y_events";
+
+    private static final int MAX_BATCH_SIZE = 4096;
+
+    private static final int WRITE_BUFFER_SIZE = 4096;
+
+    private final Context mContext;
+
+    private final AccessibilityManagerService mAccessibilityManager;
+
+    private final AccessibilityEventRecorder mEventRecorder;
+
+    /**
+     * Creates a new instance.
+     *
+     * @param context A {@link Context} instance.
+     * @param accessibilityManager The service whose events to expose.
+     */
+    public DataCollectionService(Context context,
+            AccessibilityManagerService accessibilityManager) {
+        mContext = context;
+        mAccessibilityManager = accessibilityManager;
+        mEventRecorder = accessibilityManager.getEventRecorder();
+    }
+
+    @Override
+    public ParcelFileDescriptor readEvents(long fromSequence, int maxCount) {
+        mContext.enforceCallingOrSelfPermission(Manifest.permission.DUMP, "readEvents");
+        final AccessibilityEventRecorder.Batch batch = mEventRecorder.copyBatch(
+                fromSequence, Math.min(maxCount, MAX_BATCH_SIZE));
+        if (batch.mCount == 0) {
+            return null;
+        }
+        MemoryFile memoryFile = null;
+        try {
+            // Encode straight into the shared memory through a small buffer.
+            memoryFile = new MemoryFile(MEMORY_FILE_NAME, batch.getEncodedSize());
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                    memoryFile.getOutputStream(), WRITE_BUFFER_SIZE));
+            batch.writeTo(out);
+            out.flush();
+            // The duplicate keeps the region alive after the memory file is closed.
+            return ParcelFileDescriptor.dup(memoryFile.getFileDescriptor());
+        } catch (IOException ioe) {
+            Slog.e(LOG_TAG, "Error sharing recorded events", ioe);
+            return null;
+        } finally {
+            if (memoryFile != null) {
+                memoryFile.close();
+            }
+        }
+    }
+
+    @Override
+    public ParcelFileDescriptor openEventStream(int capacity,
+            IAccessibilityEventStreamListener listener) {
+        mContext.enforceCallingOrSelfPermission(Manifest.permission.DUMP, "openEventStream");
+        final AccessibilityEventStream stream;
+        try {
+            stream = new AccessibilityEventStream(capacity, listener,
+                    mContext.getMainLooper());
+        } catch (IOException ioe) {
+            Slog.e(LOG_TAG, "Error creating event stream", ioe);
+            return null;
+        }
+        ParcelFileDescriptor pfd = null;
+        try {
+            pfd = stream.dupFileDescriptor();
+            final IBinder binder = listener.asBinder();
+            stream.linkToDeath(new IBinder.DeathRecipient() {
+                @Override
+                public void binderDied() {
+                    mAccessibilityManager.closeEventStream(binder);
+                }
+            });
+        } catch (IOException | RemoteException e) {
+            Slog.e(LOG_TAG, "Error opening event stream", e);
+            IoUtils.closeQuietly(pfd);
+            stream.close();
+            return null;
+        }
+        mAccessibilityManager.setEventStream(stream);
+        return pfd;
+    }
+
+    @Override
+    public void ackEventStream(IAccessibilityEventStreamListener listener, long tail) {
+        mAccessibilityManager.ackEventStream(listener.asBinder(), tail);
+    }
+
+    @Override
+    public void closeEventStream(IAccessibilityEventStreamListener listener) {
+        mAccessibilityManager.closeEventStream(listener.asBinder());
+    }
+}
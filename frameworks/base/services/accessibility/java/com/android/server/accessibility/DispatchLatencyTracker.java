@@ -0,0 +1,209 @@
+/*
+ ** Copyright 2016, The Android Open Source Project
+ **
+ ** Licensed under the Apache License, Version 2.0 (the "License");
+ ** you may not use this file except in compliance with the License.
+ ** You may obtain a copy of the License at
+ **
+ **     http://www.apache.org/licenses/LICENSE-2.0
+ **
+ ** Unless required by applicable law or agreed to in writing, software
+ ** distributed under the License is distributed on an "AS IS" BASIS,
+ ** WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ ** See the License for the specific language governing permissions and
+ ** limitations under the License.
+ */
+
+package com.android.server.accessibility;
+
+import android.content.ComponentName;
+import android.util.ArrayMap;
+import android.view.accessibility.AccessibilityEvent;
+
+import java.io.PrintWriter;
+
+/**
+ * Keeps latency histograms for the stages an {@link AccessibilityEvent} goes
+ * through on its way from the sending process to an accessibility service.
+ * Ingress and routing happen once per event and are tracked per event type,
+ * while throttling and the Binder call happen once per receiving service and
+ * are tracked per service and event type.
+ */
+final class DispatchLatencyTracker {
+
+    /** From the incoming Binder call until the event is routed. */
+    public static final int STAGE_INGRESS = 0;
+
+    /** Fanning out the event to the interested services. */
+    public static final int STAGE_ROUTING = 1;
+
+    /** From posting the event for a service until it is dispatched. */
+    public static final int STAGE_THROTTLE = 2;
+
+    /** The call to the service's onAccessibilityEvent. */
+    public static final int STAGE_BINDER = 3;
+
+    private static final int STAGE_COUNT = 4;
+
+    private static final String[] STAGE_NAMES = {
+        "ingress", "routing", "throttle", "binder"
+    };
+
+    private static final int EVENT_TYPE_COUNT = Integer.SIZE;
+
+    private static final int CHECKIN_VERSION = 1;
+
+    private final Object mLock = new Object();
+
+    // Stats for the stages that do not depend on the receiving service.
+    private final StageHistograms mGlobalStats = new StageHistograms();
+
+    private final ArrayMap<ComponentName, StageHistograms> mServiceStats = new ArrayMap<>();
+
+    /**
+     * @return The current time in the time base used for the latencies.
+     */
+    public static long now() {
+        return System.nanoTime();
+    }
+
+    /**
+     * Packs a time of {@link #now()} into an int, microseconds that wrap
+     * around, so it fits in one argument of a message.
+     */
+    public static int toMessageTime(long time) {
+        return (int) (time / 1000);
+    }
+
+    /**
+     * @return A time packed by {@link #toMessageTime(long)} in the time base
+     *         of {@link #now()}, exact to the microsecond for times less than
+     *         half an hour ago.
+     */
+    public static long fromMessageTime(int messageTime) {
+        final long now = now();
+        return now - (long) (toMessageTime(now) - messageTime) * 1000;
+    }
+
+    /**
+     * Records the latency of a stage for an event.
+     *
+     * @param stage The stage.
+     * @param service The receiving service or null for service independent stages.
+     * @param eventType The event type.
+     * @param startTime The start of the stage as returned by {@link #now()}.
+     */
+    public void recordLatency(int stage, ComponentName service, int eventType, long startTime) {
+        final long latencyMicros = (now() - startTime) / 1000;
+        final int typeIndex = Integer.numberOfTrailingZeros(eventType);
+        if (typeIndex >= EVENT_TYPE_COUNT) {
+            return;
+        }
+        synchronized (mLock) {
+            StageHistograms stats = mGlobalStats;
+            if (service != null) {
+                stats = mServiceStats.get(service);
+                if (stats == null) {
+                    stats = new StageHistograms();
+                    mServiceStats.put(service, stats);
+                }
+            }
+            stats.getOrCreate(stage, typeIndex).record(latencyMicros);
+        }
+    }
+
+    public void reset() {
+        synchronized (mLock) {
+            mGlobalStats.reset();
+            mServiceStats.clear();
+        }
+    }
+
+    /**
+     * Prints a compact human readable summary. Latencies are in microseconds.
+     */
+    public void dump(PrintWriter pw) {
+        synchronized (mLock) {
+            pw.println("Dispatch latency[stage,eventType:count,mean,p50,p90,p99,max (us)]");
+            pw.println("  global:");
+            mGlobalStats.dump(pw, "    ");
+            final int serviceCount = mServiceStats.size();
+            for (int i = 0; i < serviceCount; i++) {
+                pw.append("  ").append(mServiceStats.keyAt(i).flattenToShortString());
+                pw.println(':');
+                mServiceStats.valueAt(i).dump(pw, "    ");
+            }
+        }
+    }
+
+    /**
+     * Prints one comma separated line per histogram meant for parsing by tools.
+     */
+    public void dumpCheckin(PrintWriter pw) {
+        synchronized (mLock) {
+            pw.append("lat_vers,").println(CHECKIN_VERSION);
+            mGlobalStats.dumpCheckin(pw, "");
+            final int serviceCount = mServiceStats.size();
+            for (int i = 0; i < serviceCount; i++) {
+                mServiceStats.valueAt(i).dumpCheckin(pw,
+                        mServiceStats.keyAt(i).flattenToShortString());
+            }
+        }
+    }
+
+    private static final class StageHistograms {
+        // Indexed by stage and then by the bit index of the event type.
+        private final LatencyHistogram[][] mHistograms =
+                new LatencyHistogram[STAGE_COUNT][EVENT_TYPE_COUNT];
+
+        LatencyHistogram getOrCreate(int stage, int typeIndex) {
+            LatencyHistogram histogram = mHistograms[stage][typeIndex];
+            if (histogram == null) {
+                histogram = new LatencyHistogram();
+                mHistograms[stage][typeIndex] = histogram;
+            }
+            return histogram;
+        }
+
+        void reset() {
+            for (int stage = 0; stage < STAGE_COUNT; stage++) {
+                for (int typeIndex = 0; typeIndex < EVENT_TYPE_COUNT; typeIndex++) {
+                    mHistograms[stage][typeIndex] = null;
+                }
+            }
+        }
+
+        void dump(PrintWriter pw, String prefix) {
+            for (int stage = 0; stage < STAGE_COUNT; stage++) {
+                for (int typeIndex = 0; typeIndex < EVENT_TYPE_COUNT; typeIndex++) {
+                    LatencyHistogram histogram = mHistograms[stage][typeIndex];
+                    if (histogram == null) {
+                        continue;
+                    }
+                    pw.append(prefix).append(STAGE_NAMES[stage]).append(',');
+                    pw.append(AccessibilityEvent.eventTypeToString(1 << typeIndex));
+                    pw.append(':');
+                    histogram.dumpCompact(pw);
+                    pw.println();
+                }
+            }
+        }
+
+        void dumpCheckin(PrintWriter pw, String service) {
+            for (int stage = 0; stage < STAGE_COUNT; stage++) {
+                for (int typeIndex = 0; typeIndex < EVENT_TYPE_COUNT; typeIndex++) {
+                    LatencyHistogram histogram = mHistograms[stage][typeIndex];
+                    if (histogram == null) {
+                        continue;
+                    }
+                    pw.append("lat,").append(STAGE_NAMES[stage]).append(',');
+                    pw.append(service).append(',');
+                    pw.print(1 << typeIndex);
+                    pw.print(',');
+                    histogram.dumpCompact(pw);
+                    pw.println();
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,198 @@
+/*
+ ** Copyright 2016, The Android Open Source Project
+ **
+ ** Licensed under the Apache License, Version 2.0 (the "License");
+ ** you may not use this file except in compliance with the License.
+ ** You may obtain a copy of the License at
+ **
+ **     http://www.apache.org/licenses/LICENSE-2.0
+ **
+ ** Unless required by applicable law or agreed to in writing, software
+ ** distributed under the License is distributed on an "AS IS" BASIS,
+ ** WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ ** See the License for the specific language governing permissions and
+ ** limitations under the License.
+ */
+
+package com.android.server.accessibility;
+
+import android.util.SparseIntArray;
+import android.view.accessibility.AccessibilityEvent;
+
+import java.io.PrintWriter;
+
+/**
+ * Decides which dispatched accessibility events are recorded and streamed
+ * to collectors. Dispatching to services is not affected, and events that
+ * were not dispatched are not sampled.
+ * <p>
+ * Each sampled event type has a rate, one in how many events of the type to
+ * keep. Events that pass their rate are also limited to a number per window
+ * in every time slice, so a single busy window cannot flood the recording.
+ * The limit keeps the first events of a slice since a true reservoir would
+ * have to hold back the events until the slice ends. Types in the keep mask,
+ * clicks and window state changes by default, are never sampled so the
+ * structure of an interaction is preserved.
+ * </p>
+ * <p>
+ * All decisions are made on the event type bit. This class is not thread safe.
+ * </p>
+ */
+final class EventSamplingPolicy {
+
+    private static final int EVENT_TYPE_COUNT = Integer.SIZE;
+
+    private static final int DEFAULT_KEEP_TYPES = AccessibilityEvent.TYPE_VIEW_CLICKED
+            | AccessibilityEvent.TYPE_VIEW_LONG_CLICKED
+            | AccessibilityEvent.TYPE_WINDOW_STATE_CHANGED
+            | AccessibilityEvent.TYPE_WINDOWS_CHANGED;
+
+    private static final long DEFAULT_SLICE_MILLIS = 1000;
+
+    // Types that are never sampled.
+    private int mKeepTypes;
+
+    // Types that have a rate or a window limit, never overlaps mKeepTypes.
+    private int mSampledTypes;
+
+    // Indexed by the bit index of the event type, 1 keeps all and 0 none.
+    private final int[] mRates = new int[EVENT_TYPE_COUNT];
+
+    private final int[] mRateCounters = new int[EVENT_TYPE_COUNT];
+
+    // At most this many sampled events per window and slice, 0 for no limit.
+    private int mMaxPerWindowSlice;
+
+    private long mSliceMillis;
+
+    private long mCurrentSlice;
+
+    // Kept events of the current slice by window id.
+    private final SparseIntArray mWindowCounts = new SparseIntArray();
+
+    private long mSampledOutCount;
+
+    EventSamplingPolicy() {
+        reset();
+    }
+
+    /**
+     * @param eventType The event type.
+     * @param windowId The window the event came from.
+     * @param now The current uptime.
+     * @return Whether an event should be recorded.
+     */
+    public boolean shouldKeep(int eventType, int windowId, long now) {
+        if ((eventType & mSampledTypes) == 0) {
+            return true;
+        }
+        final int typeIndex = Integer.numberOfTrailingZeros(eventType);
+        final int rate = mRates[typeIndex];
+        if (rate == 0 || ++mRateCounters[typeIndex] < rate) {
+            mSampledOutCount++;
+            return false;
+        }
+        mRateCounters[typeIndex] = 0;
+        if (mMaxPerWindowSlice > 0) {
+            final long slice = now / mSliceMillis;
+            if (slice != mCurrentSlice) {
+                mCurrentSlice = slice;
+                mWindowCounts.clear();
+            }
+            final int count = mWindowCounts.get(windowId);
+            if (count >= mMaxPerWindowSlice) {
+                mSampledOutCount++;
+                return false;
+            }
+            mWindowCounts.put(windowId, count + 1);
+        }
+        return true;
+    }
+
+    /**
+     * Sets one in how many events of a type are kept.
+     *
+     * @param eventType A single event type.
+     * @param rate The rate, 1 to keep all events and 0 to keep none.
+     */
+    public void setRate(int eventType, int rate) {
+        if (Integer.bitCount(eventType) != 1 || rate < 0) {
+            throw new IllegalArgumentException("Invalid type " + eventType + " or rate " + rate);
+        }
+        final int typeIndex = Integer.numberOfTrailingZeros(eventType);
+        mRates[typeIndex] = rate;
+        mRateCounters[typeIndex] = 0;
+        updateSampledTypes();
+    }
+
+    /**
+     * Sets the event types that are never sampled.
+     */
+    public void setKeepTypes(int eventTypes) {
+        mKeepTypes = eventTypes;
+        updateSampledTypes();
+    }
+
+    /**
+     * Limits the sampled events kept per window and time slice.
+     *
+     * @param maxCount The limit, 0 for none.
+     * @param sliceMillis The length of the slices.
+     */
+    public void setWindowLimit(int maxCount, long sliceMillis) {
+        if (maxCount < 0 || sliceMillis <= 0) {
+            throw new IllegalArgumentException("Invalid limit " + maxCount + " per "
+                    + sliceMillis + "ms");
+        }
+        mMaxPerWindowSlice = maxCount;
+        mSliceMillis = sliceMillis;
+        mCurrentSlice = -1;
+        mWindowCounts.clear();
+        updateSampledTypes();
+    }
+
+    /**
+     * Goes back to recording every event.
+     */
+    public void reset() {
+        for (int i = 0; i < EVENT_TYPE_COUNT; i++) {
+            mRates[i] = 1;
+            mRateCounters[i] = 0;
+        }
+        mKeepTypes = DEFAULT_KEEP_TYPES;
+        mMaxPerWindowSlice = 0;
+        mSliceMillis = DEFAULT_SLICE_MILLIS;
+        mCurrentSlice = -1;
+        mWindowCounts.clear();
+        mSampledOutCount = 0;
+        mSampledTypes = 0;
+    }
+
+    private void updateSampledTypes() {
+        // The window limit applies to all types that are not kept.
+        int sampledTypes = (mMaxPerWindowSlice > 0) ? ~0 : 0;
+        for (int i = 0; i < EVENT_TYPE_COUNT; i++) {
+            if (mRates[i] != 1) {
+                sampledTypes |= 1 << i;
+            }
+        }
+        mSampledTypes = sampledTypes & ~mKeepTypes;
+    }
+
+    public void dump(PrintWriter pw) {
+        pw.append("Event sampling[keepTypes=0x").append(Integer.toHexString(mKeepTypes));
+        pw.append(", sampledOut=").append(String.valueOf(mSampledOutCount));
+        if (mMaxPerWindowSlice > 0) {
+            pw.append(", perWindow=").append(String.valueOf(mMaxPerWindowSlice));
+            pw.append("/").append(String.valueOf(mSliceMillis)).append("ms");
+        }
+        pw.println("]");
+        for (int i = 0; i < EVENT_TYPE_COUNT; i++) {
+            if ((mSampledTypes & (1 << i)) == 0 || mRates[i] == 1) {
+                continue;
+            }
+            pw.append("  ").append(AccessibilityEvent.eventTypeToString(1 << i));
+            pw.append(": 1/").println(mRates[i]);
+        }
+    }
+}
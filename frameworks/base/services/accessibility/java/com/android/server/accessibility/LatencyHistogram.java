@@ -0,0 +1,155 @@
+/*
+ ** Copyright 2016, The Android Open Source Project
+ **
+ ** Licensed under the Apache License, Version 2.0 (the "License");
+ ** you may not use this file except in compliance with the License.
+ ** You may obtain a copy of the License at
+ **
+ **     http://www.apache.org/licenses/LICENSE-2.0
+ **
+ ** Unless required by applicable law or agreed to in writing, software
+ ** distributed under the License is distributed on an "AS IS" BASIS,
+ ** WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ ** See the License for the specific language governing permissions and
+ ** limitations under the License.
+ */
+
+package com.android.server.accessibility;
+
+import java.io.PrintWriter;
+
+/**
+ * Fixed-size histogram of latencies in microseconds. Values are bucketed
+ * log-linearly, i.e. every power of two is split in {@link #SUB_BUCKET_COUNT}
+ * equally sized buckets, which bounds the relative error of reported
+ * percentiles while keeping recording allocation free.
+ * <p>
+ * This class is not thread safe.
+ * </p>
+ */
+final class LatencyHistogram {
+
+    private static final int SUB_BUCKET_BITS = 3;
+
+    private static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+
+    // Latencies above ~35 minutes are not interesting and are clamped.
+    private static final long MAX_TRACKABLE_VALUE = Integer.MAX_VALUE;
+
+    private static final int BUCKET_COUNT = bucketIndex(MAX_TRACKABLE_VALUE) + 1;
+
+    private final int[] mCounts = new int[BUCKET_COUNT];
+
+    private long mTotalCount;
+
+    private long mTotalValue;
+
+    private long mMaxValue;
+
+    /**
+     * Records a single value.
+     *
+     * @param valueMicros The latency in microseconds.
+     */
+    public void record(long valueMicros) {
+        if (valueMicros < 0) {
+            valueMicros = 0;
+        } else if (valueMicros > MAX_TRACKABLE_VALUE) {
+            valueMicros = MAX_TRACKABLE_VALUE;
+        }
+        mCounts[bucketIndex(valueMicros)]++;
+        mTotalCount++;
+        mTotalValue += valueMicros;
+        if (valueMicros > mMaxValue) {
+            mMaxValue = valueMicros;
+        }
+    }
+
+    public long getCount() {
+        return mTotalCount;
+    }
+
+    public long getMax() {
+        return mMaxValue;
+    }
+
+    public long getMean() {
+        return (mTotalCount > 0) ? mTotalValue / mTotalCount : 0;
+    }
+
+    /**
+     * Gets the highest value that is equivalent, within the histogram
+     * resolution, to the value at the given percentile.
+     *
+     * @param percentile The percentile in the range [0, 100].
+     * @return The value in microseconds.
+     */
+    public long getValueAtPercentile(double percentile) {
+        if (mTotalCount == 0) {
+            return 0;
+        }
+        final long countAtPercentile = Math.max(1,
+                (long) Math.ceil((Math.min(percentile, 100.0) / 100.0) * mTotalCount));
+        long runningCount = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            runningCount += mCounts[i];
+            if (runningCount >= countAtPercentile) {
+                return Math.min(bucketUpperBound(i), mMaxValue);
+            }
+        }
+        return mMaxValue;
+    }
+
+    /**
+     * Adds all values recorded in another histogram to this one.
+     */
+    public void add(LatencyHistogram other) {
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            mCounts[i] += other.mCounts[i];
+        }
+        mTotalCount += other.mTotalCount;
+        mTotalValue += other.mTotalValue;
+        mMaxValue = Math.max(mMaxValue, other.mMaxValue);
+    }
+
+    public void reset() {
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            mCounts[i] = 0;
+        }
+        mTotalCount = 0;
+        mTotalValue = 0;
+        mMaxValue = 0;
+    }
+
+    /**
+     * Prints count, mean, p50, p90, p99 and max in microseconds separated by commas.
+     */
+    public void dumpCompact(PrintWriter pw) {
+        pw.print(mTotalCount);
+        pw.print(',');
+        pw.print(getMean());
+        pw.print(',');
+        pw.print(getValueAtPercentile(50));
+        pw.print(',');
+        pw.print(getValueAtPercentile(90));
+        pw.print(',');
+        pw.print(getValueAtPercentile(99));
+        pw.print(',');
+        pw.print(mMaxValue);
+    }
+
+    private static int bucketIndex(long value) {
+        final int msb = 63 - Long.numberOfLeadingZeros(value | 1);
+        final int shift = Math.max(0, msb - SUB_BUCKET_BITS);
+        return (shift << SUB_BUCKET_BITS) + (int) (value >>> shift);
+    }
+
+    private static long bucketUpperBound(int index) {
+        if (index < 2 * SUB_BUCKET_COUNT) {
+            return index;
+        }
+        final int shift = (index >> SUB_BUCKET_BITS) - 1;
+        final long mantissa = index - (shift << SUB_BUCKET_BITS);
+        return ((mantissa + 1) << shift) - 1;
+    }
+}
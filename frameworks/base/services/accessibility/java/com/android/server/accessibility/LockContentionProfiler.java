@@ -0,0 +1,181 @@
+/*
+ ** Copyright 2016, The Android Open Source Project
+ **
+ ** Licensed under the Apache License, Version 2.0 (the "License");
+ ** you may not use this file except in compliance with the License.
+ ** You may obtain a copy of the License at
+ **
+ **     http://www.apache.org/licenses/LICENSE-2.0
+ **
+ ** Unless required by applicable law or agreed to in writing, software
+ ** distributed under the License is distributed on an "AS IS" BASIS,
+ ** WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ ** See the License for the specific language governing permissions and
+ ** limitations under the License.
+ */
+
+package com.android.server.accessibility;
+
+import java.io.PrintWriter;
+
+/**
+ * Records how long callers wait for and hold a lock, per call site. A site
+ * is instrumented as follows:
+ * <pre>
+ * final long waitStart = profiler.start();
+ * synchronized (lock) {
+ *     final long holdStart = profiler.acquired(SITE, waitStart);
+ *     try {
+ *         ...
+ *     } finally {
+ *         profiler.released(SITE, holdStart);
+ *     }
+ * }
+ * </pre>
+ * Sections that already run under the lock only pass the result of
+ * {@link #start()} to {@link #released(int, long)} and record no wait.
+ * <p>
+ * Profiling is off by default and can be switched at runtime. While off the
+ * instrumentation only reads a volatile flag, and sections that were entered
+ * while it was off are not recorded.
+ * </p>
+ */
+final class LockContentionProfiler {
+
+    /** AccessibilityManagerService#sendAccessibilityEvent */
+    public static final int SITE_SEND_EVENT = 0;
+
+    /** The find and focus search queries of accessibility services. */
+    public static final int SITE_FIND_QUERY = 1;
+
+    /** Window updates from the window manager. */
+    public static final int SITE_WINDOWS_CHANGED = 2;
+
+    /** AccessibilityManagerService#updateServicesLocked, nested in other sites. */
+    public static final int SITE_UPDATE_SERVICES = 3;
+
+    /** Copying the state for dumpsys. */
+    public static final int SITE_DUMP = 4;
+
+    private static final int SITE_COUNT = 5;
+
+    private static final String[] SITE_NAMES = {
+        "sendEvent", "findQuery", "windowsChanged", "updateServices", "dump"
+    };
+
+    private final Object mLock = new Object();
+
+    private final LatencyHistogram[] mWaitTimes = new LatencyHistogram[SITE_COUNT];
+
+    private final LatencyHistogram[] mHoldTimes = new LatencyHistogram[SITE_COUNT];
+
+    private volatile boolean mEnabled;
+
+    private long mEnabledTime;
+
+    private long mDisabledTime;
+
+    LockContentionProfiler() {
+        for (int i = 0; i < SITE_COUNT; i++) {
+            mWaitTimes[i] = new LatencyHistogram();
+            mHoldTimes[i] = new LatencyHistogram();
+        }
+    }
+
+    /**
+     * Turns profiling on or off. Turning it on clears the previous results.
+     */
+    public void setEnabled(boolean enabled) {
+        synchronized (mLock) {
+            if (enabled && !mEnabled) {
+                for (int i = 0; i < SITE_COUNT; i++) {
+                    mWaitTimes[i].reset();
+                    mHoldTimes[i].reset();
+                }
+                mEnabledTime = System.nanoTime();
+            } else if (!enabled && mEnabled) {
+                mDisabledTime = System.nanoTime();
+            }
+            mEnabled = enabled;
+        }
+    }
+
+    public boolean isEnabled() {
+        return mEnabled;
+    }
+
+    /**
+     * Called before acquiring the lock or at the start of a nested section.
+     *
+     * @return The start time to pass on, 0 if profiling is off.
+     */
+    public long start() {
+        return mEnabled ? System.nanoTime() : 0;
+    }
+
+    /**
+     * Called right after acquiring the lock.
+     *
+     * @param site The call site, one of the SITE_* constants.
+     * @param waitStart The result of {@link #start()} before acquiring.
+     * @return The start time of holding the lock to pass to {@link #released(int, long)}.
+     */
+    public long acquired(int site, long waitStart) {
+        if (waitStart == 0) {
+            return 0;
+        }
+        final long now = System.nanoTime();
+        synchronized (mLock) {
+            mWaitTimes[site].record((now - waitStart) / 1000);
+        }
+        return now;
+    }
+
+    /**
+     * Called right before releasing the lock or at the end of a nested section.
+     *
+     * @param site The call site, one of the SITE_* constants.
+     * @param holdStart The result of {@link #acquired(int, long)} or {@link #start()}.
+     */
+    public void released(int site, long holdStart) {
+        if (holdStart == 0) {
+            return;
+        }
+        final long holdMicros = (System.nanoTime() - holdStart) / 1000;
+        synchronized (mLock) {
+            mHoldTimes[site].record(holdMicros);
+        }
+    }
+
+    /**
+     * Prints the wait and hold times per site. Times are in microseconds.
+     */
+    public void dump(PrintWriter pw) {
+        synchronized (mLock) {
+            pw.append("Lock contention[enabled=").append(String.valueOf(mEnabled));
+            if (mEnabledTime != 0) {
+                // The time covered by the results, which stop growing once disabled.
+                final long endTime = mEnabled ? System.nanoTime() : mDisabledTime;
+                pw.append(", duration=");
+                pw.append(String.valueOf((endTime - mEnabledTime) / 1000000));
+                pw.append("ms");
+            }
+            pw.println("]");
+            pw.println("  site,wait|hold:count,mean,p50,p90,p99,max (us)");
+            for (int i = 0; i < SITE_COUNT; i++) {
+                dumpHistogram(pw, SITE_NAMES[i], "wait", mWaitTimes[i]);
+                dumpHistogram(pw, SITE_NAMES[i], "hold", mHoldTimes[i]);
+            }
+        }
+    }
+
+    private static void dumpHistogram(PrintWriter pw, String site, String kind,
+            LatencyHistogram histogram) {
+        if (histogram.getCount() == 0) {
+            return;
+        }
+        pw.append("  ").append(site).append(',').append(kind).append(':');
+        histogram.dumpCompact(pw);
+        pw.println();
+    }
+}
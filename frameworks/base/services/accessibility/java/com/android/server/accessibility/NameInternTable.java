@@ -0,0 +1,168 @@
+/*
+ ** Copyright 2016, The Android Open Source Project
+ **
+ ** Licensed under the Apache License, Version 2.0 (the "License");
+ ** you may not use this file except in compliance with the License.
+ ** You may obtain a copy of the License at
+ **
+ **     http://www.apache.org/licenses/LICENSE-2.0
+ **
+ ** Unless required by applicable law or agreed to in writing, software
+ ** distributed under the License is distributed on an "AS IS" BASIS,
+ ** WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ ** See the License for the specific language governing permissions and
+ ** limitations under the License.
+ */
+
+package com.android.server.accessibility;
+
+import android.view.accessibility.DataCollectionManager;
+
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Process wide table that maps the package and class names of accessibility
+ * events to small integer ids, so captured events store an id instead of a
+ * copy of the name.
+ * <p>
+ * The table is an open addressed hash table whose slots are only ever filled
+ * by a compare and set, so lookups and inserts never block. Names are
+ * compared by content, hence a name that is already known is looked up
+ * without allocating.
+ * </p>
+ * <p>
+ * Class names are chosen by apps, so one app could fill the table with
+ * distinct names. When a name does not find a free slot within a few probes
+ * the table starts a new, empty generation instead of refusing names from
+ * then on. An id carries the generation it was handed out in and stays valid
+ * for that and the next generation, after which {@link #getName(int)} returns
+ * null. Captured events are short lived and batches carry their own copy of
+ * the names, so losing old names only affects events of a flooded period.
+ * </p>
+ */
+final class NameInternTable {
+
+    /** Id of a missing name or one that could not be added. */
+    public static final int ID_UNKNOWN = DataCollectionManager.PACKAGE_ID_UNKNOWN;
+
+    private static final int SLOT_BITS = 11;
+
+    private static final int CAPACITY = 1 << SLOT_BITS;
+
+    private static final int SLOT_MASK = CAPACITY - 1;
+
+    // Generation numbers wrap around within the bits of a non-negative id.
+    private static final int GENERATION_MASK = (1 << (Integer.SIZE - 1 - SLOT_BITS)) - 1;
+
+    private static final int MAX_PROBE_COUNT = 16;
+
+    private static final NameInternTable sInstance = new NameInternTable();
+
+    private final AtomicReference<Generation> mGeneration =
+            new AtomicReference<>(new Generation(0, null));
+
+    static NameInternTable getInstance() {
+        return sInstance;
+    }
+
+    private NameInternTable() {
+        /* do nothing - singleton */
+    }
+
+    /**
+     * @return The id of a name, adding it if needed.
+     */
+    public int intern(CharSequence name) {
+        if (name == null) {
+            return ID_UNKNOWN;
+        }
+        final int hash = hash(name);
+        // A second attempt in a new generation, which another thread may have started.
+        for (int attempt = 0; attempt < 2; attempt++) {
+            final Generation generation = mGeneration.get();
+            final int slot = generation.intern(name, hash);
+            if (slot >= 0) {
+                return (generation.mNumber << SLOT_BITS) | slot;
+            }
+            mGeneration.compareAndSet(generation, new Generation(
+                    (generation.mNumber + 1) & GENERATION_MASK, generation.mNames));
+        }
+        return ID_UNKNOWN;
+    }
+
+    /**
+     * @return The name with an id or null for {@link #ID_UNKNOWN} and ids of
+     *         generations that were dropped.
+     */
+    public String getName(int id) {
+        if (id == ID_UNKNOWN) {
+            return null;
+        }
+        final Generation generation = mGeneration.get();
+        final int number = id >>> SLOT_BITS;
+        final int slot = id & SLOT_MASK;
+        if (number == generation.mNumber) {
+            return generation.mNames.get(slot);
+        }
+        if (number == ((generation.mNumber - 1) & GENERATION_MASK)
+                && generation.mPreviousNames != null) {
+            return generation.mPreviousNames.get(slot);
+        }
+        return null;
+    }
+
+    /**
+     * Hashes the chars of a name the same way for Strings, which cache their
+     * hash code, and other sequences.
+     */
+    private static int hash(CharSequence name) {
+        int hash;
+        if (name instanceof String) {
+            hash = name.hashCode();
+        } else {
+            hash = 0;
+            final int length = name.length();
+            for (int i = 0; i < length; i++) {
+                hash = 31 * hash + name.charAt(i);
+            }
+        }
+        // Names share long prefixes, spread the bits before masking.
+        return hash ^ (hash >>> 16);
+    }
+
+    private static final class Generation {
+        final int mNumber;
+        final AtomicReferenceArray<String> mNames = new AtomicReferenceArray<>(CAPACITY);
+        // Only the names of the previous generation are kept, not the generation,
+        // so older ones can be collected.
+        final AtomicReferenceArray<String> mPreviousNames;
+
+        Generation(int number, AtomicReferenceArray<String> previousNames) {
+            mNumber = number;
+            mPreviousNames = previousNames;
+        }
+
+        /**
+         * @return The slot of a name or -1 if it did not find a free slot.
+         */
+        int intern(CharSequence name, int hash) {
+            for (int i = 0; i < MAX_PROBE_COUNT; i++) {
+                final int slot = (hash + i) & SLOT_MASK;
+                String existing = mNames.get(slot);
+                if (existing == null) {
+                    final String newName = name.toString();
+                    if (mNames.compareAndSet(slot, null, newName)) {
+                        return slot;
+                    }
+                    // Lost the race, the winner may have added the same name.
+                    existing = mNames.get(slot);
+                }
+                if (existing.contentEquals(name)) {
+                    return slot;
+                }
+            }
+            return -1;
+        }
+    }
+}
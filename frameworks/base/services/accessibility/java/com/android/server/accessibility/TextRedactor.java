@@ -0,0 +1,308 @@
+/*
+ ** Copyright 2016, The Android Open Source Project
+ **
+ ** Licensed under the Apache License, Version 2.0 (the "License");
+ ** you may not use this file except in compliance with the License.
+ ** You may obtain a copy of the License at
+ **
+ **     http://www.apache.org/licenses/LICENSE-2.0
+ **
+ ** Unless required by applicable law or agreed to in writing, software
+ ** distributed under the License is distributed on an "AS IS" BASIS,
+ ** WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ ** See the License for the specific language governing permissions and
+ ** limitations under the License.
+ */
+
+package com.android.server.accessibility;
+
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Masks user data in UTF-8 encoded text in place, so captured events can be
+ * persisted. Every byte of a match is replaced with '*', which keeps the
+ * length and the encoding valid.
+ * <p>
+ * Two kinds of rules are applied. Dictionary words are matched anywhere and
+ * ignoring ASCII case by an Aho-Corasick automaton compiled to a table over
+ * the bytes that occur in the words. A small set of precompiled patterns, for
+ * email addresses and long numbers other than dates, is matched on a view of
+ * the bytes as Latin-1 chars, which is exact for the ASCII the patterns match
+ * and does not decode the text into a String.
+ * </p>
+ * <p>
+ * This class is not thread safe.
+ * </p>
+ */
+final class TextRedactor {
+
+    private static final byte MASK = '*';
+
+    private static final Pattern EMAIL_PATTERN =
+            Pattern.compile("[A-Za-z0-9._%+-]+@[A-Za-z0-9.-]+\\.[A-Za-z]{2,}");
+
+    // Card, account and phone numbers, seven or more digits with separators.
+    private static final int MIN_NUMBER_DIGITS = 7;
+
+    private static final Pattern NUMBER_PATTERN =
+            Pattern.compile("\\+?\\d(?:[ ()./-]{0,2}\\d){" + (MIN_NUMBER_DIGITS - 1) + ",}");
+
+    // Dates, possibly with the hour of a time next to them, also look like
+    // numbers but are not user data. A number that is all date is kept.
+    private static final Pattern DATE_PATTERN = Pattern.compile("(?:\\d{1,2} )?"
+            + "(?:\\d{4}[-./]\\d{1,2}[-./]\\d{1,2}|\\d{1,2}[-./]\\d{1,2}[-./]\\d{2,4})"
+            + "(?: \\d{1,2})?");
+
+    private static final int PATTERN_COUNT = 2;
+
+    // Bound the size of the automaton, which has a row per byte of the words
+    // and a column per distinct byte, 256KB at most.
+    private static final int MAX_STATE_COUNT = 2048;
+
+    private static final int MAX_TRANSITION_COUNT = 128 * 1024;
+
+    private static final char[] NO_TRANSITIONS = new char[0];
+
+    private static final int[] NO_MATCH_LENGTHS = new int[0];
+
+    private final Matcher mEmailMatcher = EMAIL_PATTERN.matcher("");
+
+    private final Matcher mNumberMatcher = NUMBER_PATTERN.matcher("");
+
+    private final Matcher mDateMatcher = DATE_PATTERN.matcher("");
+
+    private final ByteChars mChars = new ByteChars();
+
+    // Maps a byte to its input class of the automaton, 0 for bytes in no word.
+    private final int[] mByteClasses = new int[256];
+
+    private int mClassCount = 1;
+
+    // Next state by state * mClassCount + class, state 0 is the root. States
+    // fit in a char since there are at most MAX_STATE_COUNT.
+    private char[] mTransitions = NO_TRANSITIONS;
+
+    // Length of the longest word ending in a state, 0 if none.
+    private int[] mMatchLengths = NO_MATCH_LENGTHS;
+
+    private int mWordCount;
+
+    private long mMatchCount;
+
+    /**
+     * Replaces the dictionary words.
+     */
+    public void setWords(String[] words) {
+        // Input classes for the folded bytes of the words.
+        final int[] byteClasses = new int[256];
+        int classCount = 1;
+        int maxStateCount = 1;
+        final byte[][] encodedWords = new byte[words.length][];
+        for (int i = 0; i < words.length; i++) {
+            final byte[] word = words[i].getBytes(StandardCharsets.UTF_8);
+            for (int j = 0; j < word.length; j++) {
+                word[j] = fold(word[j]);
+                final int b = word[j] & 0xFF;
+                if (byteClasses[b] == 0) {
+                    byteClasses[b] = classCount++;
+                }
+            }
+            encodedWords[i] = word;
+            maxStateCount += word.length;
+        }
+        if (maxStateCount > MAX_STATE_COUNT) {
+            throw new IllegalArgumentException("The words are longer than "
+                    + MAX_STATE_COUNT + " bytes in total");
+        }
+        if (maxStateCount * classCount > MAX_TRANSITION_COUNT) {
+            throw new IllegalArgumentException("The words use too many distinct bytes for "
+                    + "their total length");
+        }
+        for (int b = 'A'; b <= 'Z'; b++) {
+            byteClasses[b] = byteClasses[b - 'A' + 'a'];
+        }
+
+        // The trie, in which 0 also means there is no transition yet.
+        char[] transitions = new char[maxStateCount * classCount];
+        final int[] matchLengths = new int[maxStateCount];
+        int stateCount = 1;
+        int wordCount = 0;
+        for (byte[] word : encodedWords) {
+            if (word.length == 0) {
+                continue;
+            }
+            int state = 0;
+            for (byte b : word) {
+                final int index = state * classCount + byteClasses[b & 0xFF];
+                if (transitions[index] == 0) {
+                    transitions[index] = (char) stateCount++;
+                }
+                state = transitions[index];
+            }
+            matchLengths[state] = word.length;
+            wordCount++;
+        }
+
+        // Breadth first, point missing transitions to where the failure state
+        // goes, which turns the trie into the automaton.
+        final int[] failures = new int[stateCount];
+        final int[] queue = new int[stateCount];
+        int head = 0;
+        int tail = 0;
+        for (int c = 1; c < classCount; c++) {
+            final int next = transitions[c];
+            if (next != 0) {
+                queue[tail++] = next;
+            }
+        }
+        while (head < tail) {
+            final int state = queue[head++];
+            final int failure = failures[state];
+            matchLengths[state] = Math.max(matchLengths[state], matchLengths[failure]);
+            for (int c = 1; c < classCount; c++) {
+                final int index = state * classCount + c;
+                final int next = transitions[index];
+                if (next != 0) {
+                    failures[next] = transitions[failure * classCount + c];
+                    queue[tail++] = next;
+                } else {
+                    transitions[index] = transitions[failure * classCount + c];
+                }
+            }
+        }
+
+        System.arraycopy(byteClasses, 0, mByteClasses, 0, byteClasses.length);
+        mClassCount = classCount;
+        mTransitions = (wordCount > 0) ? transitions : NO_TRANSITIONS;
+        mMatchLengths = matchLengths;
+        mWordCount = wordCount;
+    }
+
+    /**
+     * Masks all matches in a range of a buffer.
+     *
+     * @return The number of masked matches.
+     */
+    public int redact(byte[] buffer, int start, int end) {
+        int matchCount = 0;
+        if (mTransitions.length > 0) {
+            final int[] byteClasses = mByteClasses;
+            final char[] transitions = mTransitions;
+            final int[] matchLengths = mMatchLengths;
+            final int classCount = mClassCount;
+            int state = 0;
+            for (int i = start; i < end; i++) {
+                state = transitions[state * classCount + byteClasses[buffer[i] & 0xFF]];
+                final int matchLength = matchLengths[state];
+                if (matchLength > 0) {
+                    // Masking does not change the state, the mask byte was never read.
+                    mask(buffer, i + 1 - matchLength, i + 1);
+                    matchCount++;
+                }
+            }
+        }
+        // Most text has neither, so only run the patterns that can match.
+        boolean hasAt = false;
+        int digitCount = 0;
+        for (int i = start; i < end; i++) {
+            final byte b = buffer[i];
+            if (b == '@') {
+                hasAt = true;
+            } else if (b >= '0' && b <= '9') {
+                digitCount++;
+            }
+        }
+        if (hasAt || digitCount >= MIN_NUMBER_DIGITS) {
+            mChars.set(buffer, start, end);
+            if (hasAt) {
+                matchCount += redact(mEmailMatcher, buffer, start);
+            }
+            if (digitCount >= MIN_NUMBER_DIGITS) {
+                matchCount += redactNumbers(buffer, start);
+            }
+        }
+        mMatchCount += matchCount;
+        return matchCount;
+    }
+
+    private int redact(Matcher matcher, byte[] buffer, int start) {
+        int matchCount = 0;
+        matcher.reset(mChars);
+        while (matcher.find()) {
+            mask(buffer, start + matcher.start(), start + matcher.end());
+            matchCount++;
+        }
+        return matchCount;
+    }
+
+    private int redactNumbers(byte[] buffer, int start) {
+        int matchCount = 0;
+        final Matcher matcher = mNumberMatcher;
+        matcher.reset(mChars);
+        mDateMatcher.reset(mChars);
+        while (matcher.find()) {
+            if (mDateMatcher.region(matcher.start(), matcher.end()).matches()) {
+                continue;
+            }
+            mask(buffer, start + matcher.start(), start + matcher.end());
+            matchCount++;
+        }
+        return matchCount;
+    }
+
+    public void dump(PrintWriter pw) {
+        pw.append("Text redaction[words=").append(String.valueOf(mWordCount));
+        pw.append(", patterns=").append(String.valueOf(PATTERN_COUNT));
+        pw.append(", matches=").append(String.valueOf(mMatchCount)).println("]");
+    }
+
+    private static void mask(byte[] buffer, int start, int end) {
+        for (int i = start; i < end; i++) {
+            buffer[i] = MASK;
+        }
+    }
+
+    private static byte fold(byte b) {
+        return (b >= 'A' && b <= 'Z') ? (byte) (b - 'A' + 'a') : b;
+    }
+
+    /**
+     * Bytes seen as Latin-1 chars.
+     */
+    private static final class ByteChars implements CharSequence {
+        private byte[] mBuffer;
+        private int mStart;
+        private int mEnd;
+
+        void set(byte[] buffer, int start, int end) {
+            mBuffer = buffer;
+            mStart = start;
+            mEnd = end;
+        }
+
+        @Override
+        public int length() {
+            return mEnd - mStart;
+        }
+
+        @Override
+        public char charAt(int index) {
+            return (char) (mBuffer[mStart + index] & 0xFF);
+        }
+
+        @Override
+        public CharSequence subSequence(int start, int end) {
+            final ByteChars chars = new ByteChars();
+            chars.set(mBuffer, mStart + start, mStart + end);
+            return chars;
+        }
+
+        @Override
+        public String toString() {
+            return new String(mBuffer, mStart, mEnd - mStart, StandardCharsets.ISO_8859_1);
+        }
+    }
+}
@@ -0,0 +1,248 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server;
+
+import android.os.Build;
+import android.os.Debug;
+import android.os.Environment;
+import android.os.Process;
+import android.os.SystemClock;
+import android.util.AtomicFile;
+import android.util.Slog;
+
+import com.android.internal.os.BackgroundThread;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * Records the duration, thread CPU time and allocations of the traced
+ * sections of system server startup and saves them as a report under
+ * /data/system/boot_timings, keeping the reports of the last few boots.
+ * Reports are named after a boot counter, the wall clock is not trusted
+ * to be set this early.
+ * <p>
+ * Only sections of the thread that created the report are recorded, others
+ * are ignored. Allocations are counted on debuggable builds only since
+ * counting slows down every allocation in the process.
+ * </p>
+ * <p>
+ * A report is a comma separated header line "boot,..." followed by one
+ * line per section in start order:
+ * sec,depth,name,startNanos,durationNanos,threadCpuMicros,allocCount,allocBytes
+ * where the start is relative to the start of the process.
+ * </p>
+ */
+final class BootTimingReport {
+    private static final String TAG = "BootTimingReport";
+
+    private static final int REPORT_VERSION = 1;
+
+    private static final String REPORT_DIR_NAME = "boot_timings";
+
+    private static final String REPORT_FILE_PREFIX = "boot_";
+
+    private static final int MAX_REPORT_COUNT = 10;
+
+    private final Thread mThread = Thread.currentThread();
+
+    private final boolean mCountAllocations = Build.IS_DEBUGGABLE;
+
+    private final long mProcessStartNanos = Process.getStartElapsedRealtime() * 1000000L;
+
+    // Sections in start order, and the open ones innermost last.
+    private final ArrayList<Section> mSections = new ArrayList<>();
+
+    private final ArrayList<Section> mOpenSections = new ArrayList<>();
+
+    private boolean mFinished;
+
+    BootTimingReport() {
+        if (mCountAllocations) {
+            Debug.startAllocCounting();
+        }
+    }
+
+    void begin(String name) {
+        if (Thread.currentThread() != mThread || mFinished) {
+            return;
+        }
+        final Section section = new Section(name, mOpenSections.size());
+        mSections.add(section);
+        mOpenSections.add(section);
+        // Read the counters last so the bookkeeping above is not attributed to the section.
+        if (mCountAllocations) {
+            section.mAllocCount = Debug.getThreadAllocCount();
+            section.mAllocBytes = Debug.getThreadAllocSize();
+        }
+        section.mThreadCpuMicros = SystemClock.currentThreadTimeMicro();
+        section.mStartNanos = SystemClock.elapsedRealtimeNanos();
+    }
+
+    void end() {
+        final long now = SystemClock.elapsedRealtimeNanos();
+        final long threadCpuMicros = SystemClock.currentThreadTimeMicro();
+        if (Thread.currentThread() != mThread || mFinished) {
+            return;
+        }
+        if (mOpenSections.isEmpty()) {
+            // An earlier end closed a section it did not begin, the depths and
+            // durations of the enclosing sections are wrong from there on.
+            Slog.wtf(TAG, "Unbalanced end of a boot timing section");
+            return;
+        }
+        final Section section = mOpenSections.remove(mOpenSections.size() - 1);
+        section.mDurationNanos = now - section.mStartNanos;
+        section.mThreadCpuMicros = threadCpuMicros - section.mThreadCpuMicros;
+        if (mCountAllocations) {
+            section.mAllocCount = Debug.getThreadAllocCount() - section.mAllocCount;
+            section.mAllocBytes = Debug.getThreadAllocSize() - section.mAllocBytes;
+        }
+    }
+
+    /**
+     * Stops recording and saves the report in the background. Sections that
+     * are still open are left out.
+     */
+    void finish() {
+        if (Thread.currentThread() != mThread || mFinished) {
+            return;
+        }
+        mFinished = true;
+        if (!mOpenSections.isEmpty()) {
+            Slog.wtf(TAG, "Boot timing section "
+                    + mOpenSections.get(mOpenSections.size() - 1).mName + " was not ended");
+        }
+        if (mCountAllocations) {
+            Debug.stopAllocCounting();
+        }
+        final long bootNanos = SystemClock.elapsedRealtimeNanos() - mProcessStartNanos;
+        Slog.i(TAG, "System server started in " + bootNanos / 1000000 + "ms");
+        BackgroundThread.getHandler().post(new Runnable() {
+            @Override
+            public void run() {
+                save(bootNanos);
+            }
+        });
+    }
+
+    private void save(long bootNanos) {
+        final File dir = new File(Environment.getDataSystemDirectory(), REPORT_DIR_NAME);
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            Slog.w(TAG, "Cannot create " + dir);
+            return;
+        }
+        final long[] reportNumbers = listReportNumbers(dir);
+        final long number = (reportNumbers.length > 0)
+                ? reportNumbers[reportNumbers.length - 1] + 1 : 0;
+        final long now = System.currentTimeMillis();
+        final AtomicFile file = new AtomicFile(new File(dir, REPORT_FILE_PREFIX + number));
+        FileOutputStream fos = null;
+        try {
+            fos = file.startWrite();
+            PrintWriter pw = new PrintWriter(fos);
+            writeTo(pw, now, bootNanos);
+            pw.flush();
+            file.finishWrite(fos);
+        } catch (IOException ioe) {
+            Slog.w(TAG, "Failed to save boot timings", ioe);
+            file.failWrite(fos);
+            return;
+        }
+        // Delete the oldest reports, leaving room for the one just written.
+        for (int i = 0; i < reportNumbers.length - (MAX_REPORT_COUNT - 1); i++) {
+            new File(dir, REPORT_FILE_PREFIX + reportNumbers[i]).delete();
+        }
+    }
+
+    private void writeTo(PrintWriter pw, long wallTime, long bootNanos) {
+        pw.print("boot,");
+        pw.print(REPORT_VERSION);
+        pw.print(',');
+        pw.print(wallTime);
+        pw.print(',');
+        pw.print(Build.FINGERPRINT);
+        pw.print(',');
+        pw.println(bootNanos);
+        final int count = mSections.size();
+        for (int i = 0; i < count; i++) {
+            final Section section = mSections.get(i);
+            if (section.mDurationNanos < 0) {
+                continue;
+            }
+            pw.print("sec,");
+            pw.print(section.mDepth);
+            pw.print(',');
+            pw.print(section.mName);
+            pw.print(',');
+            pw.print(section.mStartNanos - mProcessStartNanos);
+            pw.print(',');
+            pw.print(section.mDurationNanos);
+            pw.print(',');
+            pw.print(section.mThreadCpuMicros);
+            pw.print(',');
+            pw.print(mCountAllocations ? section.mAllocCount : -1);
+            pw.print(',');
+            pw.println(mCountAllocations ? section.mAllocBytes : -1);
+        }
+    }
+
+    /**
+     * @return The numbers of the saved reports, oldest first.
+     */
+    private static long[] listReportNumbers(File dir) {
+        final String[] names = dir.list();
+        if (names == null) {
+            return new long[0];
+        }
+        final long[] numbers = new long[names.length];
+        int count = 0;
+        for (String name : names) {
+            if (!name.startsWith(REPORT_FILE_PREFIX)) {
+                continue;
+            }
+            try {
+                numbers[count] = Long.parseLong(name.substring(REPORT_FILE_PREFIX.length()));
+                count++;
+            } catch (NumberFormatException e) {
+                // Not a report, such as the backup file of an interrupted write.
+            }
+        }
+        final long[] result = Arrays.copyOf(numbers, count);
+        Arrays.sort(result);
+        return result;
+    }
+
+    private static final class Section {
+        final String mName;
+        final int mDepth;
+        long mStartNanos;
+        long mDurationNanos = -1;
+        long mThreadCpuMicros;
+        long mAllocCount;
+        long mAllocBytes;
+
+        Section(String name, int depth) {
+            mName = name;
+            mDepth = depth;
+        }
+    }
+}
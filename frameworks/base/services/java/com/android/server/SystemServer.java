@@ -56,6 +56,7 @@ import com.android.internal.os.ZygoteInit;
 import com.android.internal.policy.EmergencyAffordanceManager;
 import com.android.internal.widget.ILockSettings;
 import com.android.server.accessibility.AccessibilityManagerService;
+import com.android.server.accessibility.DataCollectionService;
 import com.android.server.am.ActivityManagerService;
 import com.android.server.audio.AudioService;
 import com.android.server.camera.CameraService;
@@ -111,6 +112,7 @@ import java.io.IOException;
 import java.util.Locale;
 import java.util.Timer;
 import java.util.TimerTask;
+import java.util.concurrent.Future;
 
 public final class SystemServer {
     private static final String TAG = "SystemServer";
@@ -188,6 +190,9 @@ public final class SystemServer {
     private static final int DEFAULT_SYSTEM_THEME =
             com.android.internal.R.style.Theme_DeviceDefault_System;
 
+    // Timings of the traced startup sections of the main thread, see traceBegin().
+    private static BootTimingReport sBootTimingReport;
+
     private final int mFactoryTestMode;
     private Timer mProfilerSnapshotTimer;
 
@@ -207,6 +212,13 @@ public final class SystemServer {
     private boolean mOnlyCore;
     private boolean mFirstBoot;
 
+    // Start of the sensor service on the init thread pool, waited for before the
+    // window manager, which needs sensors, is started.
+    private Future<?> mSensorServiceStart;
+
+    // Set on the init thread pool, read after the PHASE_LOCK_SETTINGS_READY barrier.
+    private CommonTimeManagementService mCommonTimeMgmtService;
+
     /**
      * Start the sensor service.
      */
@@ -225,8 +237,9 @@ public final class SystemServer {
     }
 
     private void run() {
+        sBootTimingReport = new BootTimingReport();
         try {
-            Trace.traceBegin(Trace.TRACE_TAG_SYSTEM_SERVER, "InitBeforeStartServices");
+            traceBegin("InitBeforeStartServices");
             // If a device's clock is before 1970 (before 0), a lot of
             // APIs crash dealing with negative numbers, notably
             // java.io.File#setLastModified, so instead we fake it and
@@ -323,12 +336,12 @@ public final class SystemServer {
             mSystemServiceManager = new SystemServiceManager(mSystemContext);
             LocalServices.addService(SystemServiceManager.class, mSystemServiceManager);
         } finally {
-            Trace.traceEnd(Trace.TRACE_TAG_SYSTEM_SERVER);
+            traceEnd();
         }
 
         // Start services.
         try {
-            Trace.traceBegin(Trace.TRACE_TAG_SYSTEM_SERVER, "StartServices");
+            traceBegin("StartServices");
             startBootstrapServices();
             startCoreServices();
             startOtherServices();
@@ -337,8 +350,11 @@ public final class SystemServer {
             Slog.e("System", "************ Failure starting system services", ex);
             throw ex;
         } finally {
-            Trace.traceEnd(Trace.TRACE_TAG_SYSTEM_SERVER);
+            traceEnd();
         }
+        // The activity manager ran the systemReady callback above, so every
+        // section is closed by now.
+        sBootTimingReport.finish();
 
         // For debug builds, log event loop stalls to dropbox for analysis.
         if (StrictMode.conditionallyEnableDebugLogging()) {
@@ -410,13 +426,22 @@ public final class SystemServer {
      * the other functions.
      */
     private void startBootstrapServices() {
+        // Parsing the system configuration only reads files. The package manager
+        // blocks on it when it gets there, by which time most of it is done.
+        SystemServerInitThreadPool.get().submit(new Runnable() {
+            @Override
+            public void run() {
+                SystemConfig.getInstance();
+            }
+        }, "ReadingSystemConfig", SystemService.PHASE_LOCK_SETTINGS_READY);
+
         // Wait for installd to finish starting up so that it has a chance to
         // create critical directories such as /data/user with the appropriate
         // permissions.  We need this to complete before we initialize other services.
-        Installer installer = mSystemServiceManager.startService(Installer.class);
+        Installer installer = startService(Installer.class);
 
         // Activity manager runs the show.
-        mActivityManagerService = mSystemServiceManager.startService(
+        mActivityManagerService = startService(
                 ActivityManagerService.Lifecycle.class).getService();
         mActivityManagerService.setSystemServiceManager(mSystemServiceManager);
         mActivityManagerService.setInstaller(installer);
@@ -425,20 +450,20 @@ public final class SystemServer {
         // Native daemons may be watching for it to be registered so it must be ready
         // to handle incoming binder calls immediately (including being able to verify
         // the permissions for those calls).
-        mPowerManagerService = mSystemServiceManager.startService(PowerManagerService.class);
+        mPowerManagerService = startService(PowerManagerService.class);
 
         // Now that the power manager has been started, let the activity manager
         // initialize power management features.
-        Trace.traceBegin(Trace.TRACE_TAG_SYSTEM_SERVER, "InitPowerManagement");
+        traceBegin("InitPowerManagement");
         mActivityManagerService.initPowerManagement();
-        Trace.traceEnd(Trace.TRACE_TAG_SYSTEM_SERVER);
+        traceEnd();
 
         // Manages LEDs and display backlight so we need it to bring up the display.
-        mSystemServiceManager.startService(LightsService.class);
+        startService(LightsService.class);
 
         // Display manager is needed to provide display metrics before package manager
         // starts up.
-        mDisplayManagerService = mSystemServiceManager.startService(DisplayManagerService.class);
+        mDisplayManagerService = startService(DisplayManagerService.class);
 
         // We need the default display before we can initialize the package manager.
         mSystemServiceManager.startBootPhase(SystemService.PHASE_WAIT_FOR_DEFAULT_DISPLAY);
@@ -459,7 +484,7 @@ public final class SystemServer {
                 mFactoryTestMode != FactoryTest.FACTORY_TEST_OFF, mOnlyCore);
         mFirstBoot = mPackageManagerService.isFirstBoot();
         mPackageManager = mSystemContext.getPackageManager();
-        Trace.traceEnd(Trace.TRACE_TAG_SYSTEM_SERVER);
+        traceEnd();
 
         // Manages A/B OTA dexopting. This is a bootstrap service as we need it to rename
         // A/B artifacts after boot, before anything else might touch/need them.
@@ -474,14 +499,14 @@ public final class SystemServer {
                 } catch (Throwable e) {
                     reportWtf("starting OtaDexOptService", e);
                 } finally {
-                    Trace.traceEnd(Trace.TRACE_TAG_SYSTEM_SERVER);
+                    traceEnd();
                 }
             }
         }
 
         traceBeginAndSlog("StartUserManagerService");
-        mSystemServiceManager.startService(UserManagerService.LifeCycle.class);
-        Trace.traceEnd(Trace.TRACE_TAG_SYSTEM_SERVER);
+        startService(UserManagerService.LifeCycle.class);
+        traceEnd();
 
         // Initialize attribute cache used to cache resources from packages.
         AttributeCache.init(mSystemContext);
@@ -491,7 +516,12 @@ public final class SystemServer {
 
         // The sensor service needs access to package manager service, app ops
         // service, and permissions service, therefore we start it after them.
-        startSensorService();
+        mSensorServiceStart = SystemServerInitThreadPool.get().submit(new Runnable() {
+            @Override
+            public void run() {
+                startSensorService();
+            }
+        }, "StartSensorService", SystemService.PHASE_LOCK_SETTINGS_READY);
     }
 
     /**
@@ -499,15 +529,15 @@ public final class SystemServer {
      */
     private void startCoreServices() {
         // Tracks the battery level.  Requires LightService.
-        mSystemServiceManager.startService(BatteryService.class);
+        startService(BatteryService.class);
 
         // Tracks application usage stats.
-        mSystemServiceManager.startService(UsageStatsService.class);
+        startService(UsageStatsService.class);
         mActivityManagerService.setUsageStatsManager(
                 LocalServices.getService(UsageStatsManagerInternal.class));
 
         // Tracks whether the updatable WebView is in a ready state and watches for update installs.
-        mWebViewUpdateService = mSystemServiceManager.startService(WebViewUpdateService.class);
+        mWebViewUpdateService = startService(WebViewUpdateService.class);
     }
 
     /**
@@ -527,7 +557,6 @@ public final class SystemServer {
         WindowManagerService wm = null;
         SerialService serial = null;
         NetworkTimeUpdateService networkTimeUpdater = null;
-        CommonTimeManagementService commonTimeMgmtService = null;
         InputManagerService inputManager = null;
         TelephonyRegistry telephonyRegistry = null;
         ConsumerIrService consumerIr = null;
@@ -560,71 +589,73 @@ public final class SystemServer {
 
             traceBeginAndSlog("StartSchedulingPolicyService");
             ServiceManager.addService("scheduling_policy", new SchedulingPolicyService());
-            Trace.traceEnd(Trace.TRACE_TAG_SYSTEM_SERVER);
+            traceEnd();
 
-            mSystemServiceManager.startService(TelecomLoaderService.class);
+            startService(TelecomLoaderService.class);
 
             traceBeginAndSlog("StartTelephonyRegistry");
             telephonyRegistry = new TelephonyRegistry(context);
             ServiceManager.addService("telephony.registry", telephonyRegistry);
-            Trace.traceEnd(Trace.TRACE_TAG_SYSTEM_SERVER);
+            traceEnd();
 
             traceBeginAndSlog("StartEntropyMixer");
             mEntropyMixer = new EntropyMixer(context);
-            Trace.traceEnd(Trace.TRACE_TAG_SYSTEM_SERVER);
+            traceEnd();
 
             mContentResolver = context.getContentResolver();
 
             Slog.i(TAG, "Camera Service");
-            mSystemServiceManager.startService(CameraService.class);
+            startService(CameraService.class);
 
             // The AccountManager must come before the ContentService
             traceBeginAndSlog("StartAccountManagerService");
-            mSystemServiceManager.startService(ACCOUNT_SERVICE_CLASS);
-            Trace.traceEnd(Trace.TRACE_TAG_SYSTEM_SERVER);
+            startService(ACCOUNT_SERVICE_CLASS);
+            traceEnd();
 
             traceBeginAndSlog("StartContentService");
-            mSystemServiceManager.startService(CONTENT_SERVICE_CLASS);
-            Trace.traceEnd(Trace.TRACE_TAG_SYSTEM_SERVER);
+            startService(CONTENT_SERVICE_CLASS);
+            traceEnd();
 
             traceBeginAndSlog("InstallSystemProviders");
             mActivityManagerService.installSystemProviders();
-            Trace.traceEnd(Trace.TRACE_TAG_SYSTEM_SERVER);
+            traceEnd();
 
             traceBeginAndSlog("StartVibratorService");
             vibrator = new VibratorService(context);
             ServiceManager.addService("vibrator", vibrator);
-            Trace.traceEnd(Trace.TRACE_TAG_SYSTEM_SERVER);
+            traceEnd();
 
             traceBeginAndSlog("StartConsumerIrService");
             consumerIr = new ConsumerIrService(context);
             ServiceManager.addService(Context.CONSUMER_IR_SERVICE, consumerIr);
-            Trace.traceEnd(Trace.TRACE_TAG_SYSTEM_SERVER);
+            traceEnd();
 
             traceBeginAndSlog("StartAlarmManagerService");
-            mSystemServiceManager.startService(AlarmManagerService.class);
-            Trace.traceEnd(Trace.TRACE_TAG_SYSTEM_SERVER);
+            startService(AlarmManagerService.class);
+            traceEnd();
 
             traceBeginAndSlog("InitWatchdog");
             final Watchdog watchdog = Watchdog.getInstance();
             watchdog.init(context, mActivityManagerService);
-            Trace.traceEnd(Trace.TRACE_TAG_SYSTEM_SERVER);
+            traceEnd();
 
             traceBeginAndSlog("StartInputManagerService");
             inputManager = new InputManagerService(context);
-            Trace.traceEnd(Trace.TRACE_TAG_SYSTEM_SERVER);
+            traceEnd();
 
             traceBeginAndSlog("StartWindowManagerService");
+            SystemServerInitThreadPool.waitForTask(mSensorServiceStart, "StartSensorService");
+            mSensorServiceStart = null;
             wm = WindowManagerService.main(context, inputManager,
                     mFactoryTestMode != FactoryTest.FACTORY_TEST_LOW_LEVEL,
                     !mFirstBoot, mOnlyCore);
             ServiceManager.addService(Context.WINDOW_SERVICE, wm);
             ServiceManager.addService(Context.INPUT_SERVICE, inputManager);
-            Trace.traceEnd(Trace.TRACE_TAG_SYSTEM_SERVER);
+            traceEnd();
 
             traceBeginAndSlog("StartVrManagerService");
-            mSystemServiceManager.startService(VrManagerService.class);
-            Trace.traceEnd(Trace.TRACE_TAG_SYSTEM_SERVER);
+            startService(VrManagerService.class);
+            traceEnd();
 
             mActivityManagerService.setWindowManager(wm);
 
@@ -647,20 +678,20 @@ public final class SystemServer {
             } else if (disableBluetooth) {
                 Slog.i(TAG, "Bluetooth Service disabled by config");
             } else {
-                mSystemServiceManager.startService(BluetoothService.class);
+                startService(BluetoothService.class);
             }
 
             traceBeginAndSlog("ConnectivityMetricsLoggerService");
-            mSystemServiceManager.startService(MetricsLoggerService.class);
-            Trace.traceEnd(Trace.TRACE_TAG_SYSTEM_SERVER);
+            startService(MetricsLoggerService.class);
+            traceEnd();
 
             traceBeginAndSlog("IpConnectivityMetrics");
-            mSystemServiceManager.startService(IpConnectivityMetrics.class);
-            Trace.traceEnd(Trace.TRACE_TAG_SYSTEM_SERVER);
+            startService(IpConnectivityMetrics.class);
+            traceEnd();
 
             traceBeginAndSlog("PinnerService");
-            mSystemServiceManager.startService(PinnerService.class);
-            Trace.traceEnd(Trace.TRACE_TAG_SYSTEM_SERVER);
+            startService(PinnerService.class);
+            traceEnd();
         } catch (RuntimeException e) {
             Slog.e("System", "******************************************");
             Slog.e("System", "************ Failure starting core service", e);
@@ -676,16 +707,19 @@ public final class SystemServer {
 
         // Bring up services needed for UI.
         if (mFactoryTestMode != FactoryTest.FACTORY_TEST_LOW_LEVEL) {
-            mSystemServiceManager.startService(InputMethodManagerService.Lifecycle.class);
+            startService(InputMethodManagerService.Lifecycle.class);
 
             traceBeginAndSlog("StartAccessibilityManagerService");
             try {
-                ServiceManager.addService(Context.ACCESSIBILITY_SERVICE,
-                        new AccessibilityManagerService(context));
+                AccessibilityManagerService accessibilityManager =
+                        new AccessibilityManagerService(context);
+                ServiceManager.addService(Context.ACCESSIBILITY_SERVICE, accessibilityManager);
+                ServiceManager.addService(Context.DATA_COLLECTION_SERVICE,
+                        new DataCollectionService(context, accessibilityManager));
             } catch (Throwable e) {
                 reportWtf("starting Accessibility Manager", e);
             }
-            Trace.traceEnd(Trace.TRACE_TAG_SYSTEM_SERVER);
+            traceEnd();
         }
 
         try {
@@ -702,7 +736,7 @@ public final class SystemServer {
                      * NotificationManagerService is dependant on MountService,
                      * (for media / usb notifications) so we must start MountService first.
                      */
-                    mSystemServiceManager.startService(MOUNT_SERVICE_CLASS);
+                    startService(MOUNT_SERVICE_CLASS);
                     mountService = IMountService.Stub.asInterface(
                             ServiceManager.getService("mount"));
                 } catch (Throwable e) {
@@ -713,47 +747,47 @@ public final class SystemServer {
 
         // We start this here so that we update our configuration to set watch or television
         // as appropriate.
-        mSystemServiceManager.startService(UiModeManagerService.class);
+        startService(UiModeManagerService.class);
 
         if (!mOnlyCore) {
-            Trace.traceBegin(Trace.TRACE_TAG_SYSTEM_SERVER, "UpdatePackagesIfNeeded");
+            traceBegin("UpdatePackagesIfNeeded");
             try {
                 mPackageManagerService.updatePackagesIfNeeded();
             } catch (Throwable e) {
                 reportWtf("update packages", e);
             }
-            Trace.traceEnd(Trace.TRACE_TAG_SYSTEM_SERVER);
+            traceEnd();
         }
 
-        Trace.traceBegin(Trace.TRACE_TAG_SYSTEM_SERVER, "PerformFstrimIfNeeded");
+        traceBegin("PerformFstrimIfNeeded");
         try {
             mPackageManagerService.performFstrimIfNeeded();
         } catch (Throwable e) {
             reportWtf("performing fstrim", e);
         }
-        Trace.traceEnd(Trace.TRACE_TAG_SYSTEM_SERVER);
+        traceEnd();
 
         if (mFactoryTestMode != FactoryTest.FACTORY_TEST_LOW_LEVEL) {
             if (!disableNonCoreServices) {
                 traceBeginAndSlog("StartLockSettingsService");
                 try {
-                    mSystemServiceManager.startService(LOCK_SETTINGS_SERVICE_CLASS);
+                    startService(LOCK_SETTINGS_SERVICE_CLASS);
                     lockSettings = ILockSettings.Stub.asInterface(
                             ServiceManager.getService("lock_settings"));
                 } catch (Throwable e) {
                     reportWtf("starting LockSettingsService service", e);
                 }
-                Trace.traceEnd(Trace.TRACE_TAG_SYSTEM_SERVER);
+                traceEnd();
 
                 if (!SystemProperties.get(PERSISTENT_DATA_BLOCK_PROP).equals("")) {
-                    mSystemServiceManager.startService(PersistentDataBlockService.class);
+                    startService(PersistentDataBlockService.class);
                 }
 
-                mSystemServiceManager.startService(DeviceIdleController.class);
+                startService(DeviceIdleController.class);
 
                 // Always start the Device Policy Manager, so that the API is compatible with
                 // API8.
-                mSystemServiceManager.startService(DevicePolicyManagerService.Lifecycle.class);
+                startService(DevicePolicyManagerService.Lifecycle.class);
             }
 
             if (!disableSystemUI) {
@@ -764,7 +798,7 @@ public final class SystemServer {
                 } catch (Throwable e) {
                     reportWtf("starting StatusBarManagerService", e);
                 }
-                Trace.traceEnd(Trace.TRACE_TAG_SYSTEM_SERVER);
+                traceEnd();
             }
 
             if (!disableNonCoreServices) {
@@ -775,7 +809,7 @@ public final class SystemServer {
                 } catch (Throwable e) {
                     reportWtf("starting Clipboard Service", e);
                 }
-                Trace.traceEnd(Trace.TRACE_TAG_SYSTEM_SERVER);
+                traceEnd();
             }
 
             if (!disableNetwork) {
@@ -786,11 +820,11 @@ public final class SystemServer {
                 } catch (Throwable e) {
                     reportWtf("starting NetworkManagement Service", e);
                 }
-                Trace.traceEnd(Trace.TRACE_TAG_SYSTEM_SERVER);
+                traceEnd();
             }
 
             if (!disableNonCoreServices && !disableTextServices) {
-                mSystemServiceManager.startService(TextServicesManagerService.Lifecycle.class);
+                startService(TextServicesManagerService.Lifecycle.class);
             }
 
             if (!disableNetwork) {
@@ -801,7 +835,7 @@ public final class SystemServer {
                 } catch (Throwable e) {
                     reportWtf("starting Network Score Service", e);
                 }
-                Trace.traceEnd(Trace.TRACE_TAG_SYSTEM_SERVER);
+                traceEnd();
 
                 traceBeginAndSlog("StartNetworkStatsService");
                 try {
@@ -810,7 +844,7 @@ public final class SystemServer {
                 } catch (Throwable e) {
                     reportWtf("starting NetworkStats Service", e);
                 }
-                Trace.traceEnd(Trace.TRACE_TAG_SYSTEM_SERVER);
+                traceEnd();
 
                 traceBeginAndSlog("StartNetworkPolicyManagerService");
                 try {
@@ -820,25 +854,25 @@ public final class SystemServer {
                 } catch (Throwable e) {
                     reportWtf("starting NetworkPolicy Service", e);
                 }
-                Trace.traceEnd(Trace.TRACE_TAG_SYSTEM_SERVER);
+                traceEnd();
 
                 if (context.getPackageManager().hasSystemFeature(PackageManager.FEATURE_WIFI_NAN)) {
-                    mSystemServiceManager.startService(WIFI_NAN_SERVICE_CLASS);
+                    startService(WIFI_NAN_SERVICE_CLASS);
                 } else {
                     Slog.i(TAG, "No Wi-Fi NAN Service (NAN support Not Present)");
                 }
-                mSystemServiceManager.startService(WIFI_P2P_SERVICE_CLASS);
-                mSystemServiceManager.startService(WIFI_SERVICE_CLASS);
-                mSystemServiceManager.startService(
+                startService(WIFI_P2P_SERVICE_CLASS);
+                startService(WIFI_SERVICE_CLASS);
+                startService(
                             "com.android.server.wifi.scanner.WifiScanningService");
 
                 if (!disableRtt) {
-                    mSystemServiceManager.startService("com.android.server.wifi.RttService");
+                    startService("com.android.server.wifi.RttService");
                 }
 
                 if (mPackageManager.hasSystemFeature(PackageManager.FEATURE_ETHERNET) ||
                     mPackageManager.hasSystemFeature(PackageManager.FEATURE_USB_HOST)) {
-                    mSystemServiceManager.startService(ETHERNET_SERVICE_CLASS);
+                    startService(ETHERNET_SERVICE_CLASS);
                 }
 
                 traceBeginAndSlog("StartConnectivityService");
@@ -851,7 +885,7 @@ public final class SystemServer {
                 } catch (Throwable e) {
                     reportWtf("starting Connectivity Service", e);
                 }
-                Trace.traceEnd(Trace.TRACE_TAG_SYSTEM_SERVER);
+                traceEnd();
 
                 traceBeginAndSlog("StartNsdService");
                 try {
@@ -861,7 +895,7 @@ public final class SystemServer {
                 } catch (Throwable e) {
                     reportWtf("starting Service Discovery Service", e);
                 }
-                Trace.traceEnd(Trace.TRACE_TAG_SYSTEM_SERVER);
+                traceEnd();
             }
 
             if (!disableNonCoreServices) {
@@ -872,11 +906,11 @@ public final class SystemServer {
                 } catch (Throwable e) {
                     reportWtf("starting UpdateLockService", e);
                 }
-                Trace.traceEnd(Trace.TRACE_TAG_SYSTEM_SERVER);
+                traceEnd();
             }
 
             if (!disableNonCoreServices) {
-                mSystemServiceManager.startService(RecoverySystemService.class);
+                startService(RecoverySystemService.class);
             }
 
             /*
@@ -885,20 +919,20 @@ public final class SystemServer {
              * first before continuing.
              */
             if (mountService != null && !mOnlyCore) {
-                Trace.traceBegin(Trace.TRACE_TAG_SYSTEM_SERVER, "WaitForAsecScan");
+                traceBegin("WaitForAsecScan");
                 try {
                     mountService.waitForAsecScan();
                 } catch (RemoteException ignored) {
                 }
-                Trace.traceEnd(Trace.TRACE_TAG_SYSTEM_SERVER);
+                traceEnd();
             }
 
-            mSystemServiceManager.startService(NotificationManagerService.class);
+            startService(NotificationManagerService.class);
             notification = INotificationManager.Stub.asInterface(
                     ServiceManager.getService(Context.NOTIFICATION_SERVICE));
             networkPolicy.bindNotificationManager(notification);
 
-            mSystemServiceManager.startService(DeviceStorageMonitorService.class);
+            startService(DeviceStorageMonitorService.class);
 
             if (!disableLocation) {
                 traceBeginAndSlog("StartLocationManagerService");
@@ -908,7 +942,7 @@ public final class SystemServer {
                 } catch (Throwable e) {
                     reportWtf("starting Location Manager", e);
                 }
-                Trace.traceEnd(Trace.TRACE_TAG_SYSTEM_SERVER);
+                traceEnd();
 
                 traceBeginAndSlog("StartCountryDetectorService");
                 try {
@@ -917,37 +951,37 @@ public final class SystemServer {
                 } catch (Throwable e) {
                     reportWtf("starting Country Detector", e);
                 }
-                Trace.traceEnd(Trace.TRACE_TAG_SYSTEM_SERVER);
+                traceEnd();
             }
 
             if (!disableNonCoreServices && !disableSearchManager) {
                 traceBeginAndSlog("StartSearchManagerService");
                 try {
-                    mSystemServiceManager.startService(SEARCH_MANAGER_SERVICE_CLASS);
+                    startService(SEARCH_MANAGER_SERVICE_CLASS);
                 } catch (Throwable e) {
                     reportWtf("starting Search Service", e);
                 }
-                Trace.traceEnd(Trace.TRACE_TAG_SYSTEM_SERVER);
+                traceEnd();
             }
 
-            mSystemServiceManager.startService(DropBoxManagerService.class);
+            startService(DropBoxManagerService.class);
 
             if (!disableNonCoreServices && context.getResources().getBoolean(
                         R.bool.config_enableWallpaperService)) {
                 traceBeginAndSlog("StartWallpaperManagerService");
-                mSystemServiceManager.startService(WALLPAPER_SERVICE_CLASS);
-                Trace.traceEnd(Trace.TRACE_TAG_SYSTEM_SERVER);
+                startService(WALLPAPER_SERVICE_CLASS);
+                traceEnd();
             }
 
             traceBeginAndSlog("StartAudioService");
-            mSystemServiceManager.startService(AudioService.Lifecycle.class);
-            Trace.traceEnd(Trace.TRACE_TAG_SYSTEM_SERVER);
+            startService(AudioService.Lifecycle.class);
+            traceEnd();
 
             if (!disableNonCoreServices) {
-                mSystemServiceManager.startService(DockObserver.class);
+                startService(DockObserver.class);
 
                 if (context.getPackageManager().hasSystemFeature(PackageManager.FEATURE_WATCH)) {
-                    mSystemServiceManager.startService(THERMAL_OBSERVER_CLASS);
+                    startService(THERMAL_OBSERVER_CLASS);
                 }
             }
 
@@ -959,21 +993,21 @@ public final class SystemServer {
             } catch (Throwable e) {
                 reportWtf("starting WiredAccessoryManager", e);
             }
-            Trace.traceEnd(Trace.TRACE_TAG_SYSTEM_SERVER);
+            traceEnd();
 
             if (!disableNonCoreServices) {
                 if (mPackageManager.hasSystemFeature(PackageManager.FEATURE_MIDI)) {
                     // Start MIDI Manager service
-                    mSystemServiceManager.startService(MIDI_SERVICE_CLASS);
+                    startService(MIDI_SERVICE_CLASS);
                 }
 
                 if (mPackageManager.hasSystemFeature(PackageManager.FEATURE_USB_HOST)
                         || mPackageManager.hasSystemFeature(
                                 PackageManager.FEATURE_USB_ACCESSORY)) {
                     // Manage USB host and device support
-                    Trace.traceBegin(Trace.TRACE_TAG_SYSTEM_SERVER, "StartUsbService");
-                    mSystemServiceManager.startService(USB_SERVICE_CLASS);
-                    Trace.traceEnd(Trace.TRACE_TAG_SYSTEM_SERVER);
+                    traceBegin("StartUsbService");
+                    startService(USB_SERVICE_CLASS);
+                    traceEnd();
                 }
 
                 if (!disableSerial) {
@@ -985,11 +1019,10 @@ public final class SystemServer {
                     } catch (Throwable e) {
                         Slog.e(TAG, "Failure starting SerialService", e);
                     }
-                    Trace.traceEnd(Trace.TRACE_TAG_SYSTEM_SERVER);
+                    traceEnd();
                 }
 
-                Trace.traceBegin(Trace.TRACE_TAG_SYSTEM_SERVER,
-                        "StartHardwarePropertiesManagerService");
+                traceBegin("StartHardwarePropertiesManagerService");
                 try {
                     hardwarePropertiesService = new HardwarePropertiesManagerService(context);
                     ServiceManager.addService(Context.HARDWARE_PROPERTIES_SERVICE,
@@ -997,62 +1030,73 @@ public final class SystemServer {
                 } catch (Throwable e) {
                     Slog.e(TAG, "Failure starting HardwarePropertiesManagerService", e);
                 }
-                Trace.traceEnd(Trace.TRACE_TAG_SYSTEM_SERVER);
+                traceEnd();
             }
 
-            mSystemServiceManager.startService(TwilightService.class);
+            startService(TwilightService.class);
 
             if (NightDisplayController.isAvailable(context)) {
-                mSystemServiceManager.startService(NightDisplayService.class);
+                startService(NightDisplayService.class);
             }
 
-            mSystemServiceManager.startService(JobSchedulerService.class);
+            startService(JobSchedulerService.class);
 
-            mSystemServiceManager.startService(SoundTriggerService.class);
+            startService(SoundTriggerService.class);
 
             if (!disableNonCoreServices) {
                 if (mPackageManager.hasSystemFeature(PackageManager.FEATURE_BACKUP)) {
-                    mSystemServiceManager.startService(BACKUP_MANAGER_SERVICE_CLASS);
+                    startService(BACKUP_MANAGER_SERVICE_CLASS);
                 }
 
                 if (mPackageManager.hasSystemFeature(PackageManager.FEATURE_APP_WIDGETS)
                     || context.getResources().getBoolean(R.bool.config_enableAppWidgetService)) {
-                    mSystemServiceManager.startService(APPWIDGET_SERVICE_CLASS);
+                    startService(APPWIDGET_SERVICE_CLASS);
                 }
 
                 if (mPackageManager.hasSystemFeature(PackageManager.FEATURE_VOICE_RECOGNIZERS)) {
-                    mSystemServiceManager.startService(VOICE_RECOGNITION_MANAGER_SERVICE_CLASS);
+                    startService(VOICE_RECOGNITION_MANAGER_SERVICE_CLASS);
                 }
 
                 if (GestureLauncherService.isGestureLauncherEnabled(context.getResources())) {
                     Slog.i(TAG, "Gesture Launcher Service");
-                    mSystemServiceManager.startService(GestureLauncherService.class);
+                    startService(GestureLauncherService.class);
                 }
-                mSystemServiceManager.startService(SensorNotificationService.class);
-                mSystemServiceManager.startService(ContextHubSystemService.class);
+                startService(SensorNotificationService.class);
+                startService(ContextHubSystemService.class);
             }
 
-            traceBeginAndSlog("StartDiskStatsService");
-            try {
-                ServiceManager.addService("diskstats", new DiskStatsService(context));
-            } catch (Throwable e) {
-                reportWtf("starting DiskStats Service", e);
-            }
-            Trace.traceEnd(Trace.TRACE_TAG_SYSTEM_SERVER);
+            // Nothing looks up the following services while starting, only dumpsys
+            // and the systemRunning() callbacks use them, so they start on the init
+            // thread pool while the main thread moves on.
+            final SystemServerInitThreadPool initPool = SystemServerInitThreadPool.get();
+            initPool.submit(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        ServiceManager.addService("diskstats", new DiskStatsService(context));
+                    } catch (Throwable e) {
+                        reportWtf("starting DiskStats Service", e);
+                    }
+                }
+            }, "StartDiskStatsService", SystemService.PHASE_SYSTEM_SERVICES_READY);
 
             if (!disableSamplingProfiler) {
-                traceBeginAndSlog("StartSamplingProfilerService");
-                try {
-                    // need to add this service even if SamplingProfilerIntegration.isEnabled()
-                    // is false, because it is this service that detects system property change and
-                    // turns on SamplingProfilerIntegration. Plus, when sampling profiler doesn't work,
-                    // there is little overhead for running this service.
-                    ServiceManager.addService("samplingprofiler",
-                                new SamplingProfilerService(context));
-                } catch (Throwable e) {
-                    reportWtf("starting SamplingProfiler Service", e);
-                }
-                Trace.traceEnd(Trace.TRACE_TAG_SYSTEM_SERVER);
+                initPool.submit(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            // need to add this service even if
+                            // SamplingProfilerIntegration.isEnabled() is false, because it is this
+                            // service that detects system property change and turns on
+                            // SamplingProfilerIntegration. Plus, when sampling profiler doesn't
+                            // work, there is little overhead for running this service.
+                            ServiceManager.addService("samplingprofiler",
+                                        new SamplingProfilerService(context));
+                        } catch (Throwable e) {
+                            reportWtf("starting SamplingProfiler Service", e);
+                        }
+                    }
+                }, "StartSamplingProfilerService", SystemService.PHASE_SYSTEM_SERVICES_READY);
             }
 
             if (!disableNetwork && !disableNetworkTime) {
@@ -1063,36 +1107,44 @@ public final class SystemServer {
                 } catch (Throwable e) {
                     reportWtf("starting NetworkTimeUpdate service", e);
                 }
-                Trace.traceEnd(Trace.TRACE_TAG_SYSTEM_SERVER);
+                traceEnd();
             }
 
-            traceBeginAndSlog("StartCommonTimeManagementService");
-            try {
-                commonTimeMgmtService = new CommonTimeManagementService(context);
-                ServiceManager.addService("commontime_management", commonTimeMgmtService);
-            } catch (Throwable e) {
-                reportWtf("starting CommonTimeManagementService service", e);
-            }
-            Trace.traceEnd(Trace.TRACE_TAG_SYSTEM_SERVER);
+            // Must be up before the systemReady() callback notifies it.
+            initPool.submit(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        mCommonTimeMgmtService = new CommonTimeManagementService(context);
+                        ServiceManager.addService("commontime_management",
+                                mCommonTimeMgmtService);
+                    } catch (Throwable e) {
+                        reportWtf("starting CommonTimeManagementService service", e);
+                    }
+                }
+            }, "StartCommonTimeManagementService", SystemService.PHASE_LOCK_SETTINGS_READY);
 
             if (!disableNetwork) {
-                traceBeginAndSlog("CertBlacklister");
-                try {
-                    CertBlacklister blacklister = new CertBlacklister(context);
-                } catch (Throwable e) {
-                    reportWtf("starting CertBlacklister", e);
-                }
-                Trace.traceEnd(Trace.TRACE_TAG_SYSTEM_SERVER);
+                initPool.submit(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            CertBlacklister blacklister = new CertBlacklister(context);
+                        } catch (Throwable e) {
+                            reportWtf("starting CertBlacklister", e);
+                        }
+                    }
+                }, "CertBlacklister", SystemService.PHASE_SYSTEM_SERVICES_READY);
             }
 
             if (!disableNetwork && !disableNonCoreServices && EmergencyAffordanceManager.ENABLED) {
                 // EmergencyMode sevice
-                mSystemServiceManager.startService(EmergencyAffordanceService.class);
+                startService(EmergencyAffordanceService.class);
             }
 
             if (!disableNonCoreServices) {
                 // Dreams (interactive idle-time views, a/k/a screen savers, and doze mode)
-                mSystemServiceManager.startService(DreamManagerService.class);
+                startService(DreamManagerService.class);
             }
 
             if (!disableNonCoreServices && ZygoteInit.PRELOAD_RESOURCES) {
@@ -1103,7 +1155,7 @@ public final class SystemServer {
                 } catch (Throwable e) {
                     reportWtf("starting AssetAtlasService", e);
                 }
-                Trace.traceEnd(Trace.TRACE_TAG_SYSTEM_SERVER);
+                traceEnd();
             }
 
             if (!disableNonCoreServices) {
@@ -1112,27 +1164,27 @@ public final class SystemServer {
             }
 
             if (mPackageManager.hasSystemFeature(PackageManager.FEATURE_PRINTING)) {
-                mSystemServiceManager.startService(PRINT_MANAGER_SERVICE_CLASS);
+                startService(PRINT_MANAGER_SERVICE_CLASS);
             }
 
-            mSystemServiceManager.startService(RestrictionsManagerService.class);
+            startService(RestrictionsManagerService.class);
 
-            mSystemServiceManager.startService(MediaSessionService.class);
+            startService(MediaSessionService.class);
 
             if (mPackageManager.hasSystemFeature(PackageManager.FEATURE_HDMI_CEC)) {
-                mSystemServiceManager.startService(HdmiControlService.class);
+                startService(HdmiControlService.class);
             }
 
             if (mPackageManager.hasSystemFeature(PackageManager.FEATURE_LIVE_TV)) {
-                mSystemServiceManager.startService(TvInputManagerService.class);
+                startService(TvInputManagerService.class);
             }
 
             if (mPackageManager.hasSystemFeature(PackageManager.FEATURE_PICTURE_IN_PICTURE)) {
-                mSystemServiceManager.startService(MediaResourceMonitorService.class);
+                startService(MediaResourceMonitorService.class);
             }
 
             if (mPackageManager.hasSystemFeature(PackageManager.FEATURE_LEANBACK)) {
-                mSystemServiceManager.startService(TvRemoteService.class);
+                startService(TvRemoteService.class);
             }
 
             if (!disableNonCoreServices) {
@@ -1143,14 +1195,14 @@ public final class SystemServer {
                 } catch (Throwable e) {
                     reportWtf("starting MediaRouterService", e);
                 }
-                Trace.traceEnd(Trace.TRACE_TAG_SYSTEM_SERVER);
+                traceEnd();
 
                 if (!disableTrustManager) {
-                    mSystemServiceManager.startService(TrustManagerService.class);
+                    startService(TrustManagerService.class);
                 }
 
                 if (mPackageManager.hasSystemFeature(PackageManager.FEATURE_FINGERPRINT)) {
-                    mSystemServiceManager.startService(FingerprintService.class);
+                    startService(FingerprintService.class);
                 }
 
                 traceBeginAndSlog("StartBackgroundDexOptService");
@@ -1159,23 +1211,23 @@ public final class SystemServer {
                 } catch (Throwable e) {
                     reportWtf("starting BackgroundDexOptService", e);
                 }
-                Trace.traceEnd(Trace.TRACE_TAG_SYSTEM_SERVER);
+                traceEnd();
             }
             // LauncherAppsService uses ShortcutService.
-            mSystemServiceManager.startService(ShortcutService.Lifecycle.class);
+            startService(ShortcutService.Lifecycle.class);
 
-            mSystemServiceManager.startService(LauncherAppsService.class);
+            startService(LauncherAppsService.class);
         }
 
         if (!disableNonCoreServices && !disableMediaProjection) {
-            mSystemServiceManager.startService(MediaProjectionManagerService.class);
+            startService(MediaProjectionManagerService.class);
         }
 
         if (context.getPackageManager().hasSystemFeature(PackageManager.FEATURE_WATCH)) {
-            mSystemServiceManager.startService(WEAR_BLUETOOTH_SERVICE_CLASS);
-            mSystemServiceManager.startService(WEAR_WIFI_MEDIATOR_SERVICE_CLASS);
+            startService(WEAR_BLUETOOTH_SERVICE_CLASS);
+            startService(WEAR_WIFI_MEDIATOR_SERVICE_CLASS);
           if (!disableNonCoreServices) {
-              mSystemServiceManager.startService(WEAR_TIME_SERVICE_CLASS);
+              startService(WEAR_TIME_SERVICE_CLASS);
           }
         }
 
@@ -1192,24 +1244,24 @@ public final class SystemServer {
         }
 
         // MMS service broker
-        mmsService = mSystemServiceManager.startService(MmsServiceBroker.class);
+        mmsService = startService(MmsServiceBroker.class);
 
         if (Settings.Global.getInt(mContentResolver, Settings.Global.DEVICE_PROVISIONED, 0) == 0 ||
                 UserManager.isDeviceInDemoMode(mSystemContext)) {
-            mSystemServiceManager.startService(RetailDemoModeService.class);
+            startService(RetailDemoModeService.class);
         }
 
         // It is now time to start up the app processes...
 
-        Trace.traceBegin(Trace.TRACE_TAG_SYSTEM_SERVER, "MakeVibratorServiceReady");
+        traceBegin("MakeVibratorServiceReady");
         try {
             vibrator.systemReady();
         } catch (Throwable e) {
             reportWtf("making Vibrator Service ready", e);
         }
-        Trace.traceEnd(Trace.TRACE_TAG_SYSTEM_SERVER);
+        traceEnd();
 
-        Trace.traceBegin(Trace.TRACE_TAG_SYSTEM_SERVER, "MakeLockSettingsServiceReady");
+        traceBegin("MakeLockSettingsServiceReady");
         if (lockSettings != null) {
             try {
                 lockSettings.systemReady();
@@ -1217,20 +1269,25 @@ public final class SystemServer {
                 reportWtf("making Lock Settings Service ready", e);
             }
         }
-        Trace.traceEnd(Trace.TRACE_TAG_SYSTEM_SERVER);
+        traceEnd();
+
+        // Services started on the init thread pool must be up before the boot phases.
+        SystemServerInitThreadPool.get().awaitBarrier(SystemService.PHASE_LOCK_SETTINGS_READY);
 
         // Needed by DevicePolicyManager for initialization
         mSystemServiceManager.startBootPhase(SystemService.PHASE_LOCK_SETTINGS_READY);
 
+        SystemServerInitThreadPool.get().awaitBarrier(SystemService.PHASE_SYSTEM_SERVICES_READY);
+        SystemServerInitThreadPool.get().shutdown();
         mSystemServiceManager.startBootPhase(SystemService.PHASE_SYSTEM_SERVICES_READY);
 
-        Trace.traceBegin(Trace.TRACE_TAG_SYSTEM_SERVER, "MakeWindowManagerServiceReady");
+        traceBegin("MakeWindowManagerServiceReady");
         try {
             wm.systemReady();
         } catch (Throwable e) {
             reportWtf("making Window Manager Service ready", e);
         }
-        Trace.traceEnd(Trace.TRACE_TAG_SYSTEM_SERVER);
+        traceEnd();
 
         if (safeMode) {
             mActivityManagerService.showSafeModeOverlay();
@@ -1251,32 +1308,31 @@ public final class SystemServer {
             systemTheme.rebase();
         }
 
-        Trace.traceBegin(Trace.TRACE_TAG_SYSTEM_SERVER, "MakePowerManagerServiceReady");
+        traceBegin("MakePowerManagerServiceReady");
         try {
             // TODO: use boot phase
             mPowerManagerService.systemReady(mActivityManagerService.getAppOpsService());
-            Trace.traceEnd(Trace.TRACE_TAG_SYSTEM_SERVER);
         } catch (Throwable e) {
             reportWtf("making Power Manager Service ready", e);
         }
-        Trace.traceEnd(Trace.TRACE_TAG_SYSTEM_SERVER);
+        traceEnd();
 
-        Trace.traceBegin(Trace.TRACE_TAG_SYSTEM_SERVER, "MakePackageManagerServiceReady");
+        traceBegin("MakePackageManagerServiceReady");
         try {
             mPackageManagerService.systemReady();
         } catch (Throwable e) {
             reportWtf("making Package Manager Service ready", e);
         }
-        Trace.traceEnd(Trace.TRACE_TAG_SYSTEM_SERVER);
+        traceEnd();
 
-        Trace.traceBegin(Trace.TRACE_TAG_SYSTEM_SERVER, "MakeDisplayManagerServiceReady");
+        traceBegin("MakeDisplayManagerServiceReady");
         try {
             // TODO: use boot phase and communicate these flags some other way
             mDisplayManagerService.systemReady(safeMode, mOnlyCore);
         } catch (Throwable e) {
             reportWtf("making Display Manager Service ready", e);
         }
-        Trace.traceEnd(Trace.TRACE_TAG_SYSTEM_SERVER);
+        traceEnd();
 
         // These are needed to propagate to the runnable below.
         final NetworkManagementService networkManagementF = networkManagement;
@@ -1287,7 +1343,7 @@ public final class SystemServer {
         final LocationManagerService locationF = location;
         final CountryDetectorService countryDetectorF = countryDetector;
         final NetworkTimeUpdateService networkTimeUpdaterF = networkTimeUpdater;
-        final CommonTimeManagementService commonTimeMgmtServiceF = commonTimeMgmtService;
+        final CommonTimeManagementService commonTimeMgmtServiceF = mCommonTimeMgmtService;
         final AssetAtlasService atlasF = atlas;
         final InputManagerService inputManagerF = inputManager;
         final TelephonyRegistry telephonyRegistryF = telephonyRegistry;
@@ -1305,72 +1361,72 @@ public final class SystemServer {
                 Slog.i(TAG, "Making services ready");
                 mSystemServiceManager.startBootPhase(
                         SystemService.PHASE_ACTIVITY_MANAGER_READY);
-                Trace.traceBegin(Trace.TRACE_TAG_SYSTEM_SERVER, "PhaseActivityManagerReady");
+                traceBegin("PhaseActivityManagerReady");
 
-                Trace.traceBegin(Trace.TRACE_TAG_SYSTEM_SERVER, "StartObservingNativeCrashes");
+                traceBegin("StartObservingNativeCrashes");
                 try {
                     mActivityManagerService.startObservingNativeCrashes();
                 } catch (Throwable e) {
                     reportWtf("observing native crashes", e);
                 }
-                Trace.traceEnd(Trace.TRACE_TAG_SYSTEM_SERVER);
+                traceEnd();
 
                 if (!mOnlyCore) {
                     Slog.i(TAG, "WebViewFactory preparation");
-                    Trace.traceBegin(Trace.TRACE_TAG_SYSTEM_SERVER, "WebViewFactoryPreparation");
+                    traceBegin("WebViewFactoryPreparation");
                     mWebViewUpdateService.prepareWebViewInSystemServer();
-                    Trace.traceEnd(Trace.TRACE_TAG_SYSTEM_SERVER);
+                    traceEnd();
                 }
 
-                Trace.traceBegin(Trace.TRACE_TAG_SYSTEM_SERVER, "StartSystemUI");
+                traceBegin("StartSystemUI");
                 try {
                     startSystemUi(context);
                 } catch (Throwable e) {
                     reportWtf("starting System UI", e);
                 }
-                Trace.traceEnd(Trace.TRACE_TAG_SYSTEM_SERVER);
-                Trace.traceBegin(Trace.TRACE_TAG_SYSTEM_SERVER, "MakeNetworkScoreReady");
+                traceEnd();
+                traceBegin("MakeNetworkScoreReady");
                 try {
                     if (networkScoreF != null) networkScoreF.systemReady();
                 } catch (Throwable e) {
                     reportWtf("making Network Score Service ready", e);
                 }
-                Trace.traceEnd(Trace.TRACE_TAG_SYSTEM_SERVER);
-                Trace.traceBegin(Trace.TRACE_TAG_SYSTEM_SERVER, "MakeNetworkManagementServiceReady");
+                traceEnd();
+                traceBegin("MakeNetworkManagementServiceReady");
                 try {
                     if (networkManagementF != null) networkManagementF.systemReady();
                 } catch (Throwable e) {
                     reportWtf("making Network Managment Service ready", e);
                 }
-                Trace.traceEnd(Trace.TRACE_TAG_SYSTEM_SERVER);
-                Trace.traceBegin(Trace.TRACE_TAG_SYSTEM_SERVER, "MakeNetworkStatsServiceReady");
+                traceEnd();
+                traceBegin("MakeNetworkStatsServiceReady");
                 try {
                     if (networkStatsF != null) networkStatsF.systemReady();
                 } catch (Throwable e) {
                     reportWtf("making Network Stats Service ready", e);
                 }
-                Trace.traceEnd(Trace.TRACE_TAG_SYSTEM_SERVER);
-                Trace.traceBegin(Trace.TRACE_TAG_SYSTEM_SERVER, "MakeNetworkPolicyServiceReady");
+                traceEnd();
+                traceBegin("MakeNetworkPolicyServiceReady");
                 try {
                     if (networkPolicyF != null) networkPolicyF.systemReady();
                 } catch (Throwable e) {
                     reportWtf("making Network Policy Service ready", e);
                 }
-                Trace.traceEnd(Trace.TRACE_TAG_SYSTEM_SERVER);
-                Trace.traceBegin(Trace.TRACE_TAG_SYSTEM_SERVER, "MakeConnectivityServiceReady");
+                traceEnd();
+                traceBegin("MakeConnectivityServiceReady");
                 try {
                     if (connectivityF != null) connectivityF.systemReady();
                 } catch (Throwable e) {
                     reportWtf("making Connectivity Service ready", e);
                 }
-                Trace.traceEnd(Trace.TRACE_TAG_SYSTEM_SERVER);
+                traceEnd();
 
                 Watchdog.getInstance().start();
 
                 // It is now okay to let the various system services start their
                 // third party code...
-                Trace.traceEnd(Trace.TRACE_TAG_SYSTEM_SERVER);
-                Trace.traceBegin(Trace.TRACE_TAG_SYSTEM_SERVER, "PhaseThirdPartyAppsCanStart");
+                traceEnd();
+                traceBegin("PhaseThirdPartyAppsCanStart");
                 mSystemServiceManager.startBootPhase(
                         SystemService.PHASE_THIRD_PARTY_APPS_CAN_START);
 
@@ -1429,11 +1485,36 @@ public final class SystemServer {
                 } catch (Throwable e) {
                     reportWtf("Notifying NetworkScoreService running", e);
                 }
-                Trace.traceEnd(Trace.TRACE_TAG_SYSTEM_SERVER);
+                traceEnd();
             }
         });
     }
 
+    /**
+     * Starts a service through the system service manager and records the
+     * start in the boot timing report.
+     */
+    private <T extends SystemService> T startService(Class<T> serviceClass) {
+        traceBegin("StartService " + serviceClass.getSimpleName());
+        try {
+            return mSystemServiceManager.startService(serviceClass);
+        } finally {
+            traceEnd();
+        }
+    }
+
+    /**
+     * Starts a service by class name, see {@link #startService(Class)}.
+     */
+    private SystemService startService(String className) {
+        traceBegin("StartService " + className.substring(className.lastIndexOf('.') + 1));
+        try {
+            return mSystemServiceManager.startService(className);
+        } finally {
+            traceEnd();
+        }
+    }
+
     static final void startSystemUi(Context context) {
         Intent intent = new Intent();
         intent.setComponent(new ComponentName("com.android.systemui",
@@ -1444,7 +1525,17 @@ public final class SystemServer {
     }
 
     private static void traceBeginAndSlog(String name) {
-        Trace.traceBegin(Trace.TRACE_TAG_SYSTEM_SERVER, name);
+        traceBegin(name);
         Slog.i(TAG, name);
     }
+
+    private static void traceBegin(String name) {
+        Trace.traceBegin(Trace.TRACE_TAG_SYSTEM_SERVER, name);
+        sBootTimingReport.begin(name);
+    }
+
+    private static void traceEnd() {
+        sBootTimingReport.end();
+        Trace.traceEnd(Trace.TRACE_TAG_SYSTEM_SERVER);
+    }
 }
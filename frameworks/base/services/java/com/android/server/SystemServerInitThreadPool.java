@@ -0,0 +1,181 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server;
+
+import android.os.Process;
+import android.os.Trace;
+import android.util.Slog;
+
+import java.util.ArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Bounded thread pool for the parts of system server startup that do not
+ * have to run on the main thread.
+ * <p>
+ * Every task names the boot phase before which it has to be complete.
+ * {@link #awaitBarrier(int)} is called before a boot phase starts and waits
+ * for the tasks due by then. Work on the main thread that needs a task
+ * earlier waits for its future with {@link #waitForTask}. Tasks must not
+ * publish services that other services look up while they start, since
+ * nothing orders the publishing against those lookups.
+ * </p>
+ */
+final class SystemServerInitThreadPool {
+    private static final String TAG = "SystemServerInitThreadPool";
+
+    private static final int MAX_THREAD_COUNT = 4;
+
+    private static SystemServerInitThreadPool sInstance;
+
+    private final ExecutorService mExecutor;
+
+    // Tasks that have not passed their barrier yet, guarded by this.
+    private final ArrayList<Task> mPendingTasks = new ArrayList<>();
+
+    private SystemServerInitThreadPool() {
+        final int threadCount = Math.max(1,
+                Math.min(Runtime.getRuntime().availableProcessors(), MAX_THREAD_COUNT));
+        mExecutor = Executors.newFixedThreadPool(threadCount, new ThreadFactory() {
+            private final AtomicInteger mNextId = new AtomicInteger();
+
+            @Override
+            public Thread newThread(final Runnable runnable) {
+                return new Thread("system-server-init-" + mNextId.getAndIncrement()) {
+                    @Override
+                    public void run() {
+                        Process.setThreadPriority(Process.THREAD_PRIORITY_FOREGROUND);
+                        runnable.run();
+                    }
+                };
+            }
+        });
+    }
+
+    static synchronized SystemServerInitThreadPool get() {
+        if (sInstance == null) {
+            sInstance = new SystemServerInitThreadPool();
+        }
+        return sInstance;
+    }
+
+    /**
+     * Runs a piece of startup work on the pool.
+     *
+     * @param runnable The work.
+     * @param description Name of the work used for tracing and logging.
+     * @param barrierPhase The boot phase before which the work must be complete.
+     * @return A future that completes with the work.
+     */
+    synchronized Future<?> submit(final Runnable runnable, final String description,
+            int barrierPhase) {
+        final Future<?> future = mExecutor.submit(new Runnable() {
+            @Override
+            public void run() {
+                Trace.traceBegin(Trace.TRACE_TAG_SYSTEM_SERVER, description);
+                Slog.i(TAG, "Started " + description);
+                try {
+                    runnable.run();
+                } finally {
+                    Trace.traceEnd(Trace.TRACE_TAG_SYSTEM_SERVER);
+                }
+            }
+        });
+        mPendingTasks.add(new Task(future, description, barrierPhase));
+        return future;
+    }
+
+    /**
+     * Waits for all work that must be complete before a boot phase starts.
+     * Failures of the work are rethrown on the calling thread.
+     */
+    void awaitBarrier(int phase) {
+        final ArrayList<Task> due = new ArrayList<>();
+        synchronized (this) {
+            for (int i = mPendingTasks.size() - 1; i >= 0; i--) {
+                final Task task = mPendingTasks.get(i);
+                if (task.mBarrierPhase <= phase) {
+                    due.add(task);
+                    mPendingTasks.remove(i);
+                }
+            }
+        }
+        if (due.isEmpty()) {
+            return;
+        }
+        Trace.traceBegin(Trace.TRACE_TAG_SYSTEM_SERVER, "InitBarrier " + phase);
+        try {
+            for (int i = due.size() - 1; i >= 0; i--) {
+                final Task task = due.get(i);
+                waitForTask(task.mFuture, task.mDescription);
+            }
+        } finally {
+            Trace.traceEnd(Trace.TRACE_TAG_SYSTEM_SERVER);
+        }
+    }
+
+    /**
+     * Stops the pool once all work has completed. No work may be submitted afterwards.
+     */
+    void shutdown() {
+        awaitBarrier(Integer.MAX_VALUE);
+        synchronized (SystemServerInitThreadPool.class) {
+            mExecutor.shutdown();
+            sInstance = null;
+        }
+    }
+
+    /**
+     * Waits for a piece of work, rethrowing its failure.
+     */
+    static void waitForTask(Future<?> future, String description) {
+        boolean interrupted = false;
+        try {
+            while (true) {
+                try {
+                    future.get();
+                    return;
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+        } catch (ExecutionException e) {
+            throw new IllegalStateException(description + " failed", e.getCause());
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private static final class Task {
+        final Future<?> mFuture;
+        final String mDescription;
+        final int mBarrierPhase;
+
+        Task(Future<?> future, String description, int barrierPhase) {
+            mFuture = future;
+            mDescription = description;
+            mBarrierPhase = barrierPhase;
+        }
+    }
+}